@@ -21,16 +21,33 @@
  **********************************************************************/
 package de.bxservice.vatvalidation.model;
 
+import java.sql.Timestamp;
+
 import org.compiere.model.MBPartner;
 
 public class BusinessPartnerUtils {
 
-	private final static String IS_VALID_VAT_COLUMNNAME = "BXS_IsValidVATNumber";
+	public final static String IS_VALID_VAT_COLUMNNAME = "BXS_IsValidVATNumber";
+	public final static String DATE_VAT_VALIDATED_COLUMNNAME = "BXS_DateVATValidated";
+	public final static String VAT_VALIDATION_ERROR_COLUMNNAME = "BXS_VATValidationError";
+	public final static String DATE_VAT_LAST_ATTEMPT_COLUMNNAME = "BXS_DateVATLastAttempt";
 
 	public static void setIsValidVATNumber(MBPartner bPartner, boolean isValidVAT) {
 		bPartner.set_ValueOfColumn(IS_VALID_VAT_COLUMNNAME, isValidVAT);
 	}
+
+	public static void setDateVATValidated(MBPartner bPartner, Timestamp dateValidated) {
+		bPartner.set_ValueOfColumn(DATE_VAT_VALIDATED_COLUMNNAME, dateValidated);
+	}
 	
+	public static void setVATValidationError(MBPartner bPartner, String validationError) {
+		bPartner.set_ValueOfColumn(VAT_VALIDATION_ERROR_COLUMNNAME, validationError);
+	}
+
+	public static void setDateVATLastAttempt(MBPartner bPartner, Timestamp dateAttempted) {
+		bPartner.set_ValueOfColumn(DATE_VAT_LAST_ATTEMPT_COLUMNNAME, dateAttempted);
+	}
+
 	public static boolean didTaxIDChanged(MBPartner bPartner) {
 		return bPartner.is_ValueChanged(MBPartner.COLUMNNAME_TaxID);
 	}
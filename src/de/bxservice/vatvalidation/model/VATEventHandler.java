@@ -24,15 +24,21 @@ package de.bxservice.vatvalidation.model;
 import org.adempiere.base.event.AbstractEventHandler;
 import org.adempiere.base.event.IEventManager;
 import org.adempiere.base.event.IEventTopics;
+import org.adempiere.base.event.ImportEventData;
 import org.compiere.model.MBPartner;
 import org.compiere.model.PO;
+import org.compiere.model.X_I_BPartner;
 import org.compiere.util.CLogger;
+import org.compiere.util.Util;
 import org.osgi.service.component.annotations.Component;
 import org.osgi.service.component.annotations.Reference;
 import org.osgi.service.component.annotations.ReferenceCardinality;
 import org.osgi.service.component.annotations.ReferencePolicy;
 import org.osgi.service.event.Event;
 
+import de.bxservice.vatvalidation.service.VATImportValidation;
+import de.bxservice.vatvalidation.service.VATValidationQueue;
+
 @Component(
 		reference = @Reference( 
 				name = "IEventManager", bind = "bindEventManager", unbind="unbindEventManager", 
@@ -46,6 +52,25 @@ public class VATEventHandler  extends AbstractEventHandler {
 	@Override
 	protected void doHandleEvent(Event event) {
 		String type = event.getTopic();
+		if (type.equals(IEventTopics.IMPORT_BEFORE_IMPORT)) {
+			ImportEventData data = getEventData(event);
+			// Registered before the partner is saved, so the import validation takes precedence over the queue
+			PO source = data.getSource();
+			if (source != null && VATImportValidation.isEnabled(source.getAD_Client_ID()))
+				VATImportValidation.begin(source.get_TrxName());
+			return;
+		}
+		if (type.equals(IEventTopics.IMPORT_AFTER_IMPORT)) {
+			ImportEventData data = getEventData(event);
+			// The partners of the import are validated together after its commit
+			if (data.getTarget() instanceof MBPartner) {
+				MBPartner bp = (MBPartner) data.getTarget();
+				if (!Util.isEmpty(bp.getTaxID(), true) && VATImportValidation.isEnabled(bp.getAD_Client_ID()))
+					VATImportValidation.add(bp);
+			}
+			return;
+		}
+
 		PO po = getPO(event);
 
 		if (po instanceof MBPartner && type.equals(IEventTopics.PO_BEFORE_CHANGE)) {
@@ -55,12 +80,26 @@ public class VATEventHandler  extends AbstractEventHandler {
 				log.warning("Tax ID changed for: " + bp.getValue() + ". Invalidating VAT number.");
 				BusinessPartnerUtils.setIsValidVATNumber(bp, false);
 			}
-		} 
+		} else if (po instanceof MBPartner && (type.equals(IEventTopics.PO_AFTER_CHANGE) || type.equals(IEventTopics.PO_AFTER_NEW))) {
+			MBPartner bp = (MBPartner) po;
+
+			boolean validate = type.equals(IEventTopics.PO_AFTER_NEW) 
+					? !Util.isEmpty(bp.getTaxID(), true) 
+					: BusinessPartnerUtils.didTaxIDChanged(bp) && !Util.isEmpty(bp.getTaxID(), true);
+			// The job is saved in the partner transaction, the validation runs after the commit.
+			// Partners of an import validating its partners are left to the import
+			if (validate && VATValidationQueue.isEnabled(bp.getAD_Client_ID()) && !VATImportValidation.isImporting(bp.get_TrxName()))
+				VATValidationQueue.enqueue(bp);
+		}
 	}
 
 	@Override
 	protected void initialize() {
 		registerTableEvent(IEventTopics.PO_BEFORE_CHANGE, MBPartner.Table_Name);
+		registerTableEvent(IEventTopics.PO_AFTER_CHANGE, MBPartner.Table_Name);
+		registerTableEvent(IEventTopics.PO_AFTER_NEW, MBPartner.Table_Name);
+		registerTableEvent(IEventTopics.IMPORT_BEFORE_IMPORT, X_I_BPartner.Table_Name);
+		registerTableEvent(IEventTopics.IMPORT_AFTER_IMPORT, X_I_BPartner.Table_Name);
 	}
 
 }
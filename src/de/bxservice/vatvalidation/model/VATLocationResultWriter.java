@@ -0,0 +1,150 @@
+/**********************************************************************
+ * Copyright (C) Contributors                                          *
+ *                                                                     *
+ * This program is free software; you can redistribute it and/or       *
+ * modify it under the terms of the GNU General Public License         *
+ * as published by the Free Software Foundation; either version 2      *
+ * of the License, or (at your option) any later version.              *
+ *                                                                     *
+ * This program is distributed in the hope that it will be useful,     *
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of      *
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the        *
+ * GNU General Public License for more details.                        *
+ *                                                                     *
+ * You should have received a copy of the GNU General Public License   *
+ * along with this program; if not, write to the Free Software         *
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston,          *
+ * MA 02110-1301, USA.                                                 *
+ *                                                                     *
+ * Contributors:                                                       *
+ * - Diego Ruiz - Bx Service GmbH                                      *
+ **********************************************************************/
+package de.bxservice.vatvalidation.model;
+
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+
+import org.adempiere.exceptions.DBException;
+import org.compiere.util.DB;
+import org.compiere.util.Trx;
+
+import de.bxservice.vatvalidation.service.VATValidationResult;
+
+/**
+ * Writes the qualified validation results of the partner locations in the
+ * child table BXS_VATLocationValidation, one row per location replaced on
+ * every validation. The rows are written as JDBC batches, each flush in
+ * its own transaction. The answers are also appended to the {@link VATValidationHistory}
+ */
+public class VATLocationResultWriter implements AutoCloseable {
+
+	public static final String Table_Name = "BXS_VATLocationValidation";
+
+	private static final String INSERT_SQL = "INSERT INTO " + Table_Name 
+			+ " (" + Table_Name + "_ID, " + Table_Name + "_UU, AD_Client_ID, AD_Org_ID, IsActive, Created, CreatedBy, Updated, UpdatedBy,"
+			+ " C_BPartner_ID, C_BPartner_Location_ID, " + BusinessPartnerUtils.IS_VALID_VAT_COLUMNNAME + ", "
+			+ BusinessPartnerUtils.DATE_VAT_VALIDATED_COLUMNNAME + ", BXS_ErrorCode, BXS_Erg_Name, BXS_Erg_Ort, BXS_Erg_PLZ, BXS_Erg_Str)"
+			+ " VALUES (?, ?, ?, ?, 'Y', getDate(), ?, getDate(), ?, ?, ?, ?, ?, ?, ?, ?, ?, ?)";
+
+	private final int AD_Client_ID;
+	private final int batchSize;
+	private final int updatedBy;
+
+	private final List<PendingResult> pending;
+	private final VATValidationHistory history;
+
+	/**
+	 * @param AD_Client_ID client
+	 * @param batchSize results written per JDBC batch
+	 * @param updatedBy user saved in CreatedBy and UpdatedBy
+	 */
+	public VATLocationResultWriter(int AD_Client_ID, int batchSize, int updatedBy) {
+		this.AD_Client_ID = AD_Client_ID;
+		this.batchSize = Math.max(1, batchSize);
+		this.updatedBy = updatedBy;
+		pending = new ArrayList<>(this.batchSize);
+		history = new VATValidationHistory(AD_Client_ID, updatedBy);
+	}
+
+	/**
+	 * Adds the result of a location, service errors are ignored
+	 * @param AD_Org_ID organization of the partner
+	 * @param C_BPartner_ID partner
+	 * @param C_BPartner_Location_ID location
+	 * @param result qualified eVatR result
+	 */
+	public void add(int AD_Org_ID, int C_BPartner_ID, int C_BPartner_Location_ID, VATValidationResult result) {
+		if (result.isError())
+			return;
+		pending.add(new PendingResult(AD_Org_ID, C_BPartner_ID, C_BPartner_Location_ID, result));
+		history.add(C_BPartner_ID, C_BPartner_Location_ID, result);
+		if (pending.size() >= batchSize)
+			flush();
+	}
+
+	/**
+	 * Replaces the rows of the pending locations
+	 */
+	public void flush() {
+		if (pending.isEmpty())
+			return;
+
+		Trx trx = Trx.get(Trx.createTrxName("VATLocationResultWriter"), true);
+		PreparedStatement pstmt = null;
+		try {
+			StringBuilder delete = new StringBuilder("DELETE FROM ").append(Table_Name).append(" WHERE C_BPartner_Location_ID IN (");
+			List<Object> ids = new ArrayList<>(pending.size());
+			for (PendingResult result : pending) {
+				delete.append(ids.isEmpty() ? "?" : ",?");
+				ids.add(result.locationID());
+			}
+			delete.append(")");
+			DB.executeUpdateEx(delete.toString(), ids.toArray(), trx.getTrxName());
+
+			pstmt = DB.prepareStatement(INSERT_SQL, trx.getTrxName());
+			for (PendingResult pendingResult : pending) {
+				VATValidationResult result = pendingResult.result();
+				pstmt.setInt(1, DB.getNextID(AD_Client_ID, Table_Name, trx.getTrxName()));
+				pstmt.setString(2, UUID.randomUUID().toString());
+				pstmt.setInt(3, AD_Client_ID);
+				pstmt.setInt(4, pendingResult.orgID());
+				pstmt.setInt(5, updatedBy);
+				pstmt.setInt(6, updatedBy);
+				pstmt.setInt(7, pendingResult.partnerID());
+				pstmt.setInt(8, pendingResult.locationID());
+				pstmt.setString(9, result.isValid() ? "Y" : "N");
+				pstmt.setTimestamp(10, result.getDateValidated());
+				pstmt.setString(11, result.getErrorCode());
+				pstmt.setString(12, result.getErgName());
+				pstmt.setString(13, result.getErgCity());
+				pstmt.setString(14, result.getErgPostal());
+				pstmt.setString(15, result.getErgStreet());
+				pstmt.addBatch();
+			}
+			pstmt.executeBatch();
+			history.write(trx.getTrxName());
+			trx.commit(true);
+		} catch (SQLException e) {
+			trx.rollback();
+			throw new DBException(e, INSERT_SQL);
+		} catch (RuntimeException e) {
+			trx.rollback();
+			throw e;
+		} finally {
+			DB.close(pstmt);
+			trx.close();
+		}
+		pending.clear();
+	}
+
+	@Override
+	public void close() {
+		flush();
+	}
+
+	private record PendingResult(int orgID, int partnerID, int locationID, VATValidationResult result) {
+	}
+}
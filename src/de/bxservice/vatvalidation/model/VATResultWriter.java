@@ -0,0 +1,175 @@
+/**********************************************************************
+ * Copyright (C) Contributors                                          *
+ *                                                                     *
+ * This program is free software; you can redistribute it and/or       *
+ * modify it under the terms of the GNU General Public License         *
+ * as published by the Free Software Foundation; either version 2      *
+ * of the License, or (at your option) any later version.              *
+ *                                                                     *
+ * This program is distributed in the hope that it will be useful,     *
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of      *
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the        *
+ * GNU General Public License for more details.                        *
+ *                                                                     *
+ * You should have received a copy of the GNU General Public License   *
+ * along with this program; if not, write to the Free Software         *
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston,          *
+ * MA 02110-1301, USA.                                                 *
+ *                                                                     *
+ * Contributors:                                                       *
+ * - Diego Ruiz - Bx Service GmbH                                      *
+ **********************************************************************/
+package de.bxservice.vatvalidation.model;
+
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.sql.Timestamp;
+import java.sql.Types;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.adempiere.exceptions.DBException;
+import org.compiere.model.MBPartner;
+import org.compiere.util.CacheMgt;
+import org.compiere.util.DB;
+import org.compiere.util.Trx;
+import org.compiere.util.Util;
+
+import de.bxservice.vatvalidation.service.VATValidationResult;
+
+/**
+ * Collects validation results of bulk runs and writes them as JDBC batch updates
+ * of the validation columns, without loading nor saving the partner PO.
+ * Model validators, the change log and event handlers are not fired,
+ * a single partner is saved through {@link org.compiere.model.MBPartner#saveEx()} instead.
+ * The answers of the services are appended to the {@link VATValidationHistory}.
+ * Every attempt, failed ones included, sets the date of the last attempt
+ * so partners the service cannot answer do not stay first in line.
+ * <br>
+ * With a transaction name the updates are part of that transaction and
+ * the caller commits, without it every flush commits its own transaction.
+ */
+public class VATResultWriter implements AutoCloseable {
+
+	/* a failed attempt keeps the last answer of the service */
+	private static final String UPDATE_SQL = "UPDATE C_BPartner SET "
+			+ BusinessPartnerUtils.IS_VALID_VAT_COLUMNNAME + "=COALESCE(?," + BusinessPartnerUtils.IS_VALID_VAT_COLUMNNAME + "), "
+			+ BusinessPartnerUtils.DATE_VAT_VALIDATED_COLUMNNAME + "=COALESCE(?," + BusinessPartnerUtils.DATE_VAT_VALIDATED_COLUMNNAME + "), "
+			+ BusinessPartnerUtils.VAT_VALIDATION_ERROR_COLUMNNAME + "=?, "
+			+ BusinessPartnerUtils.DATE_VAT_LAST_ATTEMPT_COLUMNNAME + "=getDate(), "
+			+ "Name=COALESCE(?,Name), Updated=getDate(), UpdatedBy=? WHERE C_BPartner_ID=?";
+
+	private final int batchSize;
+	private final String trxName;
+	private final int updatedBy;
+
+	private final List<PendingResult> pending;
+	private final VATValidationHistory history;
+	private int written = 0;
+
+	/**
+	 * @param AD_Client_ID client of the partners
+	 * @param batchSize results written per JDBC batch
+	 * @param trxName transaction of the caller or null to commit each batch
+	 * @param updatedBy user saved in UpdatedBy
+	 */
+	public VATResultWriter(int AD_Client_ID, int batchSize, String trxName, int updatedBy) {
+		this.batchSize = Math.max(1, batchSize);
+		this.trxName = trxName;
+		this.updatedBy = updatedBy;
+		pending = new ArrayList<>(this.batchSize);
+		history = new VATValidationHistory(AD_Client_ID, updatedBy);
+	}
+
+	/**
+	 * Adds the result of a partner. For a result of the service error status
+	 * only the attempt and the error are written, the number is neither valid nor invalid
+	 * @param C_BPartner_ID partner
+	 * @param result result
+	 * @param name new partner name or null to keep it
+	 */
+	public void add(int C_BPartner_ID, VATValidationResult result, String name) {
+		if (result.isError()) {
+			pending.add(new PendingResult(C_BPartner_ID, null, null, result.getValidationError(), null));
+		} else {
+			pending.add(new PendingResult(C_BPartner_ID, result.isValid(), result.getDateValidated(), 
+					result.getValidationError(), Util.isEmpty(name, true) ? null : name));
+			history.add(C_BPartner_ID, 0, result);
+		}
+		if (pending.size() >= batchSize)
+			flush();
+	}
+
+	/**
+	 * Writes the pending results
+	 * @return number of partners updated
+	 */
+	public int flush() {
+		if (pending.isEmpty())
+			return 0;
+
+		Trx trx = trxName == null ? Trx.get(Trx.createTrxName("VATResultWriter"), true) : null;
+		PreparedStatement pstmt = null;
+		int updated = 0;
+		try {
+			pstmt = DB.prepareStatement(UPDATE_SQL, trx != null ? trx.getTrxName() : trxName);
+			for (PendingResult result : pending) {
+				if (result.valid() != null)
+					pstmt.setString(1, result.valid() ? "Y" : "N");
+				else
+					pstmt.setNull(1, Types.VARCHAR);
+				if (result.dateValidated() != null)
+					pstmt.setTimestamp(2, result.dateValidated());
+				else
+					pstmt.setNull(2, Types.TIMESTAMP);
+				if (result.validationError() != null)
+					pstmt.setString(3, result.validationError());
+				else
+					pstmt.setNull(3, Types.VARCHAR);
+				if (result.name() != null)
+					pstmt.setString(4, result.name());
+				else
+					pstmt.setNull(4, Types.VARCHAR);
+				pstmt.setInt(5, updatedBy);
+				pstmt.setInt(6, result.partnerID());
+				pstmt.addBatch();
+			}
+			for (int count : pstmt.executeBatch())
+				updated += count > 0 ? count : (count == Statement.SUCCESS_NO_INFO ? 1 : 0);
+			history.write(trx != null ? trx.getTrxName() : trxName);
+			if (trx != null)
+				trx.commit(true);
+		} catch (SQLException e) {
+			if (trx != null)
+				trx.rollback();
+			throw new DBException(e, UPDATE_SQL);
+		} finally {
+			DB.close(pstmt);
+			if (trx != null)
+				trx.close();
+		}
+
+		for (PendingResult result : pending)
+			CacheMgt.get().reset(MBPartner.Table_Name, result.partnerID());
+		pending.clear();
+		written += updated;
+		return updated;
+	}
+
+	/**
+	 * @return partners updated so far
+	 */
+	public int getWritten() {
+		return written;
+	}
+
+	@Override
+	public void close() {
+		flush();
+	}
+
+	/* valid and dateValidated are null for a failed attempt */
+	private record PendingResult(int partnerID, Boolean valid, Timestamp dateValidated, String validationError, String name) {
+	}
+}
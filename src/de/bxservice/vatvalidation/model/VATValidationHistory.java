@@ -0,0 +1,144 @@
+/**********************************************************************
+ * Copyright (C) Contributors                                          *
+ *                                                                     *
+ * This program is free software; you can redistribute it and/or       *
+ * modify it under the terms of the GNU General Public License         *
+ * as published by the Free Software Foundation; either version 2      *
+ * of the License, or (at your option) any later version.              *
+ *                                                                     *
+ * This program is distributed in the hope that it will be useful,     *
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of      *
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the        *
+ * GNU General Public License for more details.                        *
+ *                                                                     *
+ * You should have received a copy of the GNU General Public License   *
+ * along with this program; if not, write to the Free Software         *
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston,          *
+ * MA 02110-1301, USA.                                                 *
+ *                                                                     *
+ * Contributors:                                                       *
+ * - Diego Ruiz - Bx Service GmbH                                      *
+ **********************************************************************/
+package de.bxservice.vatvalidation.model;
+
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.sql.Types;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+
+import org.compiere.util.DB;
+
+import de.bxservice.vatvalidation.service.VATValidationResult;
+
+/**
+ * Append-only history of the answers of VIES and eVatR in the table
+ * BXS_VATValidationHistory, the proof of the validation for tax audits.
+ * Rows are never updated nor deleted, the table is indexed by partner
+ * and by validation date.
+ * <br>
+ * The results are collected and written as one JDBC batch by the
+ * result writers, in the same transaction as the validation columns.
+ * Results of the local check, of the cache and errors are not
+ * recorded as the service did not confirm anything.
+ */
+public class VATValidationHistory {
+
+	public static final String Table_Name = "BXS_VATValidationHistory";
+
+	/* Client and organization are taken from the partner, no need to know them in advance */
+	private static final String INSERT_SQL = "INSERT INTO " + Table_Name 
+			+ " (" + Table_Name + "_ID, " + Table_Name + "_UU, AD_Client_ID, AD_Org_ID, IsActive, Created, CreatedBy, Updated, UpdatedBy,"
+			+ " C_BPartner_ID, C_BPartner_Location_ID, TaxID, BXS_OwnTaxID, BXS_VATValidationService, "
+			+ BusinessPartnerUtils.DATE_VAT_VALIDATED_COLUMNNAME + ", " + BusinessPartnerUtils.IS_VALID_VAT_COLUMNNAME + ","
+			+ " BXS_ErrorCode, BXS_Erg_Name, BXS_Erg_Ort, BXS_Erg_PLZ, BXS_Erg_Str, BXS_ValidFrom, BXS_ValidTo, Name, BXS_Address)"
+			+ " SELECT ?, ?, p.AD_Client_ID, p.AD_Org_ID, 'Y', getDate(), ?, getDate(), ?,"
+			+ " p.C_BPartner_ID, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?"
+			+ " FROM C_BPartner p WHERE p.C_BPartner_ID=?";
+
+	private final int AD_Client_ID;
+	private final int createdBy;
+	private final List<Entry> pending = new ArrayList<>();
+
+	/**
+	 * The writers run in background threads as well, so the client
+	 * of the IDs is given instead of taken from the context
+	 * @param AD_Client_ID client of the partners
+	 * @param createdBy user saved in CreatedBy and UpdatedBy
+	 */
+	public VATValidationHistory(int AD_Client_ID, int createdBy) {
+		this.AD_Client_ID = AD_Client_ID;
+		this.createdBy = createdBy;
+	}
+
+	/**
+	 * Adds the answer of the service for a partner
+	 * @param C_BPartner_ID partner
+	 * @param C_BPartner_Location_ID location of a qualified eVatR check or 0
+	 * @param result result
+	 */
+	public void add(int C_BPartner_ID, int C_BPartner_Location_ID, VATValidationResult result) {
+		if (result.isError() || result.isRejected() || result.isFromCache())
+			return;
+		pending.add(new Entry(C_BPartner_ID, C_BPartner_Location_ID, result));
+	}
+
+	public boolean isEmpty() {
+		return pending.isEmpty();
+	}
+
+	/**
+	 * Appends the pending results, the caller commits.
+	 * The pending results are dropped even if the insert fails
+	 * @param trxName transaction of the caller
+	 * @throws SQLException
+	 */
+	public void write(String trxName) throws SQLException {
+		if (pending.isEmpty())
+			return;
+
+		PreparedStatement pstmt = null;
+		try {
+			pstmt = DB.prepareStatement(INSERT_SQL, trxName);
+			for (Entry entry : pending) {
+				VATValidationResult result = entry.result();
+				pstmt.setInt(1, DB.getNextID(AD_Client_ID, Table_Name, trxName));
+				pstmt.setString(2, UUID.randomUUID().toString());
+				pstmt.setInt(3, createdBy);
+				pstmt.setInt(4, createdBy);
+				if (entry.locationID() > 0)
+					pstmt.setInt(5, entry.locationID());
+				else
+					pstmt.setNull(5, Types.INTEGER);
+				pstmt.setString(6, result.getTaxID());
+				pstmt.setString(7, result.getRequest().getOwnTaxID());
+				pstmt.setString(8, result.getService());
+				pstmt.setTimestamp(9, result.getDateValidated());
+				pstmt.setString(10, result.isValid() ? "Y" : "N");
+				pstmt.setString(11, result.getErrorCode());
+				pstmt.setString(12, result.getErgName());
+				pstmt.setString(13, result.getErgCity());
+				pstmt.setString(14, result.getErgPostal());
+				pstmt.setString(15, result.getErgStreet());
+				pstmt.setString(16, result.getValidFrom());
+				pstmt.setString(17, result.getValidTo());
+				pstmt.setString(18, truncate(result.getName(), 255));
+				pstmt.setString(19, truncate(result.getAddress(), 2000));
+				pstmt.setInt(20, entry.partnerID());
+				pstmt.addBatch();
+			}
+			pstmt.executeBatch();
+		} finally {
+			DB.close(pstmt);
+			pending.clear();
+		}
+	}
+
+	private static String truncate(String value, int length) {
+		return value != null && value.length() > length ? value.substring(0, length) : value;
+	}
+
+	private record Entry(int partnerID, int locationID, VATValidationResult result) {
+	}
+}
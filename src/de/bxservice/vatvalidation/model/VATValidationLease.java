@@ -0,0 +1,275 @@
+/**********************************************************************
+ * Copyright (C) Contributors                                          *
+ *                                                                     *
+ * This program is free software; you can redistribute it and/or       *
+ * modify it under the terms of the GNU General Public License         *
+ * as published by the Free Software Foundation; either version 2      *
+ * of the License, or (at your option) any later version.              *
+ *                                                                     *
+ * This program is distributed in the hope that it will be useful,     *
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of      *
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the        *
+ * GNU General Public License for more details.                        *
+ *                                                                     *
+ * You should have received a copy of the GNU General Public License   *
+ * along with this program; if not, write to the Free Software         *
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston,          *
+ * MA 02110-1301, USA.                                                 *
+ *                                                                     *
+ * Contributors:                                                       *
+ * - Diego Ruiz - Bx Service GmbH                                      *
+ **********************************************************************/
+package de.bxservice.vatvalidation.model;
+
+import java.lang.management.ManagementFactory;
+import java.nio.charset.StandardCharsets;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+
+import org.adempiere.exceptions.DBException;
+import org.compiere.model.MSysConfig;
+import org.compiere.process.ProcessInfo;
+import org.compiere.process.ProcessInfoParameter;
+import org.compiere.util.CLogger;
+import org.compiere.util.DB;
+import org.compiere.util.Trx;
+
+/**
+ * Splits the partners of a bulk validation between the servers of a cluster
+ * with lease rows in BXS_VATValidationLease, one per partner and job.
+ * <br>
+ * Partners are claimed in chunks locking their rows with FOR UPDATE SKIP LOCKED,
+ * so concurrent servers claim different partners. A heartbeat extends the leases
+ * while the run is alive, the leases of a stopped server expire and its partners
+ * are claimed again by the others. Validated partners keep their lease for a
+ * while so the same job started on another server does not validate them again,
+ * runs with other parameters, i.e. forcing a refresh, are not held back.
+ * Partners the service could not answer are released at once.
+ * Expiry is compared with the database time, the clocks of the servers may differ.
+ */
+public class VATValidationLease implements AutoCloseable {
+
+	public static final String Table_Name = "BXS_VATValidationLease";
+
+	/** Client switch to coordinate the bulk validations of several servers */
+	public static final String CLUSTER_SYSCONFIG = "BXS_VAT_CLUSTER_LEASES";
+	private static final String LEASE_SECONDS_SYSCONFIG = "BXS_VAT_LEASE_SECONDS";
+	private static final String HOLD_MINUTES_SYSCONFIG = "BXS_VAT_LEASE_HOLD_MINUTES";
+
+	/** Logger */
+	private static CLogger log = CLogger.getCLogger(VATValidationLease.class);
+
+	private final int AD_Client_ID;
+	private final int AD_PInstance_ID;
+	private final String job;
+	private final String owner;
+	private final long leaseMillis;
+	private final long holdMillis;
+	private final ScheduledExecutorService heartbeat;
+
+	/**
+	 * Rows of the claim query
+	 */
+	@FunctionalInterface
+	public interface RowReader<T> {
+		T read(ResultSet rs) throws SQLException;
+	}
+
+	/**
+	 * @param AD_Client_ID client
+	 * @param pi process of the run, the process and its parameters identify the job
+	 */
+	public VATValidationLease(int AD_Client_ID, ProcessInfo pi) {
+		this.AD_Client_ID = AD_Client_ID;
+		this.AD_PInstance_ID = pi.getAD_PInstance_ID();
+		this.job = getJob(pi);
+		this.owner = ManagementFactory.getRuntimeMXBean().getName() + "#" + AD_PInstance_ID;
+		this.leaseMillis = Math.max(10, MSysConfig.getIntValue(LEASE_SECONDS_SYSCONFIG, 120, AD_Client_ID)) * 1000L;
+		this.holdMillis = MSysConfig.getIntValue(HOLD_MINUTES_SYSCONFIG, 60, AD_Client_ID) * 60 * 1000L;
+
+		heartbeat = Executors.newSingleThreadScheduledExecutor(r -> {
+			Thread thread = new Thread(r, "VATValidationLease");
+			thread.setDaemon(true);
+			return thread;
+		});
+		heartbeat.scheduleWithFixedDelay(this::extend, leaseMillis / 3, leaseMillis / 3, TimeUnit.MILLISECONDS);
+	}
+
+	/**
+	 * @param AD_Client_ID client
+	 * @return true if bulk validations of the client are split between servers
+	 */
+	public static boolean isEnabled(int AD_Client_ID) {
+		return MSysConfig.getBooleanValue(CLUSTER_SYSCONFIG, false, AD_Client_ID);
+	}
+
+	/**
+	 * The same process started with the same parameters is the same job
+	 * on every server, each start has its own process instance
+	 * @param pi process
+	 * @return job key
+	 */
+	private static String getJob(ProcessInfo pi) {
+		StringBuilder key = new StringBuilder().append(pi.getAD_Process_ID());
+		ProcessInfoParameter[] parameters = pi.getParameter();
+		if (parameters != null) {
+			for (ProcessInfoParameter para : parameters)
+				key.append('|').append(para.getParameterName()).append('=').append(para.getParameter())
+					.append('~').append(para.getParameter_To());
+		}
+		return UUID.nameUUIDFromBytes(key.toString().getBytes(StandardCharsets.UTF_8)).toString();
+	}
+
+	/**
+	 * Claims up to max partners of the query not leased by another run.
+	 * A partner validated by this job is skipped while it is held,
+	 * one attempted by this run is skipped even if it was released.
+	 * @param select select of C_BPartner aliased p, the first column must be C_BPartner_ID
+	 * @param where where clause without the WHERE keyword
+	 * @param orderBy order by clause without the ORDER BY keywords
+	 * @param params parameters of the where clause
+	 * @param max max partners claimed
+	 * @param reader reads a claimed row
+	 * @return claimed rows, empty when no partner is left
+	 */
+	public <T> List<T> claim(String select, String where, String orderBy, List<Object> params, int max, RowReader<T> reader) {
+		StringBuilder sql = new StringBuilder(select).append(" WHERE ").append(where)
+				.append(" AND NOT EXISTS (SELECT 1 FROM ").append(Table_Name).append(" l WHERE l.C_BPartner_ID=p.C_BPartner_ID")
+				.append(" AND (l.Processed='N' AND l.BXS_LeaseExpires>getDate()")
+				.append(" OR l.Processed='Y' AND (l.BXS_LeaseOwner=? OR l.BXS_LeaseJob=? AND l.BXS_LeaseExpires>getDate())))")
+				.append(" ORDER BY ").append(orderBy)
+				.append(DB.isPostgreSQL() ? " FOR UPDATE OF p SKIP LOCKED" : " FOR UPDATE OF p.C_BPartner_ID SKIP LOCKED");
+		List<Object> claimParams = new ArrayList<>(params);
+		claimParams.add(owner);
+		claimParams.add(job);
+
+		List<T> claimed = new ArrayList<>();
+		Trx trx = Trx.get(Trx.createTrxName("VATValidationLease"), true);
+		PreparedStatement pstmt = null;
+		ResultSet rs = null;
+		try {
+			pstmt = DB.prepareStatement(sql.toString(), trx.getTrxName());
+			DB.setParameters(pstmt, claimParams);
+			pstmt.setMaxRows(max);
+			rs = pstmt.executeQuery();
+			Timestamp now = getNow(trx.getTrxName());
+			while (rs.next()) {
+				if (acquire(rs.getInt(1), now, trx.getTrxName()))
+					claimed.add(reader.read(rs));
+			}
+			trx.commit(true);
+		} catch (SQLException e) {
+			trx.rollback();
+			throw new DBException(e, sql.toString());
+		} catch (RuntimeException e) {
+			trx.rollback();
+			throw e;
+		} finally {
+			DB.close(rs, pstmt);
+			trx.close();
+		}
+		return claimed;
+	}
+
+	/**
+	 * The partner row is locked, so no other server writes its leases now.
+	 * A lease committed by another server after the claim query started
+	 * is only visible here, it is checked again before taking it
+	 */
+	private boolean acquire(int C_BPartner_ID, Timestamp now, String trxName) {
+		if (DB.getSQLValueEx(trxName, "SELECT COUNT(*) FROM " + Table_Name 
+				+ " WHERE C_BPartner_ID=? AND Processed='N' AND BXS_LeaseExpires>? AND BXS_LeaseOwner<>?", 
+				C_BPartner_ID, now, owner) > 0)
+			return false;
+
+		Timestamp expires = new Timestamp(now.getTime() + leaseMillis);
+		int updated = DB.executeUpdateEx("UPDATE " + Table_Name 
+				+ " SET BXS_LeaseOwner=?, AD_PInstance_ID=?, BXS_LeaseExpires=?, Processed='N', Updated=getDate()"
+				+ " WHERE C_BPartner_ID=? AND BXS_LeaseJob=? AND (BXS_LeaseExpires<=? OR BXS_LeaseOwner=?)", 
+				new Object[] {owner, AD_PInstance_ID, expires, C_BPartner_ID, job, now, owner}, trxName);
+		if (updated > 0)
+			return true;
+		if (DB.getSQLValueEx(trxName, "SELECT COUNT(*) FROM " + Table_Name + " WHERE C_BPartner_ID=? AND BXS_LeaseJob=?", 
+				C_BPartner_ID, job) > 0)
+			return false;
+		DB.executeUpdateEx("INSERT INTO " + Table_Name 
+				+ " (" + Table_Name + "_ID, " + Table_Name + "_UU, AD_Client_ID, AD_Org_ID, IsActive, Created, CreatedBy, Updated, UpdatedBy,"
+				+ " C_BPartner_ID, BXS_LeaseJob, BXS_LeaseOwner, AD_PInstance_ID, BXS_LeaseExpires, Processed)"
+				+ " VALUES (?, ?, ?, 0, 'Y', getDate(), 0, getDate(), 0, ?, ?, ?, ?, ?, 'N')",
+				new Object[] {DB.getNextID(AD_Client_ID, Table_Name, trxName), UUID.randomUUID().toString(), AD_Client_ID,
+						C_BPartner_ID, job, owner, AD_PInstance_ID, expires}, trxName);
+		return true;
+	}
+
+	/**
+	 * Validated partners keep their lease for the hold time
+	 * @param partnerIDs validated partners
+	 */
+	public void complete(Collection<Integer> partnerIDs) {
+		finish(partnerIDs, holdMillis);
+	}
+
+	/**
+	 * Partners the service could not answer are released at once,
+	 * another job or server may try them again
+	 * @param partnerIDs partners with an error result
+	 */
+	public void release(Collection<Integer> partnerIDs) {
+		finish(partnerIDs, 0);
+	}
+
+	private void finish(Collection<Integer> partnerIDs, long millis) {
+		if (partnerIDs.isEmpty())
+			return;
+		Timestamp expires = new Timestamp(getNow(null).getTime() + millis);
+		StringBuilder sql = new StringBuilder("UPDATE ").append(Table_Name)
+				.append(" SET Processed='Y', BXS_LeaseExpires=?, Updated=getDate() WHERE BXS_LeaseOwner=? AND BXS_LeaseJob=? AND C_BPartner_ID IN (");
+		List<Object> params = new ArrayList<>(partnerIDs.size() + 3);
+		params.add(expires);
+		params.add(owner);
+		params.add(job);
+		for (Integer id : partnerIDs) {
+			sql.append(params.size() > 3 ? ",?" : "?");
+			params.add(id);
+		}
+		sql.append(")");
+		DB.executeUpdateEx(sql.toString(), params.toArray(), null);
+	}
+
+	private void extend() {
+		try {
+			DB.executeUpdateEx("UPDATE " + Table_Name + " SET BXS_LeaseExpires=? WHERE BXS_LeaseOwner=? AND Processed='N'",
+					new Object[] {new Timestamp(getNow(null).getTime() + leaseMillis), owner}, null);
+		} catch (Exception e) {
+			log.log(Level.WARNING, "Could not extend the leases of " + owner, e);
+		}
+	}
+
+	private static Timestamp getNow(String trxName) {
+		return DB.getSQLValueTSEx(trxName, "SELECT getDate() FROM Dual");
+	}
+
+	/**
+	 * Stops the heartbeat and releases the partners claimed but not validated,
+	 * they can be claimed at once by another server
+	 */
+	@Override
+	public void close() {
+		heartbeat.shutdownNow();
+		Timestamp now = getNow(null);
+		DB.executeUpdateEx("UPDATE " + Table_Name + " SET BXS_LeaseExpires=? WHERE BXS_LeaseOwner=? AND Processed='N'",
+				new Object[] {now, owner}, null);
+		DB.executeUpdateEx("DELETE FROM " + Table_Name + " WHERE AD_Client_ID=? AND BXS_LeaseExpires<?", 
+				new Object[] {AD_Client_ID, new Timestamp(now.getTime() - 24 * 60 * 60 * 1000L)}, null);
+	}
+}
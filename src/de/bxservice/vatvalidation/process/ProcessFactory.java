@@ -35,6 +35,20 @@ public class ProcessFactory implements IProcessFactory {
 	public ProcessCall newProcessInstance(String className) {
 		if (VATValidator.class.getName().equals(className))
 			return new VATValidator();
+		if (VATBulkValidator.class.getName().equals(className))
+			return new VATBulkValidator();
+		if (VATRevalidator.class.getName().equals(className))
+			return new VATRevalidator();
+		if (VATBenchmark.class.getName().equals(className))
+			return new VATBenchmark();
+		if (VATValidationStatistics.class.getName().equals(className))
+			return new VATValidationStatistics();
+		if (VATLocationValidator.class.getName().equals(className))
+			return new VATLocationValidator();
+		if (VATLoadTest.class.getName().equals(className))
+			return new VATLoadTest();
+		if (VATValidationHistoryExport.class.getName().equals(className))
+			return new VATValidationHistoryExport();
 		return null;
 	}
 
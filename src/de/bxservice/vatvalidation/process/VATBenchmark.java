@@ -0,0 +1,197 @@
+/**********************************************************************
+ * Copyright (C) Contributors                                          *
+ *                                                                     *
+ * This program is free software; you can redistribute it and/or       *
+ * modify it under the terms of the GNU General Public License         *
+ * as published by the Free Software Foundation; either version 2      *
+ * of the License, or (at your option) any later version.              *
+ *                                                                     *
+ * This program is distributed in the hope that it will be useful,     *
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of      *
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the        *
+ * GNU General Public License for more details.                        *
+ *                                                                     *
+ * You should have received a copy of the GNU General Public License   *
+ * along with this program; if not, write to the Free Software         *
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston,          *
+ * MA 02110-1301, USA.                                                 *
+ *                                                                     *
+ * Contributors:                                                       *
+ * - Diego Ruiz - Bx Service GmbH                                      *
+ **********************************************************************/
+package de.bxservice.vatvalidation.process;
+
+import java.io.ByteArrayInputStream;
+import java.lang.management.ManagementFactory;
+import java.nio.charset.StandardCharsets;
+import java.util.Objects;
+import java.util.function.Supplier;
+
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import javax.xml.parsers.DocumentBuilderFactory;
+import javax.xml.xpath.XPath;
+import javax.xml.xpath.XPathConstants;
+import javax.xml.xpath.XPathFactory;
+
+import org.adempiere.exceptions.AdempiereException;
+import org.compiere.model.MProcessPara;
+import org.compiere.process.ProcessInfoParameter;
+import org.compiere.process.SvrProcess;
+import org.w3c.dom.Document;
+import org.w3c.dom.Node;
+
+import de.bxservice.vatvalidation.service.EVatRClient;
+import de.bxservice.vatvalidation.service.EVatRResponse;
+import de.bxservice.vatvalidation.service.EVatRResponseParser;
+import de.bxservice.vatvalidation.service.VATValidationEngine;
+import de.bxservice.vatvalidation.service.VATValidationRequest;
+import de.bxservice.vatvalidation.service.VIESClient;
+import de.bxservice.vatvalidation.stub.RecordedResponses;
+
+/**
+ * Measures the hot paths of the validation with recorded responses,
+ * no remote service is called.
+ * Each benchmark reports the time and the bytes allocated per operation.
+ * Before measuring, the eVatR parser is checked against the DOM/XPath
+ * parsing for every recorded response.
+ */
+public class VATBenchmark extends SvrProcess {
+
+	private static final String[] EVATR_FIELDS = {"ErrorCode", "UstId_2", "Firmenname", "Erg_Name", "Ort", "Erg_Ort", 
+			"PLZ", "Erg_PLZ", "Strasse", "Erg_Str", "Gueltig_ab", "Gueltig_bis", "Datum"};
+
+	/* Measured operations per benchmark */
+	private int p_Iterations = 0;
+	/* Operations before measuring */
+	private int p_WarmupIterations = 0;
+
+	/* Consumes the benchmark results so the JIT cannot drop the work */
+	private volatile int blackhole;
+
+	@Override
+	protected void prepare() {
+		for (ProcessInfoParameter para : getParameter()) {
+			String name = para.getParameterName();
+			switch (name) {
+			case "Iterations":
+				p_Iterations = para.getParameterAsInt();
+				break;
+			case "WarmupIterations":
+				p_WarmupIterations = para.getParameterAsInt();
+				break;
+			default:
+				MProcessPara.validateUnknownParameter(getProcessInfo().getAD_Process_ID(), para);
+			}
+		}
+		if (p_Iterations <= 0)
+			p_Iterations = 20000;
+		if (p_WarmupIterations < 0)
+			p_WarmupIterations = 0;
+		else if (p_WarmupIterations == 0)
+			p_WarmupIterations = p_Iterations / 2;
+	}
+
+	@Override
+	protected String doIt() throws Exception {
+		VATValidationRequest eVatRRequest = new VATValidationRequest("ATU12345678", VATValidationEngine.SERVICE_EVATR);
+		eVatRRequest.setOwnTaxID("DE123456789");
+		eVatRRequest.setName("Beispiel Handels GmbH");
+		eVatRRequest.setCity("Wien");
+		eVatRRequest.setPostal("1010");
+		eVatRRequest.setStreet("Musterstrasse 1");
+		VATValidationRequest viesRequest = new VATValidationRequest("ATU12345678", VATValidationEngine.SERVICE_VIES);
+
+		verifyEVatRParser();
+
+		measure("eVatR parse", () -> EVatRClient.parseResponseEVATR(eVatRRequest, RecordedResponses.EVATR_VALID));
+		measure("eVatR parse DOM/XPath (baseline)", () -> parseDOM(RecordedResponses.EVATR_VALID));
+		measure("VIES parse valid", () -> VIESClient.parseResponseVIES(viesRequest, 200, RecordedResponses.VIES_VALID));
+		measure("VIES parse invalid", () -> VIESClient.parseResponseVIES(viesRequest, 200, RecordedResponses.VIES_INVALID));
+		measure("eVatR URL", () -> EVatRClient.getRequestURL(eVatRRequest.getOwnTaxID(), eVatRRequest.getTaxID(), 
+				eVatRRequest.getName(), eVatRRequest.getCity(), eVatRRequest.getPostal(), eVatRRequest.getStreet()));
+
+		return "@OK@";
+	}
+
+	private void measure(String name, Supplier<Object> operation) {
+		for (int i = 0; i < p_WarmupIterations; i++)
+			blackhole += System.identityHashCode(operation.get());
+
+		long allocatedStart = getAllocatedBytes();
+		long start = System.nanoTime();
+		for (int i = 0; i < p_Iterations; i++)
+			blackhole += System.identityHashCode(operation.get());
+		long elapsed = System.nanoTime() - start;
+		long allocated = getAllocatedBytes() - allocatedStart;
+
+		double nsPerOp = (double) elapsed / p_Iterations;
+		double opsPerSecond = p_Iterations * 1e9 / elapsed;
+		String message = String.format("%s: %.0f ops/s, %.0f ns/op", name, opsPerSecond, nsPerOp);
+		if (allocatedStart >= 0)
+			message += String.format(", %d B/op, %.1f MB/s allocated", allocated / p_Iterations, allocated * 1e3 / elapsed);
+		addLog(message);
+	}
+
+	/**
+	 * Bytes allocated by the current thread, read through JMX to
+	 * avoid depending on the com.sun.management package
+	 * @return allocated bytes or -1 if the JVM does not support it
+	 */
+	private long getAllocatedBytes() {
+		try {
+			MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+			Object bytes = server.invoke(new ObjectName(ManagementFactory.THREAD_MXBEAN_NAME), "getThreadAllocatedBytes", 
+					new Object[] {Thread.currentThread().getId()}, new String[] {long.class.getName()});
+			return (Long) bytes;
+		} catch (Exception e) {
+			return -1;
+		}
+	}
+
+	/**
+	 * Golden check: the StAX parser, from a string and from a stream, must return
+	 * the same values as the DOM/XPath parsing for every recorded response
+	 */
+	private void verifyEVatRParser() {
+		for (String response : RecordedResponses.EVATR_FIXTURES) {
+			String[] expected = parseDOMFields(response);
+			EVatRResponse fromString = EVatRResponseParser.parse(response);
+			EVatRResponse fromStream = EVatRResponseParser.parse(new ByteArrayInputStream(response.getBytes(StandardCharsets.UTF_8)));
+			for (int i = 0; i < EVATR_FIELDS.length; i++) {
+				String field = EVATR_FIELDS[i];
+				if (!Objects.equals(expected[i], fromString.get(field)) || !Objects.equals(expected[i], fromStream.get(field)))
+					throw new AdempiereException("eVatR parser differs for " + field + ": expected " + expected[i] 
+							+ ", got " + fromString.get(field) + " / " + fromStream.get(field));
+			}
+		}
+		addLog("eVatR parser verified with " + RecordedResponses.EVATR_FIXTURES.size() + " recorded responses");
+	}
+
+	/**
+	 * eVatR parsing as it was done before the StAX parser,
+	 * a new DOM and one XPath evaluation per field
+	 */
+	private Object parseDOM(String response) {
+		String[] values = parseDOMFields(response);
+		return values[values.length - 1];
+	}
+
+	private String[] parseDOMFields(String response) {
+		try {
+			Document document = DocumentBuilderFactory.newInstance().newDocumentBuilder()
+					.parse(new ByteArrayInputStream(response.getBytes(StandardCharsets.UTF_8)));
+			XPath xpath = XPathFactory.newInstance().newXPath();
+			String[] values = new String[EVATR_FIELDS.length];
+			for (int i = 0; i < EVATR_FIELDS.length; i++) {
+				String expression = "//param[value/array/data/value[string='" + EVATR_FIELDS[i] + "']]/value/array/data/value[2]/string";
+				Node node = (Node) xpath.evaluate(expression, document, XPathConstants.NODE);
+				if (node != null)
+					values[i] = node.getTextContent();
+			}
+			return values;
+		} catch (Exception e) {
+			throw new AdempiereException(e);
+		}
+	}
+}
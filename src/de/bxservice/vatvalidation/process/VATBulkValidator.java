@@ -0,0 +1,411 @@
+/**********************************************************************
+ * Copyright (C) Contributors                                          *
+ *                                                                     *
+ * This program is free software; you can redistribute it and/or       *
+ * modify it under the terms of the GNU General Public License         *
+ * as published by the Free Software Foundation; either version 2      *
+ * of the License, or (at your option) any later version.              *
+ *                                                                     *
+ * This program is distributed in the hope that it will be useful,     *
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of      *
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the        *
+ * GNU General Public License for more details.                        *
+ *                                                                     *
+ * You should have received a copy of the GNU General Public License   *
+ * along with this program; if not, write to the Free Software         *
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston,          *
+ * MA 02110-1301, USA.                                                 *
+ *                                                                     *
+ * Contributors:                                                       *
+ * - Diego Ruiz - Bx Service GmbH                                      *
+ **********************************************************************/
+package de.bxservice.vatvalidation.process;
+
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+
+import org.adempiere.exceptions.AdempiereException;
+import org.adempiere.exceptions.DBException;
+import org.compiere.model.MBPartner;
+import org.compiere.model.MOrgInfo;
+import org.compiere.model.MProcessPara;
+import org.compiere.model.MSysConfig;
+import org.compiere.process.ProcessInfoParameter;
+import org.compiere.process.SvrProcess;
+import org.compiere.util.DB;
+import org.compiere.util.Env;
+import org.compiere.util.Util;
+
+import de.bxservice.vatvalidation.model.BusinessPartnerUtils;
+import de.bxservice.vatvalidation.model.VATResultWriter;
+import de.bxservice.vatvalidation.model.VATValidationLease;
+import de.bxservice.vatvalidation.service.VATValidationEngine;
+import de.bxservice.vatvalidation.service.VATValidationRequest;
+import de.bxservice.vatvalidation.service.VATValidationResult;
+
+/**
+ * Validates the VAT numbers of all business partners matching the parameters.
+ * The remote calls run in parallel in a bounded pool, the results are
+ * written by the process thread in JDBC batches, each one in its own
+ * transaction unless the process transaction is used.
+ * With BXS_VAT_CLUSTER_LEASES the partners are claimed in chunks through
+ * lease rows, so the same job started on several servers splits the partners.
+ */
+public class VATBulkValidator extends SvrProcess {
+
+	private static final String PARALLELISM_SYSCONFIG = "BXS_VAT_VALIDATION_PARALLELISM";
+	private static final String BATCH_SIZE_SYSCONFIG = "BXS_VAT_VALIDATION_BATCH_SIZE";
+
+	/* VAT Validation Service */
+	protected String p_BXS_VATValidationService = null;
+	/* Update Name */
+	protected boolean p_IsUpdateName = false;
+	/* Organization */
+	protected int p_AD_Org_ID = 0;
+	/* Business Partner Group */
+	protected int p_C_BP_Group_ID = 0;
+	/* Only partners not validated since */
+	protected Timestamp p_BXS_DateVATValidated = null;
+	/* Only partners with this validation flag */
+	protected String p_BXS_IsValidVATNumber = null;
+	/* Max concurrent validations */
+	protected int p_BXS_Parallelism = 0;
+	/* Use virtual threads */
+	protected boolean p_BXS_IsUseVirtualThreads = false;
+	/* Partners saved per transaction */
+	protected int p_BatchSize = 0;
+	/* Write the results in the process transaction */
+	protected boolean p_BXS_IsUseProcessTrx = false;
+	/* Ignore cached results */
+	protected boolean p_BXS_IsForceRefresh = false;
+	/* Max partners validated in this run, oldest validations first */
+	protected int p_MaxRecords = 0;
+	/* Only partners validated more than these days ago */
+	protected int p_BXS_MaxAgeDays = 0;
+	/* Stop starting new validations after these seconds */
+	protected int p_BXS_TimeBudgetSeconds = 0;
+
+	private static final String SELECT_PARTNERS = "SELECT p.C_BPartner_ID, p.Value, p.Name, p.TaxID FROM C_BPartner p";
+	/* partners the service could not answer go to the end of the line until they are due again */
+	private static final String ORDER_BY_PARTNERS = "COALESCE(p." + BusinessPartnerUtils.DATE_VAT_LAST_ATTEMPT_COLUMNNAME 
+			+ ", p." + BusinessPartnerUtils.DATE_VAT_VALIDATED_COLUMNNAME + ") NULLS FIRST, p.C_BPartner_ID";
+
+	private String ownTaxID = null;
+
+	/* Partners still to submit */
+	private Iterator<PartnerTaxID> pending = null;
+	/* Number of partners to validate, unknown with leases */
+	private int total = 0;
+	/* Claims the partners when several servers share the run */
+	private VATValidationLease lease = null;
+	private String leaseWhere = null;
+	private List<Object> leaseParams = null;
+	private int claimed = 0;
+	private boolean leaseExhausted = false;
+
+	private int countValid = 0;
+	private int countInvalid = 0;
+	private int countRejected = 0;
+	private int countError = 0;
+
+	@Override
+	protected void prepare() {
+		for (ProcessInfoParameter para : getParameter()) {
+			String name = para.getParameterName();
+			switch (name) {
+			case "BXS_VATValidationService":
+				p_BXS_VATValidationService = para.getParameterAsString();
+				break;
+			case "IsUpdateName":
+				p_IsUpdateName = para.getParameterAsBoolean();
+				break;
+			case "AD_Org_ID":
+				p_AD_Org_ID = para.getParameterAsInt();
+				break;
+			case "C_BP_Group_ID":
+				p_C_BP_Group_ID = para.getParameterAsInt();
+				break;
+			case "BXS_DateVATValidated":
+				p_BXS_DateVATValidated = para.getParameterAsTimestamp();
+				break;
+			case "BXS_IsValidVATNumber":
+				p_BXS_IsValidVATNumber = para.getParameterAsString();
+				break;
+			case "BXS_Parallelism":
+				p_BXS_Parallelism = para.getParameterAsInt();
+				break;
+			case "BXS_IsUseVirtualThreads":
+				p_BXS_IsUseVirtualThreads = para.getParameterAsBoolean();
+				break;
+			case "BatchSize":
+				p_BatchSize = para.getParameterAsInt();
+				break;
+			case "BXS_IsUseProcessTrx":
+				p_BXS_IsUseProcessTrx = para.getParameterAsBoolean();
+				break;
+			case "BXS_IsForceRefresh":
+				p_BXS_IsForceRefresh = para.getParameterAsBoolean();
+				break;
+			case "MaxRecords":
+				p_MaxRecords = para.getParameterAsInt();
+				break;
+			case "BXS_MaxAgeDays":
+				p_BXS_MaxAgeDays = para.getParameterAsInt();
+				break;
+			case "BXS_TimeBudgetSeconds":
+				p_BXS_TimeBudgetSeconds = para.getParameterAsInt();
+				break;
+			default:
+				MProcessPara.validateUnknownParameter(getProcessInfo().getAD_Process_ID(), para);
+			}
+		}
+		if (Util.isEmpty(p_BXS_VATValidationService))
+			p_BXS_VATValidationService = VATValidationEngine.SERVICE_VIES;
+		if (p_BXS_Parallelism <= 0)
+			p_BXS_Parallelism = MSysConfig.getIntValue(PARALLELISM_SYSCONFIG, 8, getAD_Client_ID());
+		if (p_BatchSize <= 0)
+			p_BatchSize = MSysConfig.getIntValue(BATCH_SIZE_SYSCONFIG, 100, getAD_Client_ID());
+	}
+
+	@Override
+	protected String doIt() throws Exception {
+		if (VATValidationEngine.isOwnTaxIDRequired(p_BXS_VATValidationService)) {
+			MOrgInfo orgInfo = MOrgInfo.get(p_AD_Org_ID > 0 ? p_AD_Org_ID : Env.getAD_Org_ID(getCtx()));
+			ownTaxID = orgInfo != null ? orgInfo.getTaxID() : null;
+		}
+		if (VATValidationEngine.SERVICE_EVATR.equals(p_BXS_VATValidationService) && Util.isEmpty(ownTaxID))
+			throw new AdempiereException("@NotFound@ @TaxID@ - @AD_Org_ID@");
+
+		if (p_BXS_MaxAgeDays > 0) {
+			Timestamp maxAge = new Timestamp(System.currentTimeMillis() - p_BXS_MaxAgeDays * 24L * 60 * 60 * 1000);
+			if (p_BXS_DateVATValidated == null || maxAge.before(p_BXS_DateVATValidated))
+				p_BXS_DateVATValidated = maxAge;
+		}
+		long deadline = p_BXS_TimeBudgetSeconds > 0 
+				? System.currentTimeMillis() + p_BXS_TimeBudgetSeconds * 1000L 
+				: Long.MAX_VALUE;
+
+		List<Object> params = new ArrayList<>();
+		String where = getWhereClause(params);
+		if (VATValidationLease.isEnabled(getAD_Client_ID())) {
+			lease = new VATValidationLease(getAD_Client_ID(), getProcessInfo());
+			leaseWhere = where;
+			leaseParams = params;
+			pending = Collections.emptyIterator();
+			statusUpdate("@C_BPartner_ID@ ...");
+		} else {
+			List<PartnerTaxID> partners = getPartners(where, params);
+			total = partners.size();
+			pending = partners.iterator();
+			statusUpdate("@C_BPartner_ID@ = " + total);
+		}
+
+		int processed = 0;
+		List<Integer> completed = new ArrayList<>(p_BatchSize);
+		List<Integer> failed = new ArrayList<>();
+		VATResultWriter writer = new VATResultWriter(getAD_Client_ID(), p_BatchSize, p_BXS_IsUseProcessTrx ? get_TrxName() : null, getAD_User_ID());
+		ExecutorService executor = VATValidationEngine.newExecutor(p_BXS_Parallelism, p_BXS_IsUseVirtualThreads, "VATBulkValidator");
+		try {
+			CompletionService<ValidatedPartner> completionService = new ExecutorCompletionService<>(executor);
+			// keep only a window of validations queued so the time budget can stop the run
+			int running = 0;
+			PartnerTaxID next;
+			while (running < p_BXS_Parallelism * 2 && (next = nextPartner()) != null) {
+				submit(completionService, next);
+				running++;
+			}
+
+			while (running > 0) {
+				ValidatedPartner validated = completionService.take().get();
+				record(validated, writer);
+				running--;
+				processed++;
+				if (System.currentTimeMillis() < deadline && (next = nextPartner()) != null) {
+					submit(completionService, next);
+					running++;
+				}
+				if (lease != null) {
+					if (validated.result().isError())
+						failed.add(validated.partner().id());
+					else
+						completed.add(validated.partner().id());
+					if (completed.size() + failed.size() >= p_BatchSize) {
+						lease.complete(completed);
+						lease.release(failed);
+						completed.clear();
+						failed.clear();
+					}
+				}
+				if (processed % p_BatchSize == 0)
+					statusUpdate(total > 0 ? processed + " / " + total : String.valueOf(processed));
+			}
+			writer.flush();
+			if (lease != null) {
+				lease.complete(completed);
+				lease.release(failed);
+			}
+		} finally {
+			executor.shutdownNow();
+			// partners claimed but not validated are released for the other servers
+			if (lease != null)
+				lease.close();
+		}
+
+		if (System.currentTimeMillis() >= deadline && (pending.hasNext() || processed < total))
+			addLog("@BXS_TimeBudgetSeconds@ " + p_BXS_TimeBudgetSeconds + ": " 
+					+ (total > 0 ? (total - processed) + " @C_BPartner_ID@ pending" : "@C_BPartner_ID@ pending"));
+
+		return "@BXS_ValidVATNumber@ = " + countValid + ", @BXS_ErrorVATNumber@ = " + countInvalid 
+				+ ", @BXS_InvalidTaxID@ = " + countRejected + ", @Error@ = " + countError;
+	}
+
+	/**
+	 * Next partner to validate, with leases a new chunk of partners
+	 * is claimed when the current one is used up
+	 * @return partner or null if none is left
+	 */
+	private PartnerTaxID nextPartner() {
+		if (pending.hasNext())
+			return pending.next();
+		if (lease == null || leaseExhausted)
+			return null;
+
+		int max = p_BatchSize;
+		if (p_MaxRecords > 0)
+			max = Math.min(max, p_MaxRecords - claimed);
+		if (max <= 0)
+			return null;
+		List<PartnerTaxID> chunk = lease.claim(SELECT_PARTNERS, leaseWhere, ORDER_BY_PARTNERS, leaseParams, max, this::readPartner);
+		if (chunk.isEmpty()) {
+			leaseExhausted = true;
+			return null;
+		}
+		claimed += chunk.size();
+		pending = chunk.iterator();
+		return pending.next();
+	}
+
+	private void submit(CompletionService<ValidatedPartner> completionService, PartnerTaxID partner) {
+		completionService.submit(() -> new ValidatedPartner(partner, validate(partner)));
+	}
+
+	/**
+	 * Where clause of the partners matching the parameters
+	 * @param params filled with the parameters of the clause
+	 * @return where clause without the WHERE keyword
+	 */
+	private String getWhereClause(List<Object> params) {
+		StringBuilder where = new StringBuilder("p.AD_Client_ID=? AND p.IsActive='Y' AND p.TaxID IS NOT NULL");
+		params.add(getAD_Client_ID());
+		if (p_AD_Org_ID > 0) {
+			where.append(" AND p.AD_Org_ID IN (0,?)");
+			params.add(p_AD_Org_ID);
+		}
+		if (p_C_BP_Group_ID > 0) {
+			where.append(" AND p.C_BP_Group_ID=?");
+			params.add(p_C_BP_Group_ID);
+		}
+		if (p_BXS_DateVATValidated != null) {
+			where.append(" AND (p.").append(BusinessPartnerUtils.DATE_VAT_VALIDATED_COLUMNNAME).append(" IS NULL OR p.")
+				.append(BusinessPartnerUtils.DATE_VAT_VALIDATED_COLUMNNAME).append("<?)");
+			params.add(p_BXS_DateVATValidated);
+		}
+		if (!Util.isEmpty(p_BXS_IsValidVATNumber)) {
+			where.append(" AND p.").append(BusinessPartnerUtils.IS_VALID_VAT_COLUMNNAME).append("=?");
+			params.add(p_BXS_IsValidVATNumber);
+		}
+		return where.toString();
+	}
+
+	/**
+	 * Partners matching the parameters, the ones never validated
+	 * or attempted longest ago first
+	 */
+	private List<PartnerTaxID> getPartners(String where, List<Object> params) {
+		String sql = SELECT_PARTNERS + " WHERE " + where + " ORDER BY " + ORDER_BY_PARTNERS;
+
+		List<PartnerTaxID> partners = new ArrayList<>();
+		PreparedStatement pstmt = null;
+		ResultSet rs = null;
+		try {
+			pstmt = DB.prepareStatement(sql, get_TrxName());
+			DB.setParameters(pstmt, params);
+			if (p_MaxRecords > 0)
+				pstmt.setMaxRows(p_MaxRecords);
+			rs = pstmt.executeQuery();
+			while (rs.next()) {
+				partners.add(readPartner(rs));
+			}
+		} catch (SQLException e) {
+			throw new DBException(e, sql);
+		} finally {
+			DB.close(rs, pstmt);
+		}
+		return partners;
+	}
+
+	private PartnerTaxID readPartner(ResultSet rs) throws SQLException {
+		return new PartnerTaxID(rs.getInt(1), rs.getString(2), rs.getString(3), rs.getString(4).trim());
+	}
+
+	/**
+	 * Runs in a worker thread, must not access the context. The engine may read
+	 * the validation cache, the partners are only written by the writer
+	 */
+	private VATValidationResult validate(PartnerTaxID partner) {
+		VATValidationRequest request = new VATValidationRequest(partner.taxID(), p_BXS_VATValidationService);
+		request.setForceRefresh(p_BXS_IsForceRefresh);
+		request.setOwnTaxID(ownTaxID);
+		if (request.isEVatR())
+			request.setName(partner.name());
+		try {
+			return VATValidationEngine.validate(request);
+		} catch (Exception e) {
+			return VATValidationResult.error(request, e);
+		}
+	}
+
+	/**
+	 * Counts and logs the result and hands it to the writer
+	 */
+	private void record(ValidatedPartner validated, VATResultWriter writer) {
+		VATValidationResult result = validated.result();
+		PartnerTaxID partner = validated.partner();
+		if (result.isError()) {
+			countError++;
+			addBufferLog(0, null, null, partner.value() + " -> @Error@ " + result.getErrorMessage(), MBPartner.Table_ID, partner.id());
+			writer.add(partner.id(), result, null);
+			return;
+		}
+
+		String name = null;
+		if (result.isValid()) {
+			countValid++;
+			if (p_IsUpdateName)
+				name = result.getName();
+		} else if (result.isRejected()) {
+			countRejected++;
+			for (String message : result.getMessages(getCtx()))
+				addBufferLog(0, null, null, partner.value() + ": " + message, MBPartner.Table_ID, partner.id());
+		} else {
+			countInvalid++;
+			addBufferLog(0, null, null, partner.value() + " -> @BXS_ErrorVATNumber@", MBPartner.Table_ID, partner.id());
+		}
+		writer.add(partner.id(), result, name);
+	}
+
+	private record PartnerTaxID(int id, String value, String name, String taxID) {
+	}
+
+	private record ValidatedPartner(PartnerTaxID partner, VATValidationResult result) {
+	}
+}
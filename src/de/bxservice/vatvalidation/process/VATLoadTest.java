@@ -0,0 +1,314 @@
+/**********************************************************************
+ * Copyright (C) Contributors                                          *
+ *                                                                     *
+ * This program is free software; you can redistribute it and/or       *
+ * modify it under the terms of the GNU General Public License         *
+ * as published by the Free Software Foundation; either version 2      *
+ * of the License, or (at your option) any later version.              *
+ *                                                                     *
+ * This program is distributed in the hope that it will be useful,     *
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of      *
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the        *
+ * GNU General Public License for more details.                        *
+ *                                                                     *
+ * You should have received a copy of the GNU General Public License   *
+ * along with this program; if not, write to the Free Software         *
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston,          *
+ * MA 02110-1301, USA.                                                 *
+ *                                                                     *
+ * Contributors:                                                       *
+ * - Diego Ruiz - Bx Service GmbH                                      *
+ **********************************************************************/
+package de.bxservice.vatvalidation.process;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.adempiere.exceptions.AdempiereException;
+import org.compiere.model.MOrgInfo;
+import org.compiere.model.MProcessPara;
+import org.compiere.process.ProcessInfoParameter;
+import org.compiere.process.SvrProcess;
+import org.compiere.util.Env;
+import org.compiere.util.Util;
+
+import de.bxservice.vatvalidation.service.EVatRClient;
+import de.bxservice.vatvalidation.service.TaxIDPreValidator;
+import de.bxservice.vatvalidation.service.VATHttpTransport;
+import de.bxservice.vatvalidation.service.VATValidationEngine;
+import de.bxservice.vatvalidation.service.VATValidationRequest;
+import de.bxservice.vatvalidation.service.VATValidationResult;
+import de.bxservice.vatvalidation.service.VIESClient;
+import de.bxservice.vatvalidation.stub.VATStubServer;
+
+/**
+ * Measures the throughput and latency of a validation provider at several
+ * concurrency levels, HTTP transport and parsing included. The provider is
+ * called through {@link VATValidationEngine#validateIsolated(VATValidationRequest)},
+ * the cache, circuit breakers, rate limiter and metrics of the production
+ * validations are neither used nor changed.
+ * Every level runs once with blocking validations on a pool of threads, as the
+ * single and bulk validation processes do, and once pipelined without blocking.
+ * <p>
+ * Each request carries the endpoint of the stub server, the embedded
+ * {@link VATStubServer} when a port is given, otherwise the URL parameter.
+ * The configured endpoints are not changed and the process refuses to run
+ * against the public services.
+ */
+public class VATLoadTest extends SvrProcess {
+
+	private static final String OWN_TAX_ID = "DE123456789";
+
+	/* VAT Validation Service */
+	private String p_BXS_VATValidationService = null;
+	/* Concurrency levels, comma separated */
+	private String p_ConcurrencyLevels = null;
+	/* Validations per level and mode */
+	private int p_Requests = 0;
+	/* Port of the embedded stub server, 0 = do not start it */
+	private int p_Port = 0;
+	/* Endpoint of an external stub server */
+	private String p_URL = null;
+	/* Stub latency */
+	private int p_LatencyMillis = 0;
+	private int p_LatencyJitterMillis = 0;
+	/* Stub answers in percent */
+	private int p_ErrorPercent = 0;
+	private int p_ThrottlePercent = 0;
+	private int p_InvalidPercent = 0;
+	/* Stub concurrent requests, 0 = no limit */
+	private int p_MaxConcurrent = 0;
+
+	private String ownTaxID = null;
+	private String serviceURL = null;
+	/* Tax IDs are unique in the whole run, as in a bulk validation */
+	private final AtomicInteger sequence = new AtomicInteger();
+
+	@Override
+	protected void prepare() {
+		for (ProcessInfoParameter para : getParameter()) {
+			String name = para.getParameterName();
+			switch (name) {
+			case "BXS_VATValidationService":
+				p_BXS_VATValidationService = para.getParameterAsString();
+				break;
+			case "ConcurrencyLevels":
+				p_ConcurrencyLevels = para.getParameterAsString();
+				break;
+			case "Requests":
+				p_Requests = para.getParameterAsInt();
+				break;
+			case "Port":
+				p_Port = para.getParameterAsInt();
+				break;
+			case "URL":
+				p_URL = para.getParameterAsString();
+				break;
+			case "LatencyMillis":
+				p_LatencyMillis = para.getParameterAsInt();
+				break;
+			case "LatencyJitterMillis":
+				p_LatencyJitterMillis = para.getParameterAsInt();
+				break;
+			case "ErrorPercent":
+				p_ErrorPercent = para.getParameterAsInt();
+				break;
+			case "ThrottlePercent":
+				p_ThrottlePercent = para.getParameterAsInt();
+				break;
+			case "InvalidPercent":
+				p_InvalidPercent = para.getParameterAsInt();
+				break;
+			case "MaxConcurrent":
+				p_MaxConcurrent = para.getParameterAsInt();
+				break;
+			default:
+				MProcessPara.validateUnknownParameter(getProcessInfo().getAD_Process_ID(), para);
+			}
+		}
+		if (Util.isEmpty(p_BXS_VATValidationService))
+			p_BXS_VATValidationService = VATValidationEngine.SERVICE_VIES;
+		if (Util.isEmpty(p_ConcurrencyLevels))
+			p_ConcurrencyLevels = "1,10,50";
+		if (p_Requests <= 0)
+			p_Requests = 1000;
+	}
+
+	@Override
+	protected String doIt() throws Exception {
+		if (p_Port <= 0 && (Util.isEmpty(p_URL, true) || VIESClient.CHECK_VATNUMBER_VIES_URL.equals(p_URL.trim()) 
+				|| EVatRClient.CHECK_VATNUMBER_EVATR_URL.equals(p_URL.trim())))
+			throw new AdempiereException("Load tests must not call the public services, set the port of the embedded stub or the URL of a stub server");
+
+		MOrgInfo orgInfo = MOrgInfo.get(Env.getAD_Org_ID(getCtx()));
+		ownTaxID = orgInfo != null ? orgInfo.getTaxID() : null;
+		if (Util.isEmpty(ownTaxID))
+			ownTaxID = OWN_TAX_ID;
+
+		int[] levels = Arrays.stream(p_ConcurrencyLevels.split(",")).map(String::trim)
+				.mapToInt(Integer::parseInt).filter(level -> level > 0).toArray();
+
+		VATStubServer stub = null;
+		try {
+			if (p_Port > 0) {
+				stub = new VATStubServer(p_Port);
+				stub.setLatency(p_LatencyMillis, p_LatencyJitterMillis);
+				stub.setErrorRate(p_ErrorPercent / 100d);
+				stub.setThrottleRate(p_ThrottlePercent / 100d);
+				stub.setInvalidRate(p_InvalidPercent / 100d);
+				stub.setMaxConcurrent(p_MaxConcurrent);
+				stub.start();
+				serviceURL = VATValidationEngine.SERVICE_EVATR.equals(p_BXS_VATValidationService) ? stub.getEVatRURL() : stub.getVIESURL();
+			} else {
+				serviceURL = p_URL.trim();
+			}
+			addLog("Stub " + serviceURL);
+
+			for (int level : levels) {
+				statusUpdate("Blocking " + level);
+				addLog(runBlocking(level).toString());
+				statusUpdate("Pipelined " + level);
+				addLog(runPipelined(level).toString());
+			}
+
+			if (stub != null)
+				addLog("Stub requests = " + stub.getRequestCount() + ", throttled = " + stub.getThrottledCount() 
+						+ ", errors = " + stub.getErrorCount());
+		} finally {
+			if (stub != null)
+				stub.stop();
+		}
+		return "@OK@";
+	}
+
+	/**
+	 * Blocking validations on a pool of threads
+	 */
+	private Run runBlocking(int concurrency) throws InterruptedException {
+		Run run = new Run("Blocking", concurrency, p_Requests);
+		ExecutorService executor = VATValidationEngine.newExecutor(concurrency, false, "VATLoadTest");
+		try {
+			for (int i = 0; i < p_Requests; i++) {
+				VATValidationRequest request = newRequest();
+				executor.execute(() -> {
+					long start = System.nanoTime();
+					try {
+						run.record(VATHttpTransport.join(VATValidationEngine.validateIsolated(request)), start);
+					} catch (Exception e) {
+						run.record(null, start);
+					}
+				});
+			}
+			executor.shutdown();
+			executor.awaitTermination(1, TimeUnit.HOURS);
+		} finally {
+			executor.shutdownNow();
+		}
+		return run.finish();
+	}
+
+	/**
+	 * Non blocking validations, at most concurrency in flight
+	 */
+	private Run runPipelined(int concurrency) throws InterruptedException {
+		Run run = new Run("Pipelined", concurrency, p_Requests);
+		Semaphore inFlight = new Semaphore(concurrency);
+		for (int i = 0; i < p_Requests; i++) {
+			VATValidationRequest request = newRequest();
+			inFlight.acquire();
+			long start = System.nanoTime();
+			CompletableFuture<VATValidationResult> validation;
+			try {
+				validation = VATValidationEngine.validateIsolated(request);
+			} catch (RuntimeException e) {
+				validation = CompletableFuture.failedFuture(e);
+			}
+			validation.whenComplete((result, e) -> {
+				run.record(result, start);
+				inFlight.release();
+			});
+		}
+		inFlight.acquire(concurrency);
+		return run.finish();
+	}
+
+	/**
+	 * Austrian tax ID with a valid check digit, it would pass the local
+	 * validation and is supported by both services
+	 */
+	private VATValidationRequest newRequest() {
+		String base = String.format("ATU%07d", sequence.incrementAndGet() % 10000000);
+		String taxID = null;
+		for (int digit = 0; digit <= 9 && taxID == null; digit++) {
+			if (TaxIDPreValidator.check(base + digit) == TaxIDPreValidator.Reason.OK)
+				taxID = base + digit;
+		}
+		VATValidationRequest request = new VATValidationRequest(taxID, p_BXS_VATValidationService);
+		request.setOwnTaxID(ownTaxID);
+		request.setName("Beispiel Handels GmbH");
+		request.setServiceURL(serviceURL);
+		return request;
+	}
+
+	/**
+	 * Latencies and outcomes of one level and mode
+	 */
+	private static class Run {
+
+		private final String mode;
+		private final int concurrency;
+		private final long[] latencies;
+		private final AtomicInteger count = new AtomicInteger();
+		private final AtomicInteger valid = new AtomicInteger();
+		private final AtomicInteger invalid = new AtomicInteger();
+		private final AtomicInteger errors = new AtomicInteger();
+		private final long start = System.nanoTime();
+		private long elapsed;
+
+		Run(String mode, int concurrency, int requests) {
+			this.mode = mode;
+			this.concurrency = concurrency;
+			this.latencies = new long[requests];
+		}
+
+		void record(VATValidationResult result, long startNanos) {
+			long latency = System.nanoTime() - startNanos;
+			if (result == null || result.isError())
+				errors.incrementAndGet();
+			else if (result.isValid())
+				valid.incrementAndGet();
+			else
+				invalid.incrementAndGet();
+			latencies[count.getAndIncrement()] = latency;
+		}
+
+		Run finish() {
+			elapsed = System.nanoTime() - start;
+			Arrays.sort(latencies, 0, count.get());
+			return this;
+		}
+
+		private double percentile(double p) {
+			int n = count.get();
+			if (n == 0)
+				return 0;
+			return latencies[Math.min(n - 1, (int) Math.ceil(p * n) - 1)] / 1e6;
+		}
+
+		@Override
+		public String toString() {
+			List<String> parts = new ArrayList<>();
+			parts.add(String.format("%s x%d: %.1f/s", mode, concurrency, count.get() * 1e9 / elapsed));
+			parts.add(String.format("p50 %.1fms, p95 %.1fms, p99 %.1fms, max %.1fms", 
+					percentile(0.50), percentile(0.95), percentile(0.99), percentile(1)));
+			parts.add("valid " + valid.get() + ", invalid " + invalid.get() + ", error " + errors.get());
+			return String.join(" | ", parts);
+		}
+	}
+}
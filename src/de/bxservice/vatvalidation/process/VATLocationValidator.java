@@ -0,0 +1,335 @@
+/**********************************************************************
+ * Copyright (C) Contributors                                          *
+ *                                                                     *
+ * This program is free software; you can redistribute it and/or       *
+ * modify it under the terms of the GNU General Public License         *
+ * as published by the Free Software Foundation; either version 2      *
+ * of the License, or (at your option) any later version.              *
+ *                                                                     *
+ * This program is distributed in the hope that it will be useful,     *
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of      *
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the        *
+ * GNU General Public License for more details.                        *
+ *                                                                     *
+ * You should have received a copy of the GNU General Public License   *
+ * along with this program; if not, write to the Free Software         *
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston,          *
+ * MA 02110-1301, USA.                                                 *
+ *                                                                     *
+ * Contributors:                                                       *
+ * - Diego Ruiz - Bx Service GmbH                                      *
+ **********************************************************************/
+package de.bxservice.vatvalidation.process;
+
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+
+import org.adempiere.exceptions.DBException;
+import org.compiere.model.MBPartner;
+import org.compiere.model.MOrg;
+import org.compiere.model.MOrgInfo;
+import org.compiere.model.MProcessPara;
+import org.compiere.model.MSysConfig;
+import org.compiere.process.ProcessInfoParameter;
+import org.compiere.process.SvrProcess;
+import org.compiere.util.DB;
+import org.compiere.util.Env;
+import org.compiere.util.Util;
+
+import de.bxservice.vatvalidation.model.VATLocationResultWriter;
+import de.bxservice.vatvalidation.model.VATResultWriter;
+import de.bxservice.vatvalidation.service.VATHttpTransport;
+import de.bxservice.vatvalidation.service.VATValidationEngine;
+import de.bxservice.vatvalidation.service.VATValidationRequest;
+import de.bxservice.vatvalidation.service.VATValidationResult;
+
+/**
+ * Validates with eVatR the tax ID of a partner, or of all partners matching
+ * the parameters, and confirms the name and address of each active location.
+ * The tax ID is checked once per partner, only valid numbers get a qualified
+ * check per location. All checks of a batch of partners run pipelined, the
+ * results of the locations are saved in BXS_VATLocationValidation.
+ */
+public class VATLocationValidator extends SvrProcess {
+
+	private static final String BATCH_SIZE_SYSCONFIG = "BXS_VAT_VALIDATION_BATCH_SIZE";
+
+	/* Organization, its tax ID is the own tax ID */
+	private int p_AD_Org_ID = 0;
+	/* Business Partner Group */
+	private int p_C_BP_Group_ID = 0;
+	/* Partners validated together */
+	private int p_BatchSize = 0;
+	/* Ignore cached results */
+	private boolean p_BXS_IsForceRefresh = false;
+
+	/* Own tax ID by organization, looked up once per run */
+	private final Map<Integer, String> ownTaxIDs = new HashMap<>();
+	/* Partners skipped by organization without own tax ID */
+	private final Map<Integer, Integer> missingOwnTaxIDs = new LinkedHashMap<>();
+	/* Assembled address by C_Location_ID */
+	private final Map<Integer, LocationAddress> addresses = new HashMap<>();
+
+	private int countValid = 0;
+	private int countInvalid = 0;
+	private int countError = 0;
+	private int countLocations = 0;
+	private int countMismatch = 0;
+
+	@Override
+	protected void prepare() {
+		for (ProcessInfoParameter para : getParameter()) {
+			String name = para.getParameterName();
+			switch (name) {
+			case "AD_Org_ID":
+				p_AD_Org_ID = para.getParameterAsInt();
+				break;
+			case "C_BP_Group_ID":
+				p_C_BP_Group_ID = para.getParameterAsInt();
+				break;
+			case "BatchSize":
+				p_BatchSize = para.getParameterAsInt();
+				break;
+			case "BXS_IsForceRefresh":
+				p_BXS_IsForceRefresh = para.getParameterAsBoolean();
+				break;
+			default:
+				MProcessPara.validateUnknownParameter(getProcessInfo().getAD_Process_ID(), para);
+			}
+		}
+		if (p_BatchSize <= 0)
+			p_BatchSize = MSysConfig.getIntValue(BATCH_SIZE_SYSCONFIG, 100, getAD_Client_ID());
+	}
+
+	@Override
+	protected String doIt() throws Exception {
+		int C_BPartner_ID = getTable_ID() == MBPartner.Table_ID ? getRecord_ID() : 0;
+		List<PartnerLocations> partners = getPartners(C_BPartner_ID);
+		statusUpdate("@C_BPartner_ID@ = " + partners.size());
+
+		try (VATResultWriter writer = new VATResultWriter(getAD_Client_ID(), p_BatchSize, null, getAD_User_ID());
+				VATLocationResultWriter locationWriter = new VATLocationResultWriter(getAD_Client_ID(), p_BatchSize, getAD_User_ID())) {
+			for (int start = 0; start < partners.size(); start += p_BatchSize) {
+				List<PartnerLocations> batch = partners.subList(start, Math.min(partners.size(), start + p_BatchSize));
+				List<CompletableFuture<PartnerOutcome>> outcomes = new ArrayList<>(batch.size());
+				for (PartnerLocations partner : batch) {
+					String ownTaxID = getOwnTaxID(partner.orgID());
+					if (ownTaxID != null)
+						outcomes.add(validate(partner, ownTaxID));
+				}
+				for (CompletableFuture<PartnerOutcome> outcome : outcomes)
+					save(outcome.join(), writer, locationWriter);
+				statusUpdate(Math.min(partners.size(), start + p_BatchSize) + " / " + partners.size());
+			}
+		}
+
+		// eVatR needs the own tax ID, the other organizations are still validated
+		for (Map.Entry<Integer, Integer> missing : missingOwnTaxIDs.entrySet()) {
+			MOrg org = MOrg.get(missing.getKey());
+			addLog("@NotFound@ @TaxID@ - @AD_Org_ID@ " + (org != null ? org.getName() : missing.getKey()) 
+					+ ": " + missing.getValue() + " @C_BPartner_ID@");
+		}
+
+		return "@BXS_ValidVATNumber@ = " + countValid + ", @BXS_ErrorVATNumber@ = " + countInvalid + ", @Error@ = " + countError
+				+ ", @C_BPartner_Location_ID@ = " + countLocations + " (" + countMismatch + " @BXS_ErrorVATNumber@)";
+	}
+
+	/**
+	 * Starts the check of the tax ID, once it is valid the qualified
+	 * checks of all the locations are started together
+	 */
+	private CompletableFuture<PartnerOutcome> validate(PartnerLocations partner, String ownTaxID) {
+		VATValidationRequest request = newRequest(partner, ownTaxID);
+		return validateAsync(request).thenCompose(result -> {
+			if (!result.isValid() || partner.locations().isEmpty())
+				return CompletableFuture.completedFuture(new PartnerOutcome(partner, result, List.of()));
+
+			List<CompletableFuture<LocationOutcome>> locations = new ArrayList<>(partner.locations().size());
+			for (PartnerLocation location : partner.locations()) {
+				VATValidationRequest qualified = newRequest(partner, ownTaxID);
+				LocationAddress address = location.address();
+				qualified.setAddress(address.city(), address.postal(), address.street());
+				locations.add(validateAsync(qualified).thenApply(r -> new LocationOutcome(location, r)));
+			}
+			return CompletableFuture.allOf(locations.toArray(new CompletableFuture[0])).thenApply(x -> {
+				List<LocationOutcome> results = new ArrayList<>(locations.size());
+				for (CompletableFuture<LocationOutcome> location : locations)
+					results.add(location.join());
+				return new PartnerOutcome(partner, result, results);
+			});
+		});
+	}
+
+	private VATValidationRequest newRequest(PartnerLocations partner, String ownTaxID) {
+		VATValidationRequest request = new VATValidationRequest(partner.taxID(), VATValidationEngine.SERVICE_EVATR);
+		request.setOwnTaxID(ownTaxID);
+		request.setName(partner.name());
+		request.setForceRefresh(p_BXS_IsForceRefresh);
+		return request;
+	}
+
+	private CompletableFuture<VATValidationResult> validateAsync(VATValidationRequest request) {
+		try {
+			return VATValidationEngine.validateAsync(request)
+					.exceptionally(e -> VATValidationResult.error(request, VATHttpTransport.toAdempiereException(e)));
+		} catch (RuntimeException e) {
+			return CompletableFuture.completedFuture(VATValidationResult.error(request, e));
+		}
+	}
+
+	private void save(PartnerOutcome outcome, VATResultWriter writer, VATLocationResultWriter locationWriter) {
+		PartnerLocations partner = outcome.partner();
+		VATValidationResult result = outcome.result();
+		if (result.isError()) {
+			countError++;
+			addBufferLog(0, null, null, partner.value() + " -> @Error@ " + result.getErrorMessage(), MBPartner.Table_ID, partner.id());
+			writer.add(partner.id(), result, null);
+			return;
+		}
+		writer.add(partner.id(), result, null);
+		if (!result.isValid()) {
+			countInvalid++;
+			for (String message : result.getMessages(getCtx()))
+				addBufferLog(0, null, null, partner.value() + ": " + message, MBPartner.Table_ID, partner.id());
+			return;
+		}
+
+		countValid++;
+		for (LocationOutcome location : outcome.locations()) {
+			VATValidationResult locationResult = location.result();
+			if (locationResult.isError()) {
+				countError++;
+				addBufferLog(0, null, null, partner.value() + " / " + location.location().name() + " -> @Error@ " 
+						+ locationResult.getErrorMessage(), MBPartner.Table_ID, partner.id());
+				continue;
+			}
+			countLocations++;
+			locationWriter.add(partner.orgID(), partner.id(), location.location().id(), locationResult);
+			if (isMismatch(locationResult)) {
+				countMismatch++;
+				for (String message : locationResult.getMessages(getCtx()))
+					addBufferLog(0, null, null, partner.value() + " / " + location.location().name() + ": " + message, 
+							MBPartner.Table_ID, partner.id());
+			}
+		}
+	}
+
+	/**
+	 * @return true if eVatR did not confirm a field of the location, B = does not match
+	 */
+	private boolean isMismatch(VATValidationResult result) {
+		return !result.isValid() || "B".equals(result.getErgName()) || "B".equals(result.getErgCity()) 
+				|| "B".equals(result.getErgPostal()) || "B".equals(result.getErgStreet());
+	}
+
+	/**
+	 * The own tax ID of the organization parameter, otherwise of the partner organization
+	 * @return own tax ID or null if the organization has none, the partner is counted as skipped
+	 */
+	private String getOwnTaxID(int partnerOrgID) {
+		int orgID = p_AD_Org_ID > 0 ? p_AD_Org_ID : (partnerOrgID > 0 ? partnerOrgID : Env.getAD_Org_ID(getCtx()));
+		String ownTaxID = ownTaxIDs.get(orgID);
+		if (ownTaxID == null && !missingOwnTaxIDs.containsKey(orgID)) {
+			MOrgInfo orgInfo = MOrgInfo.get(orgID);
+			ownTaxID = orgInfo != null ? orgInfo.getTaxID() : null;
+			if (!Util.isEmpty(ownTaxID, true))
+				ownTaxIDs.put(orgID, ownTaxID.trim());
+			else
+				ownTaxID = null;
+		}
+		if (ownTaxID == null)
+			missingOwnTaxIDs.merge(orgID, 1, Integer::sum);
+		return ownTaxID;
+	}
+
+	/**
+	 * Partners with their active locations, one query for all of them
+	 * @param C_BPartner_ID single partner or 0 for all matching the parameters
+	 */
+	private List<PartnerLocations> getPartners(int C_BPartner_ID) {
+		StringBuilder sql = new StringBuilder("SELECT p.C_BPartner_ID, p.Value, p.Name, p.TaxID, p.AD_Org_ID,")
+				.append(" bpl.C_BPartner_Location_ID, bpl.Name, l.C_Location_ID, l.City, l.Postal, l.Postal_Add,")
+				.append(" l.Address1, l.Address2, l.Address3, l.Address4, l.Address5")
+				.append(" FROM C_BPartner p")
+				.append(" LEFT OUTER JOIN C_BPartner_Location bpl ON (bpl.C_BPartner_ID=p.C_BPartner_ID AND bpl.IsActive='Y')")
+				.append(" LEFT OUTER JOIN C_Location l ON (l.C_Location_ID=bpl.C_Location_ID)")
+				.append(" WHERE p.AD_Client_ID=? AND p.TaxID IS NOT NULL");
+		List<Object> params = new ArrayList<>();
+		params.add(getAD_Client_ID());
+		if (C_BPartner_ID > 0) {
+			sql.append(" AND p.C_BPartner_ID=?");
+			params.add(C_BPartner_ID);
+		} else {
+			sql.append(" AND p.IsActive='Y'");
+			if (p_AD_Org_ID > 0) {
+				sql.append(" AND p.AD_Org_ID IN (0,?)");
+				params.add(p_AD_Org_ID);
+			}
+			if (p_C_BP_Group_ID > 0) {
+				sql.append(" AND p.C_BP_Group_ID=?");
+				params.add(p_C_BP_Group_ID);
+			}
+		}
+		sql.append(" ORDER BY p.C_BPartner_ID, bpl.C_BPartner_Location_ID");
+
+		Map<Integer, PartnerLocations> partners = new LinkedHashMap<>();
+		PreparedStatement pstmt = null;
+		ResultSet rs = null;
+		try {
+			pstmt = DB.prepareStatement(sql.toString(), get_TrxName());
+			DB.setParameters(pstmt, params);
+			rs = pstmt.executeQuery();
+			while (rs.next()) {
+				int partnerID = rs.getInt(1);
+				PartnerLocations partner = partners.get(partnerID);
+				if (partner == null) {
+					partner = new PartnerLocations(partnerID, rs.getString(2), rs.getString(3), rs.getString(4).trim(), 
+							rs.getInt(5), new ArrayList<>());
+					partners.put(partnerID, partner);
+				}
+				int locationID = rs.getInt(6);
+				int C_Location_ID = rs.getInt(8);
+				if (locationID > 0 && C_Location_ID > 0)
+					partner.locations().add(new PartnerLocation(locationID, rs.getString(7), getAddress(C_Location_ID, rs)));
+			}
+		} catch (SQLException e) {
+			throw new DBException(e, sql.toString());
+		} finally {
+			DB.close(rs, pstmt);
+		}
+		return new ArrayList<>(partners.values());
+	}
+
+	private LocationAddress getAddress(int C_Location_ID, ResultSet rs) throws SQLException {
+		LocationAddress address = addresses.get(C_Location_ID);
+		if (address == null) {
+			address = new LocationAddress(rs.getString(9), 
+					VATValidationRequest.getPostal(rs.getString(10), rs.getString(11)),
+					VATValidationRequest.getStreet(rs.getString(12), rs.getString(13), rs.getString(14), rs.getString(15), rs.getString(16)));
+			addresses.put(C_Location_ID, address);
+		}
+		return address;
+	}
+
+	private record LocationAddress(String city, String postal, String street) {
+	}
+
+	private record PartnerLocation(int id, String name, LocationAddress address) {
+	}
+
+	private record PartnerLocations(int id, String value, String name, String taxID, int orgID, List<PartnerLocation> locations) {
+	}
+
+	private record LocationOutcome(PartnerLocation location, VATValidationResult result) {
+	}
+
+	private record PartnerOutcome(PartnerLocations partner, VATValidationResult result, List<LocationOutcome> locations) {
+	}
+}
@@ -0,0 +1,50 @@
+/**********************************************************************
+ * Copyright (C) Contributors                                          *
+ *                                                                     *
+ * This program is free software; you can redistribute it and/or       *
+ * modify it under the terms of the GNU General Public License         *
+ * as published by the Free Software Foundation; either version 2      *
+ * of the License, or (at your option) any later version.              *
+ *                                                                     *
+ * This program is distributed in the hope that it will be useful,     *
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of      *
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the        *
+ * GNU General Public License for more details.                        *
+ *                                                                     *
+ * You should have received a copy of the GNU General Public License   *
+ * along with this program; if not, write to the Free Software         *
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston,          *
+ * MA 02110-1301, USA.                                                 *
+ *                                                                     *
+ * Contributors:                                                       *
+ * - Diego Ruiz - Bx Service GmbH                                      *
+ **********************************************************************/
+package de.bxservice.vatvalidation.process;
+
+import org.compiere.model.MSysConfig;
+
+/**
+ * Incremental re-validation of VAT numbers, meant to be run by a scheduler.
+ * Each run validates again only the oldest validations, within a time budget,
+ * so numbers deregistered since their last check are found without a full sweep.
+ * Partners the service could not answer are tried again after the others.
+ */
+public class VATRevalidator extends VATBulkValidator {
+
+	private static final String MAX_AGE_DAYS_SYSCONFIG = "BXS_VAT_REVALIDATION_MAX_AGE_DAYS";
+	private static final String MAX_PARTNERS_SYSCONFIG = "BXS_VAT_REVALIDATION_MAX_PARTNERS";
+	private static final String TIME_BUDGET_SYSCONFIG = "BXS_VAT_REVALIDATION_TIME_BUDGET_SECONDS";
+
+	@Override
+	protected void prepare() {
+		super.prepare();
+		if (p_BXS_MaxAgeDays <= 0)
+			p_BXS_MaxAgeDays = MSysConfig.getIntValue(MAX_AGE_DAYS_SYSCONFIG, 30, getAD_Client_ID());
+		if (p_MaxRecords <= 0)
+			p_MaxRecords = MSysConfig.getIntValue(MAX_PARTNERS_SYSCONFIG, 500, getAD_Client_ID());
+		if (p_BXS_TimeBudgetSeconds <= 0)
+			p_BXS_TimeBudgetSeconds = MSysConfig.getIntValue(TIME_BUDGET_SYSCONFIG, 600, getAD_Client_ID());
+		// a re-validation must ask the service again
+		p_BXS_IsForceRefresh = true;
+	}
+}
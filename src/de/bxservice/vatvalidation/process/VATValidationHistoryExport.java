@@ -0,0 +1,186 @@
+/**********************************************************************
+ * Copyright (C) Contributors                                          *
+ *                                                                     *
+ * This program is free software; you can redistribute it and/or       *
+ * modify it under the terms of the GNU General Public License         *
+ * as published by the Free Software Foundation; either version 2      *
+ * of the License, or (at your option) any later version.              *
+ *                                                                     *
+ * This program is distributed in the hope that it will be useful,     *
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of      *
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the        *
+ * GNU General Public License for more details.                        *
+ *                                                                     *
+ * You should have received a copy of the GNU General Public License   *
+ * along with this program; if not, write to the Free Software         *
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston,          *
+ * MA 02110-1301, USA.                                                 *
+ *                                                                     *
+ * Contributors:                                                       *
+ * - Diego Ruiz - Bx Service GmbH                                      *
+ **********************************************************************/
+package de.bxservice.vatvalidation.process;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.ResultSetMetaData;
+import java.sql.SQLException;
+import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.adempiere.exceptions.DBException;
+import org.compiere.model.MProcessPara;
+import org.compiere.model.MRole;
+import org.compiere.process.ProcessInfoParameter;
+import org.compiere.process.SvrProcess;
+import org.compiere.util.DB;
+import org.compiere.util.Trx;
+
+import de.bxservice.vatvalidation.model.BusinessPartnerUtils;
+import de.bxservice.vatvalidation.model.VATValidationHistory;
+
+/**
+ * Exports the validation history as CSV for tax audits.
+ * The rows are read with a forward only cursor and written while they are
+ * fetched, so millions of checks are exported without holding them in memory.
+ */
+public class VATValidationHistoryExport extends SvrProcess {
+
+	private static final String SEPARATOR = ";";
+
+	/* Validation date range */
+	private Timestamp p_DateFrom = null;
+	private Timestamp p_DateTo = null;
+	/* Business Partner */
+	private int p_C_BPartner_ID = 0;
+	/* Organization */
+	private int p_AD_Org_ID = 0;
+	/* Rows fetched per round trip */
+	private int p_FetchSize = 0;
+
+	@Override
+	protected void prepare() {
+		for (ProcessInfoParameter para : getParameter()) {
+			String name = para.getParameterName();
+			switch (name) {
+			case BusinessPartnerUtils.DATE_VAT_VALIDATED_COLUMNNAME:
+				p_DateFrom = para.getParameterAsTimestamp();
+				p_DateTo = para.getParameter_ToAsTimestamp();
+				break;
+			case "C_BPartner_ID":
+				p_C_BPartner_ID = para.getParameterAsInt();
+				break;
+			case "AD_Org_ID":
+				p_AD_Org_ID = para.getParameterAsInt();
+				break;
+			case "FetchSize":
+				p_FetchSize = para.getParameterAsInt();
+				break;
+			default:
+				MProcessPara.validateUnknownParameter(getProcessInfo().getAD_Process_ID(), para);
+			}
+		}
+		if (p_FetchSize <= 0)
+			p_FetchSize = 1000;
+	}
+
+	@Override
+	protected String doIt() throws Exception {
+		StringBuilder sql = new StringBuilder("SELECT bp.Value AS BPartnerValue, h.TaxID, h.BXS_OwnTaxID, h.BXS_VATValidationService, h.")
+				.append(BusinessPartnerUtils.DATE_VAT_VALIDATED_COLUMNNAME).append(", h.").append(BusinessPartnerUtils.IS_VALID_VAT_COLUMNNAME)
+				.append(", h.BXS_ErrorCode, h.BXS_Erg_Name, h.BXS_Erg_Ort, h.BXS_Erg_PLZ, h.BXS_Erg_Str, h.BXS_ValidFrom, h.BXS_ValidTo,")
+				.append(" h.Name, h.BXS_Address, bpl.Name AS LocationName")
+				.append(" FROM ").append(VATValidationHistory.Table_Name).append(" h")
+				.append(" INNER JOIN C_BPartner bp ON (bp.C_BPartner_ID=h.C_BPartner_ID)")
+				.append(" LEFT OUTER JOIN C_BPartner_Location bpl ON (bpl.C_BPartner_Location_ID=h.C_BPartner_Location_ID)")
+				.append(" WHERE h.AD_Client_ID=?");
+		List<Object> params = new ArrayList<>();
+		params.add(getAD_Client_ID());
+		if (p_DateFrom != null) {
+			sql.append(" AND h.").append(BusinessPartnerUtils.DATE_VAT_VALIDATED_COLUMNNAME).append(">=?");
+			params.add(p_DateFrom);
+		}
+		if (p_DateTo != null) {
+			// the date range includes the whole last day
+			sql.append(" AND h.").append(BusinessPartnerUtils.DATE_VAT_VALIDATED_COLUMNNAME).append("<?");
+			params.add(new Timestamp(p_DateTo.getTime() + 24 * 60 * 60 * 1000L));
+		}
+		if (p_C_BPartner_ID > 0) {
+			sql.append(" AND h.C_BPartner_ID=?");
+			params.add(p_C_BPartner_ID);
+		}
+		if (p_AD_Org_ID > 0) {
+			sql.append(" AND h.AD_Org_ID=?");
+			params.add(p_AD_Org_ID);
+		}
+		// only the organizations and partners the role can access
+		String accessSQL = MRole.getDefault(getCtx(), false).addAccessSQL(sql.toString(), "h", MRole.SQL_FULLYQUALIFIED, MRole.SQL_RO);
+		sql = new StringBuilder(accessSQL);
+		sql.append(" ORDER BY h.").append(BusinessPartnerUtils.DATE_VAT_VALIDATED_COLUMNNAME)
+			.append(", h.").append(VATValidationHistory.Table_Name).append("_ID");
+
+		File file = File.createTempFile(VATValidationHistory.Table_Name + "_", ".csv");
+		int rows = 0;
+		// PostgreSQL only uses a cursor for the fetch size outside of auto commit
+		Trx trx = Trx.get(Trx.createTrxName("VATValidationHistoryExport"), true);
+		PreparedStatement pstmt = null;
+		ResultSet rs = null;
+		try (Writer writer = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(file), StandardCharsets.UTF_8), 64 * 1024)) {
+			pstmt = DB.prepareStatement(sql.toString(), ResultSet.TYPE_FORWARD_ONLY, ResultSet.CONCUR_READ_ONLY, trx.getTrxName());
+			pstmt.setFetchSize(p_FetchSize);
+			DB.setParameters(pstmt, params);
+			rs = pstmt.executeQuery();
+
+			ResultSetMetaData meta = rs.getMetaData();
+			int columns = meta.getColumnCount();
+			for (int i = 1; i <= columns; i++) {
+				if (i > 1)
+					writer.write(SEPARATOR);
+				writer.write(meta.getColumnLabel(i));
+			}
+			writer.write("\n");
+
+			while (rs.next()) {
+				for (int i = 1; i <= columns; i++) {
+					if (i > 1)
+						writer.write(SEPARATOR);
+					writeValue(writer, rs.getString(i));
+				}
+				writer.write("\n");
+				if (++rows % 100000 == 0)
+					statusUpdate(String.valueOf(rows));
+			}
+		} catch (SQLException e) {
+			throw new DBException(e, sql.toString());
+		} finally {
+			DB.close(rs, pstmt);
+			trx.rollback();
+			trx.close();
+		}
+
+		getProcessInfo().setExport(true);
+		getProcessInfo().setExportFile(file);
+		getProcessInfo().setExportFileExtension("csv");
+		return "@BXS_Exported@ = " + rows;
+	}
+
+	private static void writeValue(Writer writer, String value) throws IOException {
+		if (value == null)
+			return;
+		if (value.contains(SEPARATOR) || value.indexOf('"') >= 0 || value.indexOf('\n') >= 0 || value.indexOf('\r') >= 0) {
+			writer.write('"');
+			writer.write(value.replace("\"", "\"\""));
+			writer.write('"');
+		} else {
+			writer.write(value);
+		}
+	}
+}
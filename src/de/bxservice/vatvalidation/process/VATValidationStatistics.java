@@ -0,0 +1,72 @@
+/**********************************************************************
+ * Copyright (C) Contributors                                          *
+ *                                                                     *
+ * This program is free software; you can redistribute it and/or       *
+ * modify it under the terms of the GNU General Public License         *
+ * as published by the Free Software Foundation; either version 2      *
+ * of the License, or (at your option) any later version.              *
+ *                                                                     *
+ * This program is distributed in the hope that it will be useful,     *
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of      *
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the        *
+ * GNU General Public License for more details.                        *
+ *                                                                     *
+ * You should have received a copy of the GNU General Public License   *
+ * along with this program; if not, write to the Free Software         *
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston,          *
+ * MA 02110-1301, USA.                                                 *
+ *                                                                     *
+ * Contributors:                                                       *
+ * - Diego Ruiz - Bx Service GmbH                                      *
+ **********************************************************************/
+package de.bxservice.vatvalidation.process;
+
+import java.math.BigDecimal;
+
+import org.compiere.model.MProcessPara;
+import org.compiere.process.ProcessInfoParameter;
+import org.compiere.process.SvrProcess;
+
+import de.bxservice.vatvalidation.service.VATValidationMetrics;
+
+/**
+ * Reports the validation metrics collected by this server since
+ * the start or the last reset, the same figures are available through JMX
+ */
+public class VATValidationStatistics extends SvrProcess {
+
+	/* Reset the metrics after reporting them */
+	private boolean p_IsReset = false;
+
+	@Override
+	protected void prepare() {
+		for (ProcessInfoParameter para : getParameter()) {
+			String name = para.getParameterName();
+			switch (name) {
+			case "IsReset":
+				p_IsReset = para.getParameterAsBoolean();
+				break;
+			default:
+				MProcessPara.validateUnknownParameter(getProcessInfo().getAD_Process_ID(), para);
+			}
+		}
+	}
+
+	@Override
+	protected String doIt() throws Exception {
+		VATValidationMetrics metrics = VATValidationMetrics.get();
+		for (VATValidationMetrics.Statistic statistic : metrics.getSnapshot())
+			addLog(0, null, BigDecimal.valueOf(statistic.count()), statistic.toString());
+
+		addLog("Cache hits = " + metrics.getCacheHits() + ", misses = " + metrics.getCacheMisses() 
+				+ ", ratio = " + Math.round(metrics.getCacheHitRatio() * 1000) / 10.0 + "%");
+		addLog("Coalesced calls = " + metrics.getCoalescedCalls() + ", in flight = " + metrics.getInFlight());
+		for (String breaker : metrics.getCircuitBreakers())
+			addLog(breaker);
+
+		long remoteCalls = metrics.getRemoteCalls();
+		if (p_IsReset)
+			metrics.reset();
+		return "@OK@ " + remoteCalls;
+	}
+}
@@ -0,0 +1,271 @@
+/**********************************************************************
+ * Copyright (C) Contributors                                          *
+ *                                                                     *
+ * This program is free software; you can redistribute it and/or       *
+ * modify it under the terms of the GNU General Public License         *
+ * as published by the Free Software Foundation; either version 2      *
+ * of the License, or (at your option) any later version.              *
+ *                                                                     *
+ * This program is distributed in the hope that it will be useful,     *
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of      *
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the        *
+ * GNU General Public License for more details.                        *
+ *                                                                     *
+ * You should have received a copy of the GNU General Public License   *
+ * along with this program; if not, write to the Free Software         *
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston,          *
+ * MA 02110-1301, USA.                                                 *
+ *                                                                     *
+ * Contributors:                                                       *
+ * - Diego Ruiz - Bx Service GmbH                                      *
+ **********************************************************************/
+package de.bxservice.vatvalidation.service;
+
+import java.net.URI;
+import java.net.URLEncoder;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.CompletableFuture;
+
+import org.adempiere.exceptions.AdempiereException;
+import org.compiere.model.MSysConfig;
+import org.compiere.util.Util;
+import org.osgi.service.component.annotations.Component;
+
+/**
+ * Validates VAT numbers using the eVatR XML-RPC interface
+ * of the German Federal Central Tax Office (BZSt)
+ */
+@Component(service = IVATValidationProvider.class)
+public class EVatRClient implements IVATValidationProvider {
+
+	public final static String CHECK_VATNUMBER_EVATR_URL = "https://evatr.bff-online.de/evatrRPC"; 
+
+	private final static int STATUS_OK = 200;
+
+	private final static String CONCURRENCY_SYSCONFIG = "BXS_VAT_CONCURRENCY_EVATR";
+	/** Endpoint of the check, i.e. to test against a stub server */
+	private final static String URL_SYSCONFIG = "BXS_VAT_EVATR_URL";
+
+	@Override
+	public String getService() {
+		return VATValidationEngine.SERVICE_EVATR;
+	}
+
+	/**
+	 * eVatR confirms foreign VAT numbers to companies with a German VAT number
+	 */
+	@Override
+	public boolean isSupported(VATValidationRequest request) {
+		String ownTaxID = request.getOwnTaxID();
+		String countryCode = request.getCountryCode();
+		return ownTaxID != null && ownTaxID.toUpperCase().startsWith("DE")
+				&& countryCode != null && !request.getVATNumber().isEmpty() && !"DE".equals(countryCode);
+	}
+
+	@Override
+	public int getMaxConcurrency() {
+		return MSysConfig.getIntValue(CONCURRENCY_SYSCONFIG, 5);
+	}
+
+	@Override
+	public int getCost() {
+		return 20;
+	}
+
+	/**
+	 * Validates the VAT number against eVatR blocking the calling thread
+	 * @param request validation request, the own tax ID is mandatory
+	 * @return result
+	 */
+	public VATValidationResult validate(VATValidationRequest request) {
+		return VATHttpTransport.join(validateAsync(request));
+	}
+
+	/**
+	 * Validates the VAT number against eVatR without blocking the calling thread.
+	 * Cancelling the returned future aborts the HTTP exchange
+	 * @param request validation request, the own tax ID is mandatory
+	 * @return future result
+	 */
+	@Override
+	public CompletableFuture<VATValidationResult> validateAsync(VATValidationRequest request) {
+		String url = getRequestURL(request.getServiceURL() != null ? request.getServiceURL() : getServiceURL(), 
+				request.getOwnTaxID(), request.getTaxID(), request.getName(), request.getCity(), request.getPostal(), request.getStreet());
+		// the body is parsed once fully received, reading a stream would block the HTTP client threads
+		CompletableFuture<HttpResponse<byte[]>> exchange = sendAsync(url, HttpResponse.BodyHandlers.ofByteArray());
+		CompletableFuture<VATValidationResult> result = exchange.thenApply(response -> parseResponseEVATR(request, response));
+		result.whenComplete((r, e) -> {
+			if (result.isCancelled())
+				exchange.cancel(true);
+		});
+		return result;
+	}
+
+	/**
+	 * Method to validate a VAT number using the BZSt eVatR site
+	 * @param ownVAT
+	 * @param vatNumberToCheck
+	 * @param strasse 
+	 * @param plz 
+	 * @param ort 
+	 * @param firmenName 
+	 * @return XML response
+	 */
+	public static String validateVATEVATR(String ownVAT, String vatNumberToCheck, String firmenName, String ort, String plz, String strasse) {
+		String url = getRequestURL(ownVAT, vatNumberToCheck, firmenName, ort, plz, strasse);
+		return getBody(VATHttpTransport.join(sendAsync(url, HttpResponse.BodyHandlers.ofString(StandardCharsets.UTF_8))));
+	}
+
+	/**
+	 * Construct the full URL with the required parameters
+	 * @return eVatR URL for the request
+	 */
+	public static String getRequestURL(String ownVAT, String vatNumberToCheck, String firmenName, String ort, String plz, String strasse) {
+		return getRequestURL(getServiceURL(), ownVAT, vatNumberToCheck, firmenName, ort, plz, strasse);
+	}
+
+	private static String getRequestURL(String serviceURL, String ownVAT, String vatNumberToCheck, String firmenName, String ort, String plz, String strasse) {
+		StringBuilder fullUrl = new StringBuilder(serviceURL);
+		fullUrl.append("?UstId_1=").append(URLEncoder.encode(ownVAT, StandardCharsets.UTF_8));
+		fullUrl.append("&UstId_2=").append(URLEncoder.encode(vatNumberToCheck, StandardCharsets.UTF_8));
+		fullUrl.append("&Firmenname=");
+		if (!Util.isEmpty(firmenName))
+			fullUrl.append(URLEncoder.encode(firmenName, StandardCharsets.UTF_8));
+		fullUrl.append("&Ort=");
+		if (!Util.isEmpty(ort))
+			fullUrl.append(URLEncoder.encode(ort, StandardCharsets.UTF_8));
+		fullUrl.append("&PLZ=");
+		if (!Util.isEmpty(plz))
+			fullUrl.append(URLEncoder.encode(plz, StandardCharsets.UTF_8));
+		fullUrl.append("&Strasse=");
+		if (!Util.isEmpty(strasse))
+			fullUrl.append(URLEncoder.encode(strasse, StandardCharsets.UTF_8));
+		return fullUrl.toString();
+	}
+
+	/**
+	 * @return configured eVatR endpoint, the public one by default
+	 */
+	public static String getServiceURL() {
+		return MSysConfig.getValue(URL_SYSCONFIG, CHECK_VATNUMBER_EVATR_URL);
+	}
+
+	private static <T> CompletableFuture<HttpResponse<T>> sendAsync(String url, HttpResponse.BodyHandler<T> bodyHandler) {
+		VATHttpTransport transport = VATHttpTransport.get();
+		HttpRequest httpRequest = transport.newRequest(URI.create(url)).GET().build();
+		return transport.sendAsync(httpRequest, bodyHandler);
+	}
+
+	private static String getBody(HttpResponse<String> response) {
+		if (response.statusCode() != STATUS_OK)
+			throw new AdempiereException("eVatR HTTP status " + response.statusCode());
+		return response.body();
+	}
+
+	/**
+	 * Parses the received bytes, the encoding is taken from the XML declaration
+	 * @param request
+	 * @param response response with the complete body
+	 * @return
+	 */
+	private static VATValidationResult parseResponseEVATR(VATValidationRequest request, HttpResponse<byte[]> response) {
+		if (response.statusCode() != STATUS_OK)
+			throw new AdempiereException("eVatR HTTP status " + response.statusCode());
+		return toResult(request, EVatRResponseParser.parse(response.body()));
+	}
+
+	/**
+	 * Method to parse the XML response from the BZSt eVatR site
+	 * @param request
+	 * @param response
+	 * @return
+	 */
+	public static VATValidationResult parseResponseEVATR(VATValidationRequest request, String response) {
+		return toResult(request, EVatRResponseParser.parse(response));
+	}
+
+	/**
+	 * Only the known codes about the requested number give a result,
+	 * a missing or unknown code is retried as the answer says nothing about the number
+	 */
+	private static VATValidationResult toResult(VATValidationRequest request, EVatRResponse eVatRResponse) {
+		String errorCode = eVatRResponse.getErrorCode();
+		if (isRequestErrorCode(errorCode))
+			throw new VATServiceException("eVatR " + request.getTaxID() + " -> " + errorCode, 
+					VATValidationEngine.SERVICE_EVATR, errorCode, false);
+		if (!isValidErrorCode(errorCode) && !isInvalidErrorCode(errorCode))
+			throw new VATServiceException("eVatR " + request.getTaxID() + " -> " + (errorCode != null ? errorCode : "no error code"), 
+					VATValidationEngine.SERVICE_EVATR, errorCode, true);
+
+		VATValidationResult result = new VATValidationResult(request, 
+				isValidErrorCode(errorCode) ? VATValidationResult.Status.VALID : VATValidationResult.Status.INVALID);
+		result.setErrorCode(errorCode);
+		result.setErgName(eVatRResponse.getErgName());
+		result.setErgCity(eVatRResponse.getErgOrt());
+		result.setErgPostal(eVatRResponse.getErgPLZ());
+		result.setErgStreet(eVatRResponse.getErgStr());
+		result.setValidFrom(eVatRResponse.getGueltigAb());
+		result.setValidTo(eVatRResponse.getGueltigBis());
+		return result;
+	}
+
+	/**
+	 * 205 member state unavailable, 208 the same number is being checked by another user,
+	 * 217 processing error in the member state, 999 service unavailable.
+	 * Missing and unknown codes are retried as well
+	 * @param errorCode eVatR error code
+	 * @return true if the request can be retried later
+	 */
+	public static boolean isRetryableErrorCode(String errorCode) {
+		return !isRequestErrorCode(errorCode) && !isValidErrorCode(errorCode) && !isInvalidErrorCode(errorCode);
+	}
+
+	/**
+	 * Errors of the request itself, they say nothing about the requested number:
+	 * 206 own VAT number invalid, 213 not entitled, 214 own VAT number wrong format,
+	 * 215 missing parameters
+	 * @param errorCode eVatR error code
+	 * @return true if the request was not processed
+	 */
+	public static boolean isRequestErrorCode(String errorCode) {
+		return "206".equals(errorCode) || "213".equals(errorCode) || "214".equals(errorCode) || "215".equals(errorCode);
+	}
+
+	/**
+	 * 200 means valid, 216, 218, 219 and 223 mean valid with
+	 * qualified confirmation not (fully) available
+	 * @param errorCode eVatR error code
+	 * @return true if the code confirms a valid VAT number
+	 */
+	public static boolean isValidErrorCode(String errorCode) {
+		return "200".equals(errorCode) || "216".equals(errorCode) || "218".equals(errorCode) || "219".equals(errorCode) || "223".equals(errorCode);
+	}
+
+	/**
+	 * 201 invalid, 202 not registered, 203 not valid yet, 204 no longer valid,
+	 * 209 wrong format for the member state, 210 wrong check digit, 211 invalid characters,
+	 * 212 invalid country code, 221 invalid request data for the number
+	 * @param errorCode eVatR error code
+	 * @return true if the code says the VAT number is not valid
+	 */
+	public static boolean isInvalidErrorCode(String errorCode) {
+		if (errorCode == null)
+			return false;
+		switch (errorCode) {
+		case "201":
+		case "202":
+		case "203":
+		case "204":
+		case "209":
+		case "210":
+		case "211":
+		case "212":
+		case "221":
+			return true;
+		default:
+			return false;
+		}
+	}
+}
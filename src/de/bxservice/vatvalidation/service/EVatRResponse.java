@@ -0,0 +1,212 @@
+/**********************************************************************
+ * Copyright (C) Contributors                                          *
+ *                                                                     *
+ * This program is free software; you can redistribute it and/or       *
+ * modify it under the terms of the GNU General Public License         *
+ * as published by the Free Software Foundation; either version 2      *
+ * of the License, or (at your option) any later version.              *
+ *                                                                     *
+ * This program is distributed in the hope that it will be useful,     *
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of      *
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the        *
+ * GNU General Public License for more details.                        *
+ *                                                                     *
+ * You should have received a copy of the GNU General Public License   *
+ * along with this program; if not, write to the Free Software         *
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston,          *
+ * MA 02110-1301, USA.                                                 *
+ *                                                                     *
+ * Contributors:                                                       *
+ * - Diego Ruiz - Bx Service GmbH                                      *
+ **********************************************************************/
+package de.bxservice.vatvalidation.service;
+
+/**
+ * Typed values of an eVatR XML-RPC response
+ */
+public class EVatRResponse {
+
+	private String ustId1;
+	private String ustId2;
+	private String errorCode;
+	private String druck;
+	private String firmenname;
+	private String ort;
+	private String plz;
+	private String strasse;
+	private String ergName;
+	private String ergOrt;
+	private String ergPLZ;
+	private String ergStr;
+	private String gueltigAb;
+	private String gueltigBis;
+	private String datum;
+	private String uhrzeit;
+
+	/**
+	 * Sets the value of a response parameter, unknown keys are ignored
+	 * @param key parameter name as sent by eVatR
+	 * @param value parameter value
+	 */
+	void set(String key, String value) {
+		switch (key) {
+		case "UstId_1":
+			ustId1 = value;
+			break;
+		case "UstId_2":
+			ustId2 = value;
+			break;
+		case "ErrorCode":
+			errorCode = value;
+			break;
+		case "Druck":
+			druck = value;
+			break;
+		case "Firmenname":
+			firmenname = value;
+			break;
+		case "Ort":
+			ort = value;
+			break;
+		case "PLZ":
+			plz = value;
+			break;
+		case "Strasse":
+			strasse = value;
+			break;
+		case "Erg_Name":
+			ergName = value;
+			break;
+		case "Erg_Ort":
+			ergOrt = value;
+			break;
+		case "Erg_PLZ":
+			ergPLZ = value;
+			break;
+		case "Erg_Str":
+			ergStr = value;
+			break;
+		case "Gueltig_ab":
+			gueltigAb = value;
+			break;
+		case "Gueltig_bis":
+			gueltigBis = value;
+			break;
+		case "Datum":
+			datum = value;
+			break;
+		case "Uhrzeit":
+			uhrzeit = value;
+			break;
+		default:
+			break;
+		}
+	}
+
+	/**
+	 * @param key parameter name as sent by eVatR
+	 * @return value of the response parameter, null if unknown or not sent
+	 */
+	public String get(String key) {
+		switch (key) {
+		case "UstId_1":
+			return ustId1;
+		case "UstId_2":
+			return ustId2;
+		case "ErrorCode":
+			return errorCode;
+		case "Druck":
+			return druck;
+		case "Firmenname":
+			return firmenname;
+		case "Ort":
+			return ort;
+		case "PLZ":
+			return plz;
+		case "Strasse":
+			return strasse;
+		case "Erg_Name":
+			return ergName;
+		case "Erg_Ort":
+			return ergOrt;
+		case "Erg_PLZ":
+			return ergPLZ;
+		case "Erg_Str":
+			return ergStr;
+		case "Gueltig_ab":
+			return gueltigAb;
+		case "Gueltig_bis":
+			return gueltigBis;
+		case "Datum":
+			return datum;
+		case "Uhrzeit":
+			return uhrzeit;
+		default:
+			return null;
+		}
+	}
+
+	public String getUstId1() {
+		return ustId1;
+	}
+
+	public String getUstId2() {
+		return ustId2;
+	}
+
+	public String getErrorCode() {
+		return errorCode;
+	}
+
+	public String getDruck() {
+		return druck;
+	}
+
+	public String getFirmenname() {
+		return firmenname;
+	}
+
+	public String getOrt() {
+		return ort;
+	}
+
+	public String getPLZ() {
+		return plz;
+	}
+
+	public String getStrasse() {
+		return strasse;
+	}
+
+	public String getErgName() {
+		return ergName;
+	}
+
+	public String getErgOrt() {
+		return ergOrt;
+	}
+
+	public String getErgPLZ() {
+		return ergPLZ;
+	}
+
+	public String getErgStr() {
+		return ergStr;
+	}
+
+	public String getGueltigAb() {
+		return gueltigAb;
+	}
+
+	public String getGueltigBis() {
+		return gueltigBis;
+	}
+
+	public String getDatum() {
+		return datum;
+	}
+
+	public String getUhrzeit() {
+		return uhrzeit;
+	}
+}
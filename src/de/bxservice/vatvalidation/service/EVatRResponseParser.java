@@ -0,0 +1,129 @@
+/**********************************************************************
+ * Copyright (C) Contributors                                          *
+ *                                                                     *
+ * This program is free software; you can redistribute it and/or       *
+ * modify it under the terms of the GNU General Public License         *
+ * as published by the Free Software Foundation; either version 2      *
+ * of the License, or (at your option) any later version.              *
+ *                                                                     *
+ * This program is distributed in the hope that it will be useful,     *
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of      *
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the        *
+ * GNU General Public License for more details.                        *
+ *                                                                     *
+ * You should have received a copy of the GNU General Public License   *
+ * along with this program; if not, write to the Free Software         *
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston,          *
+ * MA 02110-1301, USA.                                                 *
+ *                                                                     *
+ * Contributors:                                                       *
+ * - Diego Ruiz - Bx Service GmbH                                      *
+ **********************************************************************/
+package de.bxservice.vatvalidation.service;
+
+import java.io.ByteArrayInputStream;
+import java.io.InputStream;
+import java.io.StringReader;
+
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+
+import org.adempiere.exceptions.AdempiereException;
+
+/**
+ * Single pass StAX parser for eVatR XML-RPC responses.
+ * Every parameter of the response is an array of two strings, key and value:
+ * <pre>
+ * &lt;param&gt;&lt;value&gt;&lt;array&gt;&lt;data&gt;
+ *   &lt;value&gt;&lt;string&gt;ErrorCode&lt;/string&gt;&lt;/value&gt;
+ *   &lt;value&gt;&lt;string&gt;200&lt;/string&gt;&lt;/value&gt;
+ * &lt;/data&gt;&lt;/array&gt;&lt;/value&gt;&lt;/param&gt;
+ * </pre>
+ */
+public class EVatRResponseParser {
+
+	/** Factories are thread safe once configured */
+	private static final XMLInputFactory s_factory = createFactory();
+
+	private EVatRResponseParser() {
+	}
+
+	private static XMLInputFactory createFactory() {
+		XMLInputFactory factory = XMLInputFactory.newInstance();
+		factory.setProperty(XMLInputFactory.SUPPORT_DTD, false);
+		factory.setProperty(XMLInputFactory.IS_SUPPORTING_EXTERNAL_ENTITIES, false);
+		factory.setProperty(XMLInputFactory.IS_COALESCING, true);
+		return factory;
+	}
+
+	/**
+	 * Parses the response reading each element once
+	 * @param response XML-RPC response
+	 * @return typed response
+	 */
+	public static EVatRResponse parse(String response) {
+		try {
+			return parse(s_factory.createXMLStreamReader(new StringReader(response)));
+		} catch (XMLStreamException e) {
+			throw new AdempiereException(e);
+		}
+	}
+
+	/**
+	 * Parses the response while it is read from the stream,
+	 * the stream is not closed
+	 * @param response XML-RPC response
+	 * @return typed response
+	 */
+	public static EVatRResponse parse(InputStream response) {
+		try {
+			return parse(s_factory.createXMLStreamReader(response));
+		} catch (XMLStreamException e) {
+			throw new AdempiereException(e);
+		}
+	}
+
+	/**
+	 * Parses the received bytes, the encoding is taken from the XML declaration
+	 * @param response XML-RPC response
+	 * @return typed response
+	 */
+	public static EVatRResponse parse(byte[] response) {
+		return parse(new ByteArrayInputStream(response));
+	}
+
+	private static EVatRResponse parse(XMLStreamReader reader) {
+		EVatRResponse eVatRResponse = new EVatRResponse();
+		try {
+			String key = null;
+			int stringsInParam = 0;
+			while (reader.hasNext()) {
+				int event = reader.next();
+				if (event != XMLStreamConstants.START_ELEMENT)
+					continue;
+
+				String element = reader.getLocalName();
+				if ("param".equals(element)) {
+					key = null;
+					stringsInParam = 0;
+				} else if ("string".equals(element)) {
+					String text = reader.getElementText();
+					stringsInParam++;
+					if (stringsInParam == 1)
+						key = text;
+					else if (stringsInParam == 2 && key != null)
+						eVatRResponse.set(key, text);
+				}
+			}
+		} catch (XMLStreamException e) {
+			throw new AdempiereException(e);
+		} finally {
+			try {
+				reader.close();
+			} catch (XMLStreamException e) {}
+		}
+		return eVatRResponse;
+	}
+}
@@ -0,0 +1,70 @@
+/**********************************************************************
+ * Copyright (C) Contributors                                          *
+ *                                                                     *
+ * This program is free software; you can redistribute it and/or       *
+ * modify it under the terms of the GNU General Public License         *
+ * as published by the Free Software Foundation; either version 2      *
+ * of the License, or (at your option) any later version.              *
+ *                                                                     *
+ * This program is distributed in the hope that it will be useful,     *
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of      *
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the        *
+ * GNU General Public License for more details.                        *
+ *                                                                     *
+ * You should have received a copy of the GNU General Public License   *
+ * along with this program; if not, write to the Free Software         *
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston,          *
+ * MA 02110-1301, USA.                                                 *
+ *                                                                     *
+ * Contributors:                                                       *
+ * - Diego Ruiz - Bx Service GmbH                                      *
+ **********************************************************************/
+package de.bxservice.vatvalidation.service;
+
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * A service able to validate VAT numbers, registered as OSGi service.
+ * The engine routes each request to a provider of the requested service
+ * that supports it, preferring the cheapest one with free capacity.
+ * A provider registered for an existing service, for example a local stub
+ * for load tests, takes part in the routing without changing the callers.
+ */
+public interface IVATValidationProvider {
+
+	/**
+	 * @return service validated by this provider, {@link VATValidationEngine#SERVICE_VIES} or {@link VATValidationEngine#SERVICE_EVATR}
+	 */
+	String getService();
+
+	/**
+	 * @param request validation request
+	 * @return true if this provider can validate the request
+	 */
+	boolean isSupported(VATValidationRequest request);
+
+	/**
+	 * Validates the request without blocking the calling thread
+	 * @param request validation request
+	 * @return future result, failing with {@link VATServiceException} when the service answers with an error
+	 */
+	CompletableFuture<VATValidationResult> validateAsync(VATValidationRequest request);
+
+	/**
+	 * @return true if the service accepts several numbers in one call
+	 */
+	default boolean isBatchCapable() {
+		return false;
+	}
+
+	/**
+	 * @return max concurrent calls to the service from this server
+	 */
+	int getMaxConcurrency();
+
+	/**
+	 * Relative cost of one call, the cheapest suitable provider is used first
+	 * @return cost
+	 */
+	int getCost();
+}
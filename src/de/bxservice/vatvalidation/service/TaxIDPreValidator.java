@@ -0,0 +1,582 @@
+/**********************************************************************
+ * Copyright (C) Contributors                                          *
+ *                                                                     *
+ * This program is free software; you can redistribute it and/or       *
+ * modify it under the terms of the GNU General Public License         *
+ * as published by the Free Software Foundation; either version 2      *
+ * of the License, or (at your option) any later version.              *
+ *                                                                     *
+ * This program is distributed in the hope that it will be useful,     *
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of      *
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the        *
+ * GNU General Public License for more details.                        *
+ *                                                                     *
+ * You should have received a copy of the GNU General Public License   *
+ * along with this program; if not, write to the Free Software         *
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston,          *
+ * MA 02110-1301, USA.                                                 *
+ *                                                                     *
+ * Contributors:                                                       *
+ * - Diego Ruiz - Bx Service GmbH                                      *
+ **********************************************************************/
+package de.bxservice.vatvalidation.service;
+
+/**
+ * Offline validation of the format and check digits of EU VAT numbers.
+ * It runs before any remote call so obviously wrong numbers are rejected
+ * without a round trip. The checks work on the characters of the
+ * normalized tax ID and do not allocate beyond it.
+ * Country codes outside the EU (and XI) are not checked here.
+ */
+public class TaxIDPreValidator {
+
+	/** Outcome of the local check, the name is the suffix of the message BXS_TaxIDCheck_ */
+	public enum Reason {
+		OK,
+		NOT_CHECKED,
+		TOO_SHORT,
+		INVALID_CHARACTERS,
+		INVALID_COUNTRY_CODE,
+		INVALID_FORMAT,
+		INVALID_CHECK_DIGIT;
+
+		public boolean isRejected() {
+			return this != OK && this != NOT_CHECKED;
+		}
+	}
+
+	private static final String ES_CHECK_LETTERS = "JABCDEFGHI";
+	private static final String DNI_LETTERS = "TRWAGMYFPDXBNJZSQVHLCKE";
+	private static final String IE_CHECK_LETTERS = "WABCDEFGHIJKLMNOPQRSTUV";
+
+	/* Weights of the check digit algorithms */
+	private static final int[] W_BG = {1, 2, 3, 4, 5, 6, 7, 8};
+	private static final int[] W_BG_ALT = {3, 4, 5, 6, 7, 8, 9, 10};
+	private static final int[] W_BG_PERSON = {2, 4, 8, 5, 10, 9, 7, 3, 6};
+	private static final int[] W_BG_FOREIGNER = {21, 19, 17, 13, 11, 9, 7, 3, 1};
+	private static final int[] W_BG_OTHER = {4, 3, 2, 7, 6, 5, 4, 3, 2};
+	private static final int[] W_8_TO_2 = {8, 7, 6, 5, 4, 3, 2};
+	private static final int[] W_DK = {2, 7, 6, 5, 4, 3, 2, 1};
+	private static final int[] W_EE = {3, 7, 1, 3, 7, 1, 3, 7};
+	private static final int[] W_EL = {256, 128, 64, 32, 16, 8, 4, 2};
+	private static final int[] W_FI = {7, 9, 10, 5, 8, 4, 2};
+	private static final int[] W_HU = {9, 7, 3, 1, 9, 7, 3};
+	private static final int[] W_LV = {9, 1, 4, 8, 3, 10, 2, 5, 7, 6};
+	private static final int[] W_MT = {3, 4, 6, 7, 8, 9};
+	private static final int[] W_9_TO_2 = {9, 8, 7, 6, 5, 4, 3, 2};
+	private static final int[] W_PL = {6, 5, 7, 2, 3, 4, 5, 6, 7};
+	private static final int[] W_RO = {7, 5, 3, 2, 1, 7, 5, 3, 2};
+
+	private TaxIDPreValidator() {
+	}
+
+	/**
+	 * Checks the tax ID, country code included. The tax ID is normalized
+	 * like {@link VATValidationRequest#normalizeTaxID(String)} first
+	 * @param taxID full VAT identifier, i.e. DE123456789 or de 123.456.789
+	 * @return OK if the number may be valid, NOT_CHECKED for countries without rules
+	 * or the reason why it is invalid
+	 */
+	public static Reason check(String taxID) {
+		taxID = VATValidationRequest.normalizeTaxID(taxID);
+		if (taxID == null || taxID.length() < 5)
+			return Reason.TOO_SHORT;
+		for (int i = 0; i < taxID.length(); i++) {
+			char c = taxID.charAt(i);
+			if (!((c >= '0' && c <= '9') || (c >= 'A' && c <= 'Z') || isIrishLegacy(taxID, i)))
+				return Reason.INVALID_CHARACTERS;
+		}
+
+		char c1 = taxID.charAt(0);
+		char c2 = taxID.charAt(1);
+		if (!isLetter(c1) || !isLetter(c2))
+			return Reason.INVALID_COUNTRY_CODE;
+
+		switch (c1 * 128 + c2) {
+		case 'A' * 128 + 'T': return checkAT(taxID);
+		case 'B' * 128 + 'E': return checkBE(taxID);
+		case 'B' * 128 + 'G': return checkBG(taxID);
+		case 'C' * 128 + 'Y': return checkCY(taxID);
+		case 'C' * 128 + 'Z': return checkCZ(taxID);
+		case 'D' * 128 + 'E': return checkDE(taxID);
+		case 'D' * 128 + 'K': return checkDK(taxID);
+		case 'E' * 128 + 'E': return checkEE(taxID);
+		case 'E' * 128 + 'L': return checkEL(taxID);
+		case 'E' * 128 + 'S': return checkES(taxID);
+		case 'F' * 128 + 'I': return checkFI(taxID);
+		case 'F' * 128 + 'R': return checkFR(taxID);
+		case 'H' * 128 + 'R': return checkHR(taxID);
+		case 'H' * 128 + 'U': return checkHU(taxID);
+		case 'I' * 128 + 'E': return checkIE(taxID);
+		case 'I' * 128 + 'T': return checkIT(taxID);
+		case 'L' * 128 + 'T': return checkLT(taxID);
+		case 'L' * 128 + 'U': return checkLU(taxID);
+		case 'L' * 128 + 'V': return checkLV(taxID);
+		case 'M' * 128 + 'T': return checkMT(taxID);
+		case 'N' * 128 + 'L': return checkNL(taxID);
+		case 'P' * 128 + 'L': return checkPL(taxID);
+		case 'P' * 128 + 'T': return checkPT(taxID);
+		case 'R' * 128 + 'O': return checkRO(taxID);
+		case 'S' * 128 + 'E': return checkSE(taxID);
+		case 'S' * 128 + 'I': return checkSI(taxID);
+		case 'S' * 128 + 'K': return checkSK(taxID);
+		case 'X' * 128 + 'I': return checkXI(taxID);
+		// VIES uses EL for Greece
+		case 'G' * 128 + 'R': return Reason.INVALID_COUNTRY_CODE;
+		default: return Reason.NOT_CHECKED;
+		}
+	}
+
+	/** Old style Irish numbers may have + or * as second character, i.e. IE8+12345L */
+	private static boolean isIrishLegacy(String taxID, int i) {
+		char c = taxID.charAt(i);
+		return i == 3 && (c == '+' || c == '*') && taxID.startsWith("IE");
+	}
+
+	private static boolean isLetter(char c) {
+		return c >= 'A' && c <= 'Z';
+	}
+
+	private static boolean isDigit(char c) {
+		return c >= '0' && c <= '9';
+	}
+
+	/** Number of characters after the country code */
+	private static int len(String s) {
+		return s.length() - 2;
+	}
+
+	/** Digit at the position i after the country code */
+	private static int d(String s, int i) {
+		return s.charAt(i + 2) - '0';
+	}
+
+	/** True if the characters from..to (exclusive) after the country code are digits */
+	private static boolean digits(String s, int from, int to) {
+		for (int i = from; i < to; i++) {
+			if (!isDigit(s.charAt(i + 2)))
+				return false;
+		}
+		return true;
+	}
+
+	private static boolean allDigits(String s, int length) {
+		return len(s) == length && digits(s, 0, length);
+	}
+
+	/** Sum of d(i) * weights[i] starting at offset */
+	private static int weighted(String s, int offset, int[] weights) {
+		int sum = 0;
+		for (int i = 0; i < weights.length; i++)
+			sum += d(s, offset + i) * weights[i];
+		return sum;
+	}
+
+	/** Numeric value of the digits from..to (exclusive) after the country code */
+	private static long number(String s, int from, int to) {
+		long value = 0;
+		for (int i = from; i < to; i++)
+			value = value * 10 + d(s, i);
+		return value;
+	}
+
+	private static Reason result(boolean checkDigitOK) {
+		return checkDigitOK ? Reason.OK : Reason.INVALID_CHECK_DIGIT;
+	}
+
+	/** Luhn check over the digits from..to (exclusive) */
+	private static boolean luhn(String s, int from, int to) {
+		int sum = 0;
+		boolean doubled = false;
+		for (int i = to - 1; i >= from; i--) {
+			int digit = d(s, i);
+			if (doubled) {
+				digit *= 2;
+				if (digit > 9)
+					digit -= 9;
+			}
+			sum += digit;
+			doubled = !doubled;
+		}
+		return sum % 10 == 0;
+	}
+
+	/** ISO 7064 MOD 11,10 over the digits 0..length-1, the last one is the check digit */
+	private static boolean mod11_10(String s, int length) {
+		int product = 10;
+		for (int i = 0; i < length - 1; i++) {
+			int sum = (d(s, i) + product) % 10;
+			if (sum == 0)
+				sum = 10;
+			product = (2 * sum) % 11;
+		}
+		int check = 11 - product;
+		if (check == 10)
+			check = 0;
+		return check == d(s, length - 1);
+	}
+
+	// ATU99999999
+	private static Reason checkAT(String s) {
+		if (len(s) != 9 || s.charAt(2) != 'U' || !digits(s, 1, 9))
+			return Reason.INVALID_FORMAT;
+		int sum = 0;
+		for (int i = 1; i <= 7; i++) {
+			int digit = d(s, i);
+			if (i % 2 == 0) {
+				digit *= 2;
+				digit = digit / 10 + digit % 10;
+			}
+			sum += digit;
+		}
+		return result((10 - (sum + 4) % 10) % 10 == d(s, 8));
+	}
+
+	// BE0999999999 or BE1999999999
+	private static Reason checkBE(String s) {
+		if (!allDigits(s, 10) || d(s, 0) > 1)
+			return Reason.INVALID_FORMAT;
+		return result(97 - number(s, 0, 8) % 97 == number(s, 8, 10));
+	}
+
+	// BG999999999 or BG9999999999
+	private static Reason checkBG(String s) {
+		if (allDigits(s, 9)) {
+			int check = weighted(s, 0, W_BG) % 11;
+			if (check == 10)
+				check = weighted(s, 0, W_BG_ALT) % 11 % 10;
+			return result(check == d(s, 8));
+		}
+		if (!allDigits(s, 10))
+			return Reason.INVALID_FORMAT;
+		// physical person
+		int check = weighted(s, 0, W_BG_PERSON) % 11 % 10;
+		if (check == d(s, 9))
+			return Reason.OK;
+		// foreigner
+		if (weighted(s, 0, W_BG_FOREIGNER) % 10 == d(s, 9))
+			return Reason.OK;
+		// others
+		check = 11 - weighted(s, 0, W_BG_OTHER) % 11;
+		if (check == 11)
+			check = 0;
+		return result(check == d(s, 9));
+	}
+
+	// CY99999999L
+	private static Reason checkCY(String s) {
+		if (len(s) != 9 || !digits(s, 0, 8) || !isLetter(s.charAt(10)) || d(s, 0) == 2)
+			return Reason.INVALID_FORMAT;
+		int sum = 0;
+		for (int i = 0; i < 8; i++) {
+			int digit = d(s, i);
+			if (i % 2 == 0) {
+				switch (digit) {
+				case 0: digit = 1; break;
+				case 1: digit = 0; break;
+				case 2: digit = 5; break;
+				case 3: digit = 7; break;
+				case 4: digit = 9; break;
+				default: digit = digit * 2 + 3;
+				}
+			}
+			sum += digit;
+		}
+		return result('A' + sum % 26 == s.charAt(10));
+	}
+
+	// CZ99999999, CZ999999999 or CZ9999999999
+	private static Reason checkCZ(String s) {
+		if (allDigits(s, 8)) {
+			if (d(s, 0) == 9)
+				return Reason.INVALID_FORMAT;
+			int remainder = weighted(s, 0, W_8_TO_2) % 11;
+			int check = remainder == 0 ? 1 : remainder == 1 ? 0 : 11 - remainder;
+			return result(check == d(s, 7));
+		}
+		// individuals, the check depends on the birth date
+		if (allDigits(s, 9) || allDigits(s, 10))
+			return Reason.OK;
+		return Reason.INVALID_FORMAT;
+	}
+
+	// DE999999999
+	private static Reason checkDE(String s) {
+		if (!allDigits(s, 9) || d(s, 0) == 0)
+			return Reason.INVALID_FORMAT;
+		return result(mod11_10(s, 9));
+	}
+
+	// DK99999999
+	private static Reason checkDK(String s) {
+		if (!allDigits(s, 8) || d(s, 0) == 0)
+			return Reason.INVALID_FORMAT;
+		return result(weighted(s, 0, W_DK) % 11 == 0);
+	}
+
+	// EE10xxxxxxx
+	private static Reason checkEE(String s) {
+		if (!allDigits(s, 9) || d(s, 0) != 1 || d(s, 1) != 0)
+			return Reason.INVALID_FORMAT;
+		return result((10 - weighted(s, 0, W_EE) % 10) % 10 == d(s, 8));
+	}
+
+	// EL999999999
+	private static Reason checkEL(String s) {
+		if (!allDigits(s, 9))
+			return Reason.INVALID_FORMAT;
+		return result(weighted(s, 0, W_EL) % 11 % 10 == d(s, 8));
+	}
+
+	// ESX9999999X, the first and last character can be letters
+	private static Reason checkES(String s) {
+		if (len(s) != 9 || !digits(s, 1, 8))
+			return Reason.INVALID_FORMAT;
+		char first = s.charAt(2);
+		char last = s.charAt(10);
+
+		// Spanish national (DNI)
+		if (isDigit(first)) {
+			if (!isLetter(last))
+				return Reason.INVALID_FORMAT;
+			return result(DNI_LETTERS.charAt((int) (number(s, 0, 8) % 23)) == last);
+		}
+		// Foreigners (NIE), the first letter stands for a digit
+		if (first == 'X' || first == 'Y' || first == 'Z') {
+			if (!isLetter(last))
+				return Reason.INVALID_FORMAT;
+			long value = (first - 'X') * 10000000L + number(s, 1, 8);
+			return result(DNI_LETTERS.charAt((int) (value % 23)) == last);
+		}
+		// Special natural persons
+		if (first == 'K' || first == 'L' || first == 'M') {
+			if (!isLetter(last))
+				return Reason.INVALID_FORMAT;
+			return result(DNI_LETTERS.charAt((int) (number(s, 1, 8) % 23)) == last);
+		}
+		// Legal entities (CIF)
+		if ("ABCDEFGHJNPQRSUVW".indexOf(first) < 0)
+			return Reason.INVALID_FORMAT;
+		int sum = 0;
+		for (int i = 1; i <= 7; i++) {
+			int digit = d(s, i);
+			if (i % 2 == 1) {
+				digit *= 2;
+				digit = digit / 10 + digit % 10;
+			}
+			sum += digit;
+		}
+		int check = (10 - sum % 10) % 10;
+		return result(last == '0' + check || last == ES_CHECK_LETTERS.charAt(check));
+	}
+
+	// FI99999999
+	private static Reason checkFI(String s) {
+		if (!allDigits(s, 8))
+			return Reason.INVALID_FORMAT;
+		int remainder = weighted(s, 0, W_FI) % 11;
+		if (remainder == 1)
+			return Reason.INVALID_CHECK_DIGIT;
+		return result((remainder == 0 ? 0 : 11 - remainder) == d(s, 7));
+	}
+
+	// FRXX999999999, the key can contain letters
+	private static Reason checkFR(String s) {
+		if (len(s) != 11 || !digits(s, 2, 11))
+			return Reason.INVALID_FORMAT;
+		char k1 = s.charAt(2);
+		char k2 = s.charAt(3);
+		if (k1 == 'I' || k1 == 'O' || k2 == 'I' || k2 == 'O')
+			return Reason.INVALID_FORMAT;
+		if (!isDigit(k1) || !isDigit(k2))
+			// new style key, no public check algorithm
+			return Reason.OK;
+		long siren = number(s, 2, 11);
+		return result((12 + 3 * (siren % 97)) % 97 == number(s, 0, 2));
+	}
+
+	// HR99999999999
+	private static Reason checkHR(String s) {
+		if (!allDigits(s, 11))
+			return Reason.INVALID_FORMAT;
+		return result(mod11_10(s, 11));
+	}
+
+	// HU99999999
+	private static Reason checkHU(String s) {
+		if (!allDigits(s, 8))
+			return Reason.INVALID_FORMAT;
+		return result((10 - weighted(s, 0, W_HU) % 10) % 10 == d(s, 7));
+	}
+
+	// IE9999999L, IE9999999LL or old style IE9L99999L
+	private static Reason checkIE(String s) {
+		int length = len(s);
+		if (length < 8 || length > 9)
+			return Reason.INVALID_FORMAT;
+
+		if (digits(s, 0, 7) && isLetter(s.charAt(9))) {
+			int sum = weighted(s, 0, W_8_TO_2);
+			if (length == 9) {
+				char extra = s.charAt(10);
+				if (extra != 'W' && (extra < 'A' || extra > 'I'))
+					return Reason.INVALID_FORMAT;
+				if (extra != 'W')
+					sum += (extra - 'A' + 1) * 9;
+			}
+			return result(IE_CHECK_LETTERS.charAt(sum % 23) == s.charAt(9));
+		}
+
+		// old style, the second character is a letter, + or *
+		if (length == 8 && isDigit(s.charAt(2)) && !isDigit(s.charAt(3)) && digits(s, 2, 7) && isLetter(s.charAt(9))) {
+			int sum = d(s, 2) * 7 + d(s, 3) * 6 + d(s, 4) * 5 + d(s, 5) * 4 + d(s, 6) * 3 + d(s, 0) * 2;
+			return result(IE_CHECK_LETTERS.charAt(sum % 23) == s.charAt(9));
+		}
+		return Reason.INVALID_FORMAT;
+	}
+
+	// IT99999999999
+	private static Reason checkIT(String s) {
+		if (!allDigits(s, 11))
+			return Reason.INVALID_FORMAT;
+		return result(luhn(s, 0, 11));
+	}
+
+	// LT999999999 or LT999999999999
+	private static Reason checkLT(String s) {
+		int length = len(s);
+		if (!(allDigits(s, 9) || allDigits(s, 12)) || d(s, length - 2) != 1)
+			return Reason.INVALID_FORMAT;
+		int sum = 0;
+		for (int i = 0; i < length - 1; i++)
+			sum += d(s, i) * (i % 9 + 1);
+		int check = sum % 11;
+		if (check == 10) {
+			sum = 0;
+			for (int i = 0; i < length - 1; i++)
+				sum += d(s, i) * ((i + 2) % 9 + 1);
+			check = sum % 11 % 10;
+		}
+		return result(check == d(s, length - 1));
+	}
+
+	// LU99999999
+	private static Reason checkLU(String s) {
+		if (!allDigits(s, 8))
+			return Reason.INVALID_FORMAT;
+		return result(number(s, 0, 6) % 89 == number(s, 6, 8));
+	}
+
+	// LV99999999999
+	private static Reason checkLV(String s) {
+		if (!allDigits(s, 11))
+			return Reason.INVALID_FORMAT;
+		// individuals, the number starts with the birth date
+		if (d(s, 0) <= 3)
+			return Reason.OK;
+		int check = 3 - weighted(s, 0, W_LV) % 11;
+		if (check == -1)
+			return Reason.INVALID_CHECK_DIGIT;
+		if (check < -1)
+			check += 11;
+		return result(check == d(s, 10));
+	}
+
+	// MT99999999
+	private static Reason checkMT(String s) {
+		if (!allDigits(s, 8) || d(s, 0) == 0)
+			return Reason.INVALID_FORMAT;
+		return result((weighted(s, 0, W_MT) + number(s, 6, 8)) % 37 == 0);
+	}
+
+	// NL999999999B99
+	private static Reason checkNL(String s) {
+		if (len(s) != 12 || !digits(s, 0, 9) || s.charAt(11) != 'B' || !digits(s, 10, 12))
+			return Reason.INVALID_FORMAT;
+		// old numbers use the eleven test of the fiscal number
+		int sum = weighted(s, 0, W_9_TO_2) - d(s, 8);
+		if (sum % 11 == 0)
+			return Reason.OK;
+		// sole proprietors since 2020 use ISO 7064 MOD 97-10 over the full number
+		int remainder = 0;
+		for (int i = 0; i < s.length(); i++) {
+			char c = s.charAt(i);
+			if (isDigit(c))
+				remainder = (remainder * 10 + (c - '0')) % 97;
+			else
+				remainder = (remainder * 100 + (c - 'A' + 10)) % 97;
+		}
+		return result(remainder == 1);
+	}
+
+	// PL9999999999
+	private static Reason checkPL(String s) {
+		if (!allDigits(s, 10))
+			return Reason.INVALID_FORMAT;
+		return result(weighted(s, 0, W_PL) % 11 == d(s, 9));
+	}
+
+	// PT999999999
+	private static Reason checkPT(String s) {
+		if (!allDigits(s, 9))
+			return Reason.INVALID_FORMAT;
+		int check = 11 - weighted(s, 0, W_9_TO_2) % 11;
+		if (check >= 10)
+			check = 0;
+		return result(check == d(s, 8));
+	}
+
+	// RO99 up to RO9999999999
+	private static Reason checkRO(String s) {
+		int length = len(s);
+		if (length < 2 || length > 10 || !digits(s, 0, length) || d(s, 0) == 0)
+			return Reason.INVALID_FORMAT;
+		int sum = 0;
+		// the weights are aligned to the right of the number without its check digit
+		for (int i = 0; i < length - 1; i++)
+			sum += d(s, i) * W_RO[9 - (length - 1) + i];
+		return result(sum * 10 % 11 % 10 == d(s, length - 1));
+	}
+
+	// SE999999999901
+	private static Reason checkSE(String s) {
+		if (!allDigits(s, 12) || d(s, 10) != 0 || d(s, 11) != 1)
+			return Reason.INVALID_FORMAT;
+		return result(luhn(s, 0, 10));
+	}
+
+	// SI99999999
+	private static Reason checkSI(String s) {
+		if (!allDigits(s, 8) || d(s, 0) == 0)
+			return Reason.INVALID_FORMAT;
+		int check = 11 - weighted(s, 0, W_8_TO_2) % 11;
+		if (check == 11)
+			return Reason.INVALID_CHECK_DIGIT;
+		if (check == 10)
+			check = 0;
+		return result(check == d(s, 7));
+	}
+
+	// SK9999999999
+	private static Reason checkSK(String s) {
+		if (!allDigits(s, 10) || d(s, 0) == 0)
+			return Reason.INVALID_FORMAT;
+		int third = d(s, 2);
+		if (third != 2 && third != 3 && third != 4 && third != 7 && third != 8 && third != 9)
+			return Reason.INVALID_FORMAT;
+		return result(number(s, 0, 10) % 11 == 0);
+	}
+
+	// XI999999999, XI999999999999, XIGD999 or XIHA999
+	private static Reason checkXI(String s) {
+		int length = len(s);
+		if (length == 5 && s.charAt(2) == 'G' && s.charAt(3) == 'D' && digits(s, 2, 5))
+			return number(s, 2, 5) < 500 ? Reason.OK : Reason.INVALID_FORMAT;
+		if (length == 5 && s.charAt(2) == 'H' && s.charAt(3) == 'A' && digits(s, 2, 5))
+			return number(s, 2, 5) >= 500 ? Reason.OK : Reason.INVALID_FORMAT;
+		if (!(allDigits(s, 9) || allDigits(s, 12)))
+			return Reason.INVALID_FORMAT;
+		long total = weighted(s, 0, W_8_TO_2) + number(s, 7, 9);
+		return result(total % 97 == 0 || (total + 55) % 97 == 0);
+	}
+}
@@ -0,0 +1,162 @@
+/**********************************************************************
+ * Copyright (C) Contributors                                          *
+ *                                                                     *
+ * This program is free software; you can redistribute it and/or       *
+ * modify it under the terms of the GNU General Public License         *
+ * as published by the Free Software Foundation; either version 2      *
+ * of the License, or (at your option) any later version.              *
+ *                                                                     *
+ * This program is distributed in the hope that it will be useful,     *
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of      *
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the        *
+ * GNU General Public License for more details.                        *
+ *                                                                     *
+ * You should have received a copy of the GNU General Public License   *
+ * along with this program; if not, write to the Free Software         *
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston,          *
+ * MA 02110-1301, USA.                                                 *
+ *                                                                     *
+ * Contributors:                                                       *
+ * - Diego Ruiz - Bx Service GmbH                                      *
+ **********************************************************************/
+package de.bxservice.vatvalidation.service;
+
+import java.sql.Timestamp;
+import java.util.function.LongSupplier;
+
+import org.compiere.model.MSysConfig;
+import org.compiere.util.CLogger;
+
+/**
+ * Circuit breaker of one validation endpoint.
+ * After a number of consecutive endpoint failures the breaker opens and the calls
+ * fail fast. Once the open time is over one trial call is let through (half open),
+ * its success closes the breaker again and its failure opens it once more.
+ */
+public class VATCircuitBreaker {
+
+	public enum State {
+		CLOSED, OPEN, HALF_OPEN
+	}
+
+	private static final String FAILURE_THRESHOLD_SYSCONFIG = "BXS_VAT_BREAKER_FAILURE_THRESHOLD";
+	private static final String OPEN_SECONDS_SYSCONFIG = "BXS_VAT_BREAKER_OPEN_SECONDS";
+
+	/** Logger */
+	private static CLogger log = CLogger.getCLogger(VATCircuitBreaker.class);
+
+	private final String name;
+	/** Current time in milliseconds */
+	private final LongSupplier clock;
+
+	private State state = State.CLOSED;
+	private int consecutiveFailures = 0;
+	private long openUntil = 0;
+	private boolean trialRunning = false;
+	private String lastError = null;
+
+	public VATCircuitBreaker(String name) {
+		this(name, System::currentTimeMillis);
+	}
+
+	/**
+	 * @param name breaker name
+	 * @param clock current time in milliseconds, the tests let the open time pass without waiting
+	 */
+	VATCircuitBreaker(String name, LongSupplier clock) {
+		this.name = name;
+		this.clock = clock;
+	}
+
+	/**
+	 * @return true if a call would be let through now, the state is not changed
+	 */
+	public synchronized boolean isCallPermitted() {
+		return switch (state) {
+		case CLOSED -> true;
+		case OPEN -> clock.getAsLong() >= openUntil;
+		case HALF_OPEN -> !trialRunning;
+		};
+	}
+
+	/**
+	 * Lets a call through, an open breaker past its open time becomes half open
+	 * and the call is its trial
+	 * @return false if the call must fail fast
+	 */
+	public synchronized boolean tryAcquire() {
+		if (state == State.OPEN && clock.getAsLong() >= openUntil) {
+			state = State.HALF_OPEN;
+			trialRunning = false;
+			log.info(name + " circuit half open");
+		}
+		if (state == State.CLOSED)
+			return true;
+		if (state == State.HALF_OPEN && !trialRunning) {
+			trialRunning = true;
+			return true;
+		}
+		return false;
+	}
+
+	public synchronized void onSuccess() {
+		consecutiveFailures = 0;
+		if (state != State.CLOSED) {
+			state = State.CLOSED;
+			trialRunning = false;
+			log.warning(name + " circuit closed");
+		}
+	}
+
+	/**
+	 * @param error description of the endpoint failure
+	 */
+	public synchronized void onFailure(String error) {
+		lastError = error;
+		consecutiveFailures++;
+		if (state == State.HALF_OPEN 
+				|| (state == State.CLOSED && consecutiveFailures >= MSysConfig.getIntValue(FAILURE_THRESHOLD_SYSCONFIG, 5))) {
+			state = State.OPEN;
+			trialRunning = false;
+			openUntil = clock.getAsLong() + MSysConfig.getIntValue(OPEN_SECONDS_SYSCONFIG, 60) * 1000L;
+			log.warning(name + " circuit open until " + new Timestamp(openUntil) + " after " + consecutiveFailures 
+					+ " failures: " + error);
+		}
+	}
+
+	/**
+	 * A call that ended without telling anything about the endpoint,
+	 * e.g. an answer for an unavailable member state
+	 */
+	public synchronized void onIgnored() {
+		if (state == State.HALF_OPEN)
+			trialRunning = false;
+	}
+
+	public String getName() {
+		return name;
+	}
+
+	public synchronized State getState() {
+		return state;
+	}
+
+	/**
+	 * @return end of the open time, null if the breaker is not open
+	 */
+	public synchronized Timestamp getOpenUntil() {
+		return state == State.OPEN ? new Timestamp(openUntil) : null;
+	}
+
+	@Override
+	public synchronized String toString() {
+		StringBuilder sb = new StringBuilder(name).append(": ").append(state);
+		if (state == State.OPEN)
+			sb.append(" until ").append(new Timestamp(openUntil));
+		if (consecutiveFailures > 0)
+			sb.append(", consecutive failures = ").append(consecutiveFailures);
+		if (state != State.CLOSED && lastError != null)
+			sb.append(", last error = ").append(lastError);
+		return sb.toString();
+	}
+}
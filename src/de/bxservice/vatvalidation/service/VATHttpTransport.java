@@ -0,0 +1,214 @@
+/**********************************************************************
+ * Copyright (C) Contributors                                          *
+ *                                                                     *
+ * This program is free software; you can redistribute it and/or       *
+ * modify it under the terms of the GNU General Public License         *
+ * as published by the Free Software Foundation; either version 2      *
+ * of the License, or (at your option) any later version.              *
+ *                                                                     *
+ * This program is distributed in the hope that it will be useful,     *
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of      *
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the        *
+ * GNU General Public License for more details.                        *
+ *                                                                     *
+ * You should have received a copy of the GNU General Public License   *
+ * along with this program; if not, write to the Free Software         *
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston,          *
+ * MA 02110-1301, USA.                                                 *
+ *                                                                     *
+ * Contributors:                                                       *
+ * - Diego Ruiz - Bx Service GmbH                                      *
+ **********************************************************************/
+package de.bxservice.vatvalidation.service;
+
+import java.io.IOException;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.net.http.HttpResponse.BodyHandler;
+import java.net.http.HttpTimeoutException;
+import java.time.Duration;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.adempiere.exceptions.AdempiereException;
+import org.compiere.model.MSysConfig;
+import org.compiere.util.CLogger;
+
+/**
+ * HTTP transport shared by all validation clients of the bundle.
+ * One client keeps the connections alive between calls, negotiates
+ * HTTP/2 when the server offers it and applies the configured timeouts.
+ * It is created on first use and closed when the bundle is deactivated.
+ */
+public class VATHttpTransport {
+
+	private static final String CONNECT_TIMEOUT_SYSCONFIG = "BXS_VAT_HTTP_CONNECT_TIMEOUT_MS";
+	private static final String READ_TIMEOUT_SYSCONFIG = "BXS_VAT_HTTP_READ_TIMEOUT_MS";
+	private static final String THREADS_SYSCONFIG = "BXS_VAT_HTTP_THREADS";
+
+	/** Logger */
+	private static CLogger log = CLogger.getCLogger(VATHttpTransport.class);
+
+	private static VATHttpTransport s_instance = null;
+
+	private final ExecutorService executor;
+	private final HttpClient client;
+	private final Duration readTimeout;
+
+	private final AtomicInteger inFlight = new AtomicInteger();
+	private final AtomicInteger peakInFlight = new AtomicInteger();
+	private final AtomicLong requestCount = new AtomicLong();
+
+	private VATHttpTransport() {
+		AtomicInteger count = new AtomicInteger();
+		executor = Executors.newFixedThreadPool(Math.max(1, MSysConfig.getIntValue(THREADS_SYSCONFIG, 4)), r -> {
+			Thread thread = new Thread(r, "VATHttpTransport-" + count.incrementAndGet());
+			thread.setDaemon(true);
+			return thread;
+		});
+		client = HttpClient.newBuilder()
+				.version(HttpClient.Version.HTTP_2)
+				.connectTimeout(Duration.ofMillis(MSysConfig.getIntValue(CONNECT_TIMEOUT_SYSCONFIG, 10000)))
+				.followRedirects(HttpClient.Redirect.NORMAL)
+				.executor(executor)
+				.build();
+		readTimeout = Duration.ofMillis(MSysConfig.getIntValue(READ_TIMEOUT_SYSCONFIG, 30000));
+	}
+
+	/**
+	 * @return shared transport, created on first use
+	 */
+	public static synchronized VATHttpTransport get() {
+		if (s_instance == null)
+			s_instance = new VATHttpTransport();
+		return s_instance;
+	}
+
+	/**
+	 * Releases the pooled connections and threads.
+	 * Called when the bundle is deactivated, a later call to get creates a new transport
+	 */
+	public static synchronized void shutdown() {
+		if (s_instance != null) {
+			s_instance.close();
+			s_instance = null;
+		}
+	}
+
+	/**
+	 * Creates a request builder with the configured read timeout
+	 * @param uri target
+	 * @return builder
+	 */
+	public HttpRequest.Builder newRequest(java.net.URI uri) {
+		return HttpRequest.newBuilder(uri).timeout(readTimeout);
+	}
+
+	/**
+	 * Sends the request blocking the calling thread
+	 */
+	public <T> HttpResponse<T> send(HttpRequest request, BodyHandler<T> bodyHandler) throws IOException, InterruptedException {
+		begin();
+		try {
+			return client.send(request, bodyHandler);
+		} finally {
+			end();
+		}
+	}
+
+	/**
+	 * Sends the request without blocking any thread while waiting for the answer.
+	 * Cancelling the returned future aborts the exchange
+	 */
+	public <T> CompletableFuture<HttpResponse<T>> sendAsync(HttpRequest request, BodyHandler<T> bodyHandler) {
+		begin();
+		CompletableFuture<HttpResponse<T>> exchange = client.sendAsync(request, bodyHandler);
+		exchange.whenComplete((response, e) -> end());
+		return exchange;
+	}
+
+	/**
+	 * Waits for the future translating the failures to AdempiereException
+	 * @param future pending result
+	 * @return result
+	 */
+	public static <T> T join(CompletableFuture<T> future) {
+		try {
+			return future.get();
+		} catch (InterruptedException e) {
+			future.cancel(true);
+			Thread.currentThread().interrupt();
+			throw new AdempiereException(e);
+		} catch (CancellationException e) {
+			throw new AdempiereException("Validation cancelled", e);
+		} catch (ExecutionException e) {
+			throw toAdempiereException(e.getCause());
+		}
+	}
+
+	/**
+	 * Unwraps the completion wrappers of an asynchronous failure
+	 * @param e failure
+	 * @return exception to throw to the caller
+	 */
+	public static AdempiereException toAdempiereException(Throwable e) {
+		while ((e instanceof CompletionException || e instanceof ExecutionException) && e.getCause() != null)
+			e = e.getCause();
+		if (e instanceof AdempiereException)
+			return (AdempiereException) e;
+		if (e instanceof HttpTimeoutException)
+			return new AdempiereException("Timeout: " + e.getLocalizedMessage(), e);
+		return new AdempiereException(e);
+	}
+
+	private void begin() {
+		requestCount.incrementAndGet();
+		peakInFlight.accumulateAndGet(inFlight.incrementAndGet(), Math::max);
+	}
+
+	private void end() {
+		inFlight.decrementAndGet();
+	}
+
+	/**
+	 * @return requests currently using a pooled connection
+	 */
+	public int getInFlight() {
+		return inFlight.get();
+	}
+
+	/**
+	 * @return max number of requests that were in flight at the same time
+	 */
+	public int getPeakInFlight() {
+		return peakInFlight.get();
+	}
+
+	/**
+	 * @return number of requests sent since the transport was created
+	 */
+	public long getRequestCount() {
+		return requestCount.get();
+	}
+
+	private void close() {
+		log.info("Closing VAT validation HTTP transport, requests sent: " + requestCount.get() + ", peak in flight: " + peakInFlight.get());
+		// Java 17 HttpClient has no close, the connections are released with its executor
+		executor.shutdown();
+		try {
+			if (!executor.awaitTermination(5, TimeUnit.SECONDS))
+				executor.shutdownNow();
+		} catch (InterruptedException e) {
+			executor.shutdownNow();
+			Thread.currentThread().interrupt();
+		}
+	}
+}
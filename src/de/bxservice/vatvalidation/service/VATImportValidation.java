@@ -0,0 +1,302 @@
+/**********************************************************************
+ * Copyright (C) Contributors                                          *
+ *                                                                     *
+ * This program is free software; you can redistribute it and/or       *
+ * modify it under the terms of the GNU General Public License         *
+ * as published by the Free Software Foundation; either version 2      *
+ * of the License, or (at your option) any later version.              *
+ *                                                                     *
+ * This program is distributed in the hope that it will be useful,     *
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of      *
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the        *
+ * GNU General Public License for more details.                        *
+ *                                                                     *
+ * You should have received a copy of the GNU General Public License   *
+ * along with this program; if not, write to the Free Software         *
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston,          *
+ * MA 02110-1301, USA.                                                 *
+ *                                                                     *
+ * Contributors:                                                       *
+ * - Diego Ruiz - Bx Service GmbH                                      *
+ **********************************************************************/
+package de.bxservice.vatvalidation.service;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.logging.Level;
+
+import org.compiere.model.MBPartner;
+import org.compiere.model.MSysConfig;
+import org.compiere.util.CLogger;
+import org.compiere.util.DB;
+import org.compiere.util.Env;
+import org.compiere.util.Trx;
+import org.compiere.util.TrxEventListener;
+
+import de.bxservice.vatvalidation.model.VATResultWriter;
+
+/**
+ * Validation stage of the business partner import. The import commits after
+ * every record, so the committed partners are collected for the whole run
+ * and validated once the import closes its transaction, or whenever a run
+ * has committed BXS_VAT_IMPORT_BATCH_SIZE partners: the tax IDs are deduplicated,
+ * checked locally, validated in parallel and the results are written with batch updates.
+ * <br>
+ * When the client validates the imports, this stage takes precedence over the
+ * {@link VATValidationQueue}: partners saved in a registered import transaction
+ * are not queued. Validations the services could not answer are handed to the
+ * queue when the client validates in the background.
+ */
+public class VATImportValidation {
+
+	/** Client switch to validate the imported partners */
+	public static final String VALIDATE_ON_IMPORT_SYSCONFIG = "BXS_VAT_VALIDATE_ON_IMPORT";
+	private static final String SERVICE_SYSCONFIG = "BXS_VAT_VALIDATION_SERVICE";
+	private static final String PARALLELISM_SYSCONFIG = "BXS_VAT_IMPORT_PARALLELISM";
+	private static final String BATCH_SIZE_SYSCONFIG = "BXS_VAT_IMPORT_BATCH_SIZE";
+
+	/** Logger */
+	private static CLogger log = CLogger.getCLogger(VATImportValidation.class);
+
+	/* Imported partners by transaction of the import run */
+	private static final Map<String, ImportBatch> s_batches = new ConcurrentHashMap<>();
+
+	/* Committed imports are validated one after the other, the engine limits the calls of each provider */
+	private static ExecutorService s_executor = null;
+
+	private VATImportValidation() {
+	}
+
+	/**
+	 * @param AD_Client_ID client
+	 * @return true if the client validates the imported partners
+	 */
+	public static boolean isEnabled(int AD_Client_ID) {
+		return MSysConfig.getBooleanValue(VALIDATE_ON_IMPORT_SYSCONFIG, false, AD_Client_ID);
+	}
+
+	/**
+	 * Registers the transaction of an import before its first partner is saved,
+	 * so the partners it creates or changes are not queued as well
+	 * @param trxName transaction of the import
+	 */
+	public static void begin(String trxName) {
+		getBatch(trxName);
+	}
+
+	/**
+	 * @param trxName transaction
+	 * @return true if the partners of the transaction are validated by this import stage
+	 */
+	public static boolean isImporting(String trxName) {
+		return trxName != null && s_batches.containsKey(trxName);
+	}
+
+	/**
+	 * Adds an imported partner, it is validated after the commit of its transaction
+	 * @param bPartner imported partner
+	 */
+	public static void add(MBPartner bPartner) {
+		// the results are saved later in a background thread, UpdatedBy stays the importing user
+		ImportedPartner partner = new ImportedPartner(bPartner.getC_BPartner_ID(), bPartner.getAD_Client_ID(), 
+				bPartner.getAD_Org_ID(), Env.getAD_User_ID(bPartner.getCtx()), bPartner.getTaxID().trim());
+		ImportBatch batch = getBatch(bPartner.get_TrxName());
+		if (batch == null)
+			submit(List.of(partner));
+		else
+			batch.add(partner);
+	}
+
+	/**
+	 * @return batch of the transaction or null if there is no open transaction
+	 */
+	private static ImportBatch getBatch(String trxName) {
+		Trx trx = trxName != null ? Trx.get(trxName, false) : null;
+		if (trx == null)
+			return null;
+		return s_batches.computeIfAbsent(trxName, name -> {
+			ImportBatch batch = new ImportBatch(name, MSysConfig.getIntValue(BATCH_SIZE_SYSCONFIG, 1000));
+			trx.addTrxEventListener(batch);
+			return batch;
+		});
+	}
+
+	public static synchronized void shutdown() {
+		if (s_executor != null) {
+			s_executor.shutdownNow();
+			s_executor = null;
+		}
+		s_batches.clear();
+	}
+
+	private static synchronized void submit(List<ImportedPartner> partners) {
+		if (partners.isEmpty())
+			return;
+		if (s_executor == null) {
+			s_executor = Executors.newSingleThreadExecutor(r -> {
+				Thread thread = new Thread(r, "VATImportValidation");
+				thread.setDaemon(true);
+				return thread;
+			});
+		}
+		s_executor.execute(() -> {
+			try {
+				validate(partners);
+			} catch (Exception e) {
+				log.log(Level.SEVERE, "VAT validation of " + partners.size() + " imported partners", e);
+			}
+		});
+	}
+
+	/**
+	 * Validates each distinct tax ID once and writes the result to all its partners
+	 * @param partners committed partners of an import run
+	 */
+	private static void validate(List<ImportedPartner> partners) {
+		// one request per service, own tax ID and normalized tax ID, "DE 123.456.789" is the same number as "DE123456789"
+		Map<String, String> ownTaxIDs = new HashMap<>();
+		Map<String, DistinctTaxID> distinct = new LinkedHashMap<>();
+		for (ImportedPartner partner : partners) {
+			String service = MSysConfig.getValue(SERVICE_SYSCONFIG, VATValidationEngine.SERVICE_VIES, partner.clientID());
+			String ownTaxID = ownTaxIDs.computeIfAbsent(partner.clientID() + "|" + partner.orgID(), 
+					key -> DB.getSQLValueStringEx(null, "SELECT TaxID FROM AD_OrgInfo WHERE AD_Org_ID=?", partner.orgID()));
+			distinct.computeIfAbsent(service + "|" + ownTaxID + "|" + VATValidationRequest.normalizeTaxID(partner.taxID()), key -> {
+				VATValidationRequest request = new VATValidationRequest(partner.taxID(), service);
+				request.setOwnTaxID(ownTaxID);
+				return new DistinctTaxID(request);
+			}).partners.add(partner);
+		}
+
+		int parallelism = Math.max(1, MSysConfig.getIntValue(PARALLELISM_SYSCONFIG, 20));
+		Semaphore inFlight = new Semaphore(parallelism);
+		for (DistinctTaxID taxID : distinct.values()) {
+			// malformed numbers are rejected here without taking a slot
+			taxID.result = VATValidationEngine.preValidate(taxID.request);
+			if (taxID.result != null)
+				continue;
+			inFlight.acquireUninterruptibly();
+			CompletableFuture<VATValidationResult> validation;
+			try {
+				validation = VATValidationEngine.validateAsync(taxID.request);
+			} catch (RuntimeException e) {
+				validation = CompletableFuture.failedFuture(e);
+			}
+			validation.whenComplete((result, e) -> {
+				taxID.result = e == null ? result 
+						: VATValidationResult.error(taxID.request, VATHttpTransport.toAdempiereException(e));
+				inFlight.release();
+			});
+		}
+		inFlight.acquireUninterruptibly(parallelism);
+
+		int errors = 0;
+		// one writer per client and importing user, the IDs of the history rows are taken from the client
+		int batchSize = MSysConfig.getIntValue(BATCH_SIZE_SYSCONFIG, 1000);
+		Map<String, VATResultWriter> writers = new HashMap<>();
+		try {
+			for (DistinctTaxID taxID : distinct.values()) {
+				VATValidationResult result = taxID.result;
+				for (ImportedPartner partner : taxID.partners) {
+					if (result.isError()) {
+						errors++;
+						if (VATValidationQueue.isEnabled(partner.clientID()))
+							VATValidationQueue.enqueue(partner.clientID(), partner.orgID(), partner.partnerID(), partner.taxID(), null);
+					} else {
+						writers.computeIfAbsent(partner.clientID() + "|" + partner.userID(), 
+								key -> new VATResultWriter(partner.clientID(), batchSize, null, partner.userID()))
+							.add(partner.partnerID(), result, null);
+					}
+				}
+			}
+		} finally {
+			for (VATResultWriter writer : writers.values())
+				writer.close();
+		}
+		log.info("Imported partners = " + partners.size() + ", distinct tax IDs = " + distinct.size() + ", errors = " + errors);
+	}
+
+	/**
+	 * Partners of one import run. They are gathered over the commits of its
+	 * transaction and handed over for validation when it is closed,
+	 * or earlier in chunks once the committed partners reach the batch size
+	 */
+	private static class ImportBatch implements TrxEventListener {
+
+		private final String trxName;
+		private final int chunkSize;
+		/* saved since the last commit, the same partner can be imported twice in a run */
+		private final Map<Integer, ImportedPartner> pending = new LinkedHashMap<>();
+		/* committed, not handed over yet */
+		private final Map<Integer, ImportedPartner> committed = new LinkedHashMap<>();
+
+		ImportBatch(String trxName, int chunkSize) {
+			this.trxName = trxName;
+			this.chunkSize = Math.max(1, chunkSize);
+		}
+
+		synchronized void add(ImportedPartner partner) {
+			pending.put(partner.partnerID(), partner);
+		}
+
+		@Override
+		public void afterCommit(Trx trx, boolean success) {
+			if (!success)
+				return;
+			List<ImportedPartner> chunk = null;
+			synchronized (this) {
+				committed.putAll(pending);
+				pending.clear();
+				if (committed.size() >= chunkSize)
+					chunk = takeCommitted();
+			}
+			if (chunk != null)
+				submit(chunk);
+		}
+
+		@Override
+		public synchronized void afterRollback(Trx trx, boolean success) {
+			pending.clear();
+		}
+
+		@Override
+		public void afterClose(Trx trx) {
+			s_batches.remove(trxName);
+			List<ImportedPartner> rest;
+			synchronized (this) {
+				// not committed when the transaction is closed, i.e. the import failed
+				pending.clear();
+				rest = takeCommitted();
+			}
+			submit(rest);
+		}
+
+		private List<ImportedPartner> takeCommitted() {
+			List<ImportedPartner> partners = new ArrayList<>(committed.values());
+			committed.clear();
+			return partners;
+		}
+	}
+
+	private record ImportedPartner(int partnerID, int clientID, int orgID, int userID, String taxID) {
+	}
+
+	private static class DistinctTaxID {
+
+		private final VATValidationRequest request;
+		private final List<ImportedPartner> partners = new ArrayList<>();
+		/* set by the validation, read once all validations are done */
+		private volatile VATValidationResult result;
+
+		DistinctTaxID(VATValidationRequest request) {
+			this.request = request;
+		}
+	}
+}
@@ -0,0 +1,128 @@
+/**********************************************************************
+ * Copyright (C) Contributors                                          *
+ *                                                                     *
+ * This program is free software; you can redistribute it and/or       *
+ * modify it under the terms of the GNU General Public License         *
+ * as published by the Free Software Foundation; either version 2      *
+ * of the License, or (at your option) any later version.              *
+ *                                                                     *
+ * This program is distributed in the hope that it will be useful,     *
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of      *
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the        *
+ * GNU General Public License for more details.                        *
+ *                                                                     *
+ * You should have received a copy of the GNU General Public License   *
+ * along with this program; if not, write to the Free Software         *
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston,          *
+ * MA 02110-1301, USA.                                                 *
+ *                                                                     *
+ * Contributors:                                                       *
+ * - Diego Ruiz - Bx Service GmbH                                      *
+ **********************************************************************/
+package de.bxservice.vatvalidation.service;
+
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.compiere.model.MSysConfig;
+
+/**
+ * Client side token buckets per service and per service and member state.
+ * The rate of a bucket is halved every time the service reports an overload
+ * and recovers slowly with each successful call, up to the configured rate.
+ */
+public class VATRateLimiter {
+
+	private static final String RATE_SYSCONFIG_PREFIX = "BXS_VAT_RATE_";
+	private static final String COUNTRY_RATE_SYSCONFIG = "BXS_VAT_RATE_PER_COUNTRY";
+
+	private static final ConcurrentHashMap<String, TokenBucket> s_buckets = new ConcurrentHashMap<>();
+
+	private VATRateLimiter() {
+	}
+
+	/**
+	 * Reserves a permit for a call
+	 * @param service validation service
+	 * @param countryCode member state of the validated number
+	 * @return nanoseconds to wait before the call can be done
+	 */
+	public static long reserve(String service, String countryCode) {
+		long serviceWait = getServiceBucket(service).reserve();
+		long countryWait = getCountryBucket(service, countryCode).reserve();
+		return Math.max(serviceWait, countryWait);
+	}
+
+	/**
+	 * The service reported an overload or an unavailable member state
+	 */
+	public static void onThrottle(String service, String countryCode) {
+		getServiceBucket(service).decrease();
+		getCountryBucket(service, countryCode).decrease();
+	}
+
+	/**
+	 * The service answered, the rate recovers
+	 */
+	public static void onSuccess(String service, String countryCode) {
+		getServiceBucket(service).increase();
+		getCountryBucket(service, countryCode).increase();
+	}
+
+	/**
+	 * @return current calls per second allowed for the member state
+	 */
+	public static double getRate(String service, String countryCode) {
+		return getCountryBucket(service, countryCode).getRate();
+	}
+
+	private static TokenBucket getServiceBucket(String service) {
+		return s_buckets.computeIfAbsent(service, 
+				key -> new TokenBucket(MSysConfig.getDoubleValue(RATE_SYSCONFIG_PREFIX + service.toUpperCase(), 10)));
+	}
+
+	private static TokenBucket getCountryBucket(String service, String countryCode) {
+		return s_buckets.computeIfAbsent(service + "|" + countryCode, 
+				key -> new TokenBucket(MSysConfig.getDoubleValue(COUNTRY_RATE_SYSCONFIG, 5)));
+	}
+
+	/**
+	 * Token bucket allowing a burst of one second, a reservation
+	 * without tokens left goes into debt and waits for the refill
+	 */
+	private static class TokenBucket {
+
+		private final double maxRate;
+		private final double minRate;
+		private double rate;
+		private double tokens;
+		private long lastRefill;
+
+		TokenBucket(double maxRate) {
+			this.maxRate = Math.max(0.1, maxRate);
+			this.minRate = Math.min(this.maxRate, 0.1);
+			this.rate = this.maxRate;
+			this.tokens = this.maxRate;
+			this.lastRefill = System.nanoTime();
+		}
+
+		synchronized long reserve() {
+			long now = System.nanoTime();
+			tokens = Math.min(rate, tokens + (now - lastRefill) * rate / 1e9);
+			lastRefill = now;
+			tokens -= 1;
+			return tokens >= 0 ? 0 : (long) (-tokens / rate * 1e9);
+		}
+
+		synchronized void decrease() {
+			rate = Math.max(minRate, rate / 2);
+		}
+
+		synchronized void increase() {
+			rate = Math.min(maxRate, rate + maxRate / 20);
+		}
+
+		synchronized double getRate() {
+			return rate;
+		}
+	}
+}
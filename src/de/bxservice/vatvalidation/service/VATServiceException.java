@@ -0,0 +1,57 @@
+/**********************************************************************
+ * Copyright (C) Contributors                                          *
+ *                                                                     *
+ * This program is free software; you can redistribute it and/or       *
+ * modify it under the terms of the GNU General Public License         *
+ * as published by the Free Software Foundation; either version 2      *
+ * of the License, or (at your option) any later version.              *
+ *                                                                     *
+ * This program is distributed in the hope that it will be useful,     *
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of      *
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the        *
+ * GNU General Public License for more details.                        *
+ *                                                                     *
+ * You should have received a copy of the GNU General Public License   *
+ * along with this program; if not, write to the Free Software         *
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston,          *
+ * MA 02110-1301, USA.                                                 *
+ *                                                                     *
+ * Contributors:                                                       *
+ * - Diego Ruiz - Bx Service GmbH                                      *
+ **********************************************************************/
+package de.bxservice.vatvalidation.service;
+
+import org.adempiere.exceptions.AdempiereException;
+
+/**
+ * The validation service could not answer the request.
+ * Retryable errors are temporary, i.e. the member state is
+ * unavailable or too many requests are running.
+ */
+public class VATServiceException extends AdempiereException {
+
+	private static final long serialVersionUID = -2853418652950611424L;
+
+	private final String service;
+	private final String errorCode;
+	private final boolean retryable;
+
+	public VATServiceException(String message, String service, String errorCode, boolean retryable) {
+		super(message);
+		this.service = service;
+		this.errorCode = errorCode;
+		this.retryable = retryable;
+	}
+
+	public String getService() {
+		return service;
+	}
+
+	public String getErrorCode() {
+		return errorCode;
+	}
+
+	public boolean isRetryable() {
+		return retryable;
+	}
+}
@@ -0,0 +1,185 @@
+/**********************************************************************
+ * Copyright (C) Contributors                                          *
+ *                                                                     *
+ * This program is free software; you can redistribute it and/or       *
+ * modify it under the terms of the GNU General Public License         *
+ * as published by the Free Software Foundation; either version 2      *
+ * of the License, or (at your option) any later version.              *
+ *                                                                     *
+ * This program is distributed in the hope that it will be useful,     *
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of      *
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the        *
+ * GNU General Public License for more details.                        *
+ *                                                                     *
+ * You should have received a copy of the GNU General Public License   *
+ * along with this program; if not, write to the Free Software         *
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston,          *
+ * MA 02110-1301, USA.                                                 *
+ *                                                                     *
+ * Contributors:                                                       *
+ * - Diego Ruiz - Bx Service GmbH                                      *
+ **********************************************************************/
+package de.bxservice.vatvalidation.service;
+
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Timestamp;
+import java.util.UUID;
+import java.util.logging.Level;
+
+import org.compiere.model.MSysConfig;
+import org.compiere.util.CCache;
+import org.compiere.util.CLogger;
+import org.compiere.util.DB;
+
+/**
+ * Two tier cache of validation results keyed by service and normalized tax ID.
+ * The first tier is an in-memory LRU cache, the second one is the table
+ * BXS_VATValidationCache shared by all servers.
+ * Errors and qualified eVatR requests are never cached.
+ */
+public class VATValidationCache {
+
+	public static final String Table_Name = "BXS_VATValidationCache";
+
+	private static final String TTL_VALID_SYSCONFIG = "BXS_VAT_CACHE_TTL_VALID_MINUTES";
+	private static final String TTL_INVALID_SYSCONFIG = "BXS_VAT_CACHE_TTL_INVALID_MINUTES";
+	private static final String MAX_SIZE_SYSCONFIG = "BXS_VAT_CACHE_MAX_SIZE";
+	private static final String PERSISTENT_SYSCONFIG = "BXS_VAT_CACHE_PERSISTENT";
+
+	/** Logger */
+	private static CLogger log = CLogger.getCLogger(VATValidationCache.class);
+
+	private static final CCache<String, CacheEntry> s_cache = new CCache<>(Table_Name, 100, 0, false, 
+			MSysConfig.getIntValue(MAX_SIZE_SYSCONFIG, 10000));
+
+	private VATValidationCache() {
+	}
+
+	/**
+	 * Get a cached result that has not expired yet
+	 * @param request validation request
+	 * @return result built from the cache or null
+	 */
+	public static VATValidationResult get(VATValidationRequest request) {
+		if (!isCacheable(request))
+			return null;
+
+		String key = getKey(request.getService(), request.getNormalizedTaxID());
+		CacheEntry entry = s_cache.get(key);
+		if (entry == null && isPersistent()) {
+			entry = load(request.getService(), request.getNormalizedTaxID());
+			if (entry != null)
+				s_cache.put(key, entry);
+		}
+		if (entry == null)
+			return null;
+		if (isExpired(entry)) {
+			s_cache.remove(key);
+			return null;
+		}
+
+		VATValidationResult result = new VATValidationResult(request, 
+				entry.valid() ? VATValidationResult.Status.VALID : VATValidationResult.Status.INVALID);
+		result.setErrorCode(entry.errorCode());
+		result.setName(entry.name());
+		result.setAddress(entry.address());
+		result.setDateValidated(entry.dateValidated());
+		result.setFromCache(true);
+		return result;
+	}
+
+	/**
+	 * Stores the result in both tiers
+	 * @param result validation result
+	 */
+	public static void put(VATValidationResult result) {
+		if (result.isError() || result.isRejected() || result.isFromCache() || !isCacheable(result.getRequest()))
+			return;
+
+		String taxID = result.getRequest().getNormalizedTaxID();
+		CacheEntry entry = new CacheEntry(result.isValid(), result.getErrorCode(), result.getName(), 
+				result.getAddress(), result.getDateValidated());
+		s_cache.put(getKey(result.getService(), taxID), entry);
+		if (isPersistent())
+			save(result.getService(), taxID, entry);
+	}
+
+	/**
+	 * Removes the tax ID from both tiers, i.e. when the tax ID was changed
+	 * @param service validation service
+	 * @param taxID tax ID
+	 */
+	public static void remove(String service, String taxID) {
+		String normalized = VATValidationRequest.normalizeTaxID(taxID);
+		s_cache.remove(getKey(service, normalized));
+		if (isPersistent())
+			DB.executeUpdateEx("DELETE FROM " + Table_Name + " WHERE BXS_VATValidationService=? AND TaxID=?", 
+					new Object[] {service, normalized}, null);
+	}
+
+	private static boolean isCacheable(VATValidationRequest request) {
+		return !(request.isEVatR() && request.isQualified());
+	}
+
+	private static boolean isPersistent() {
+		return MSysConfig.getBooleanValue(PERSISTENT_SYSCONFIG, true);
+	}
+
+	private static boolean isExpired(CacheEntry entry) {
+		int ttlMinutes = entry.valid() 
+				? MSysConfig.getIntValue(TTL_VALID_SYSCONFIG, 1440)
+				: MSysConfig.getIntValue(TTL_INVALID_SYSCONFIG, 60);
+		return entry.dateValidated().getTime() + ttlMinutes * 60000L < System.currentTimeMillis();
+	}
+
+	private static String getKey(String service, String normalizedTaxID) {
+		return service + "|" + normalizedTaxID;
+	}
+
+	private static CacheEntry load(String service, String taxID) {
+		final String sql = "SELECT BXS_IsValidVATNumber, BXS_ErrorCode, Name, BXS_Address, BXS_DateVATValidated FROM " + Table_Name 
+				+ " WHERE BXS_VATValidationService=? AND TaxID=? AND IsActive='Y'";
+		PreparedStatement pstmt = null;
+		ResultSet rs = null;
+		try {
+			pstmt = DB.prepareStatement(sql, null);
+			pstmt.setString(1, service);
+			pstmt.setString(2, taxID);
+			rs = pstmt.executeQuery();
+			if (rs.next())
+				return new CacheEntry("Y".equals(rs.getString(1)), rs.getString(2), rs.getString(3), rs.getString(4), rs.getTimestamp(5));
+		} catch (SQLException e) {
+			// the cache must never break a validation
+			log.log(Level.WARNING, sql, e);
+		} finally {
+			DB.close(rs, pstmt);
+		}
+		return null;
+	}
+
+	private static void save(String service, String taxID, CacheEntry entry) {
+		Object[] values = new Object[] {entry.valid() ? "Y" : "N", entry.errorCode(), entry.name(), entry.address(), 
+				entry.dateValidated(), service, taxID};
+		try {
+			int updated = DB.executeUpdateEx("UPDATE " + Table_Name 
+					+ " SET BXS_IsValidVATNumber=?, BXS_ErrorCode=?, Name=?, BXS_Address=?, BXS_DateVATValidated=?, Updated=getDate()"
+					+ " WHERE BXS_VATValidationService=? AND TaxID=?", values, null);
+			if (updated == 0) {
+				int id = DB.getNextID(0, Table_Name, null);
+				DB.executeUpdateEx("INSERT INTO " + Table_Name 
+						+ " (" + Table_Name + "_ID, " + Table_Name + "_UU, AD_Client_ID, AD_Org_ID, IsActive, Created, CreatedBy, Updated, UpdatedBy,"
+						+ " BXS_IsValidVATNumber, BXS_ErrorCode, Name, BXS_Address, BXS_DateVATValidated, BXS_VATValidationService, TaxID)"
+						+ " VALUES (?, ?, 0, 0, 'Y', getDate(), 0, getDate(), 0, ?, ?, ?, ?, ?, ?, ?)", 
+						new Object[] {id, UUID.randomUUID().toString(), values[0], values[1], values[2], values[3], values[4], values[5], values[6]}, null);
+			}
+		} catch (Exception e) {
+			// a concurrent insert of the same tax ID is not a problem
+			log.log(Level.WARNING, "Could not persist validation result for " + taxID, e);
+		}
+	}
+
+	private record CacheEntry(boolean valid, String errorCode, String name, String address, Timestamp dateValidated) {
+	}
+}
@@ -0,0 +1,62 @@
+/**********************************************************************
+ * Copyright (C) Contributors                                          *
+ *                                                                     *
+ * This program is free software; you can redistribute it and/or       *
+ * modify it under the terms of the GNU General Public License         *
+ * as published by the Free Software Foundation; either version 2      *
+ * of the License, or (at your option) any later version.              *
+ *                                                                     *
+ * This program is distributed in the hope that it will be useful,     *
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of      *
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the        *
+ * GNU General Public License for more details.                        *
+ *                                                                     *
+ * You should have received a copy of the GNU General Public License   *
+ * along with this program; if not, write to the Free Software         *
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston,          *
+ * MA 02110-1301, USA.                                                 *
+ *                                                                     *
+ * Contributors:                                                       *
+ * - Diego Ruiz - Bx Service GmbH                                      *
+ **********************************************************************/
+package de.bxservice.vatvalidation.service;
+
+import org.osgi.service.component.annotations.Activate;
+import org.osgi.service.component.annotations.Component;
+import org.osgi.service.component.annotations.Deactivate;
+import org.osgi.service.component.annotations.Reference;
+import org.osgi.service.component.annotations.ReferenceCardinality;
+import org.osgi.service.component.annotations.ReferencePolicy;
+
+/**
+ * Ties the lifecycle of the shared validation resources to the bundle
+ * and hands the registered validation providers to the engine
+ */
+@Component(immediate = true, service = VATValidationComponent.class)
+public class VATValidationComponent {
+
+	@Activate
+	protected void activate() {
+		VATValidationMetrics.register();
+		VATValidationQueue.start();
+	}
+
+	@Deactivate
+	protected void deactivate() {
+		VATValidationQueue.stop();
+		VATImportValidation.shutdown();
+		VATValidationEngine.shutdown();
+		VATHttpTransport.shutdown();
+		VATValidationMetrics.unregister();
+	}
+
+	@Reference(cardinality = ReferenceCardinality.MULTIPLE, policy = ReferencePolicy.DYNAMIC, 
+			unbind = "unbindProvider")
+	protected void bindProvider(IVATValidationProvider provider) {
+		VATValidationEngine.addProvider(provider);
+	}
+
+	protected void unbindProvider(IVATValidationProvider provider) {
+		VATValidationEngine.removeProvider(provider);
+	}
+}
@@ -0,0 +1,626 @@
+/**********************************************************************
+ * Copyright (C) Contributors                                          *
+ *                                                                     *
+ * This program is free software; you can redistribute it and/or       *
+ * modify it under the terms of the GNU General Public License         *
+ * as published by the Free Software Foundation; either version 2      *
+ * of the License, or (at your option) any later version.              *
+ *                                                                     *
+ * This program is distributed in the hope that it will be useful,     *
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of      *
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the        *
+ * GNU General Public License for more details.                        *
+ *                                                                     *
+ * You should have received a copy of the GNU General Public License   *
+ * along with this program; if not, write to the Free Software         *
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston,          *
+ * MA 02110-1301, USA.                                                 *
+ *                                                                     *
+ * Contributors:                                                       *
+ * - Diego Ruiz - Bx Service GmbH                                      *
+ **********************************************************************/
+package de.bxservice.vatvalidation.service;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
+
+import org.adempiere.exceptions.AdempiereException;
+import org.compiere.model.MSysConfig;
+import org.compiere.util.CLogger;
+
+/**
+ * Entry point for VAT number validations.
+ * The methods are thread safe so they can be called from worker threads,
+ * no context is accessed while validating. The database is only used for
+ * the persistent tier of the {@link VATValidationCache}, results are stored
+ * there on the completion executor and never on the HTTP client threads.
+ */
+public class VATValidationEngine {
+
+	public static final String SERVICE_VIES = "VIES";
+	public static final String SERVICE_EVATR = "eVatR";
+
+	private static final String PREVALIDATION_SYSCONFIG = "BXS_VAT_PREVALIDATION";
+	private static final String RETRY_MAX_SYSCONFIG = "BXS_VAT_RETRY_MAX_ATTEMPTS";
+	private static final String RETRY_BACKOFF_SYSCONFIG = "BXS_VAT_RETRY_BACKOFF_MS";
+	private static final String FAILOVER_SYSCONFIG = "BXS_VAT_FAILOVER";
+	private static final String COMPLETION_THREADS_SYSCONFIG = "BXS_VAT_COMPLETION_THREADS";
+
+	/** Logger */
+	private static CLogger log = CLogger.getCLogger(VATValidationEngine.class);
+
+	/** Providers registered as OSGi services */
+	private static final List<ProviderSlot> s_providers = new CopyOnWriteArrayList<>();
+	/** Used when no provider of the service is registered, e.g. outside of OSGi */
+	private static final List<ProviderSlot> s_builtinProviders = List.of(
+			new ProviderSlot(new VIESClient()), new ProviderSlot(new EVatRClient()));
+
+	/** Remote validations in progress by coalescing key */
+	private static final ConcurrentHashMap<String, InFlight> s_inFlight = new ConcurrentHashMap<>();
+
+	/** Runs the blocking work following a remote call, the few HTTP client threads must not wait for the database */
+	private static ExecutorService s_completionExecutor = null;
+
+	private VATValidationEngine() {
+	}
+
+	public static void addProvider(IVATValidationProvider provider) {
+		s_providers.add(new ProviderSlot(provider));
+	}
+
+	public static void removeProvider(IVATValidationProvider provider) {
+		s_providers.removeIf(slot -> slot.provider == provider);
+	}
+
+	/**
+	 * Validates the tax ID of the request with the requested service.
+	 * Numbers failing the local format check are rejected without a remote call,
+	 * a cached result is used unless the request forces a refresh
+	 * @param request validation request
+	 * @return result
+	 * @throws org.adempiere.exceptions.AdempiereException when the service cannot answer
+	 */
+	public static VATValidationResult validate(VATValidationRequest request) {
+		VATValidationResult rejected = preValidate(request);
+		if (rejected != null)
+			return rejected;
+
+		VATValidationResult cached = getCached(request);
+		if (cached != null)
+			return cached;
+
+		return VATHttpTransport.join(validateRemote(request));
+	}
+
+	/**
+	 * Validates the tax ID without blocking the calling thread,
+	 * many validations can be pipelined this way without parking one thread per request
+	 * @param request validation request
+	 * @return future result. Cancelling it releases the caller, the remote call
+	 * is aborted once every caller sharing it has cancelled
+	 */
+	public static CompletableFuture<VATValidationResult> validateAsync(VATValidationRequest request) {
+		VATValidationResult rejected = preValidate(request);
+		if (rejected != null)
+			return CompletableFuture.completedFuture(rejected);
+
+		VATValidationResult cached = getCached(request);
+		if (cached != null)
+			return CompletableFuture.completedFuture(cached);
+
+		return validateRemote(request);
+	}
+
+	/**
+	 * Calls a provider of the service directly, without cache, coalescing, retries,
+	 * circuit breaker, rate limiter nor metrics, so measuring a provider
+	 * does not change the state shared by the production validations
+	 * @param request validation request
+	 * @return future result, failing with {@link VATServiceException} when the service answers with an error
+	 */
+	public static CompletableFuture<VATValidationResult> validateIsolated(VATValidationRequest request) {
+		for (ProviderSlot slot : getProviders(request.getService())) {
+			if (slot.provider.isSupported(request))
+				return slot.provider.validateAsync(request);
+		}
+		return CompletableFuture.failedFuture(new VATServiceException("No " + request.getService() + " provider for " + request.getTaxID(), 
+				request.getService(), "NOT_SUPPORTED", false));
+	}
+
+	private static VATValidationResult getCached(VATValidationRequest request) {
+		if (request.isForceRefresh())
+			return null;
+		VATValidationResult cached = VATValidationCache.get(request);
+		if (cached != null)
+			VATValidationMetrics.recordCacheHit();
+		else
+			VATValidationMetrics.recordCacheMiss();
+		return cached;
+	}
+
+	/**
+	 * The own tax ID is mandatory for eVatR and lets VIES requests fail over to eVatR
+	 * @param service validation service
+	 * @return true if the own tax ID of the organization is used by the validation
+	 */
+	public static boolean isOwnTaxIDRequired(String service) {
+		return SERVICE_EVATR.equals(service) || MSysConfig.getBooleanValue(FAILOVER_SYSCONFIG, true);
+	}
+
+	/**
+	 * Local format and check digit validation
+	 * @param request validation request
+	 * @return rejected result or null if the number must be checked remotely
+	 */
+	public static VATValidationResult preValidate(VATValidationRequest request) {
+		if (!MSysConfig.getBooleanValue(PREVALIDATION_SYSCONFIG, true))
+			return null;
+		TaxIDPreValidator.Reason reason = TaxIDPreValidator.check(request.getTaxID());
+		if (!reason.isRejected())
+			return null;
+		VATValidationMetrics.recordRejected(request);
+		return VATValidationResult.rejected(request, reason);
+	}
+
+	/**
+	 * Calls the service. Concurrent validations of the same request share
+	 * one remote call, each caller gets the result bound to its own request.
+	 * Cancelling the returned future releases the caller, the last one
+	 * cancelling also aborts the remote call
+	 */
+	private static CompletableFuture<VATValidationResult> validateRemote(VATValidationRequest request) {
+		String key = request.getCoalescingKey();
+		InFlight inFlight = new InFlight(key);
+		while (true) {
+			InFlight existing = s_inFlight.putIfAbsent(key, inFlight);
+			if (existing == null)
+				break;
+			if (existing.tryJoin()) {
+				VATValidationMetrics.recordCoalesced();
+				return existing.newWaiter(request);
+			}
+			// every caller of the existing one has cancelled
+			s_inFlight.remove(key, existing);
+		}
+
+		CompletableFuture<VATValidationResult> remote = callWithRetry(request, 1, null, true, inFlight);
+		remote.whenCompleteAsync((result, e) -> {
+			if (e == null)
+				VATValidationCache.put(result);
+			s_inFlight.remove(key, inFlight);
+			if (e != null)
+				inFlight.shared.completeExceptionally(e);
+			else
+				inFlight.shared.complete(result);
+		}, getCompletionExecutor());
+		return inFlight.newWaiter(request);
+	}
+
+	/**
+	 * Calls the service once the rate limiter allows it. Temporary errors
+	 * (overload, member state unavailable, timeouts) slow down the rate for the
+	 * service and member state and are retried with an exponential backoff.
+	 * When the circuit of every provider of the service is open the call fails fast
+	 * or fails over to the other service where that is legal
+	 * @param request validation request
+	 * @param attempt number of this attempt, starting with 1
+	 * @param failed provider of the failed previous attempt, another one is preferred
+	 * @param failover whether the request may still fail over to the other service
+	 * @param inFlight shared call, no new attempt is started once all its callers have cancelled
+	 * @return future result
+	 */
+	private static CompletableFuture<VATValidationResult> callWithRetry(VATValidationRequest request, int attempt, 
+			ProviderSlot failed, boolean failover, InFlight inFlight) {
+		if (inFlight.shared.isCancelled())
+			return CompletableFuture.failedFuture(new CancellationException());
+		String service = request.getService();
+		String countryCode = request.getCountryCode();
+
+		List<ProviderSlot> slots = getProviders(service);
+		ProviderSlot slot = route(slots, request, failed);
+		if (slot == null || !slot.breaker.tryAcquire()) {
+			if (!isSupported(slots, request))
+				return CompletableFuture.failedFuture(new VATServiceException("No " + service + " provider for " + request.getTaxID(), 
+						service, "NOT_SUPPORTED", false));
+
+			VATValidationRequest alternate = failover ? getFailoverRequest(request) : null;
+			if (alternate != null) {
+				log.info(service + " circuit open, validating " + request.getTaxID() + " with " + alternate.getService());
+				return callWithRetry(alternate, attempt, null, false, inFlight);
+			}
+			return CompletableFuture.failedFuture(new VATServiceException(getCircuitOpenMessage(slots, request), 
+					service, "CIRCUIT_OPEN", false));
+		}
+
+		long waitNanos = VATRateLimiter.reserve(service, countryCode);
+		CompletableFuture<VATValidationResult> call = waitNanos > 0
+				? CompletableFuture.runAsync(() -> {}, CompletableFuture.delayedExecutor(waitNanos, TimeUnit.NANOSECONDS))
+						.thenCompose(x -> inFlight.submit(slot, request))
+				: inFlight.submit(slot, request);
+
+		return call.handle((result, e) -> {
+			if (e == null) {
+				VATRateLimiter.onSuccess(service, countryCode);
+				return CompletableFuture.completedFuture(result);
+			}
+			AdempiereException exception = VATHttpTransport.toAdempiereException(e);
+			if (!isRetryable(exception))
+				return CompletableFuture.<VATValidationResult>failedFuture(exception);
+
+			VATRateLimiter.onThrottle(service, countryCode);
+			int maxAttempts = MSysConfig.getIntValue(RETRY_MAX_SYSCONFIG, 3);
+			if (attempt >= maxAttempts)
+				return CompletableFuture.<VATValidationResult>failedFuture(exception);
+
+			long backoff = getRetryBackoff(attempt);
+			log.fine("Retrying " + request.getTaxID() + " in " + backoff + "ms after: " + exception.getLocalizedMessage());
+			return CompletableFuture.runAsync(() -> {}, CompletableFuture.delayedExecutor(backoff, TimeUnit.MILLISECONDS))
+					.thenCompose(x -> callWithRetry(request, attempt + 1, slot, failover, inFlight));
+		}).thenCompose(future -> future);
+	}
+
+	/**
+	 * @return registered providers of the service, the built-in ones if none is registered
+	 */
+	private static List<ProviderSlot> getProviders(String service) {
+		List<ProviderSlot> slots = new ArrayList<>(2);
+		for (ProviderSlot slot : s_providers) {
+			if (slot.provider.getService().equals(service))
+				slots.add(slot);
+		}
+		if (slots.isEmpty()) {
+			for (ProviderSlot slot : s_builtinProviders) {
+				if (slot.provider.getService().equals(service))
+					slots.add(slot);
+			}
+		}
+		return slots;
+	}
+
+	private static boolean isSupported(List<ProviderSlot> slots, VATValidationRequest request) {
+		for (ProviderSlot slot : slots) {
+			if (slot.provider.isSupported(request))
+				return true;
+		}
+		return false;
+	}
+
+	/**
+	 * Picks the cheapest provider supporting the request with a closed circuit,
+	 * providers with free capacity and other than the failed one first
+	 * @return provider or null if none can take the request
+	 */
+	private static ProviderSlot route(List<ProviderSlot> slots, VATValidationRequest request, ProviderSlot failed) {
+		ProviderSlot best = null;
+		int bestRank = Integer.MAX_VALUE;
+		for (ProviderSlot slot : slots) {
+			IVATValidationProvider provider = slot.provider;
+			if (!provider.isSupported(request) || !slot.breaker.isCallPermitted())
+				continue;
+			// providers without free capacity or failing come after the others, whatever their cost
+			int rank = provider.getCost();
+			if (slot == failed)
+				rank += 2_000_000;
+			if (!slot.hasCapacity())
+				rank += 1_000_000;
+			if (best == null || rank < bestRank) {
+				best = slot;
+				bestRank = rank;
+			}
+		}
+		return best;
+	}
+
+	/**
+	 * VIES only confirms that a number is valid, so eVatR can answer a VIES request
+	 * when the organization has a German VAT number. A qualified eVatR request also
+	 * confirms the address, only a simple one can be answered by VIES
+	 * @return request for the other service or null if failing over is not allowed
+	 */
+	private static VATValidationRequest getFailoverRequest(VATValidationRequest request) {
+		if (!MSysConfig.getBooleanValue(FAILOVER_SYSCONFIG, true))
+			return null;
+		VATValidationRequest alternate;
+		if (request.isEVatR()) {
+			if (request.isQualified())
+				return null;
+			alternate = request.forService(SERVICE_VIES);
+		} else {
+			alternate = request.forService(SERVICE_EVATR);
+		}
+		List<ProviderSlot> slots = getProviders(alternate.getService());
+		return route(slots, alternate, null) != null ? alternate : null;
+	}
+
+	private static String getCircuitOpenMessage(List<ProviderSlot> slots, VATValidationRequest request) {
+		StringBuilder msg = new StringBuilder(request.getService()).append(" unavailable, validation of ")
+				.append(request.getTaxID()).append(" deferred");
+		for (ProviderSlot slot : slots) {
+			if (slot.provider.isSupported(request) && slot.breaker.getOpenUntil() != null)
+				msg.append(" - ").append(slot.breaker);
+		}
+		return msg.toString();
+	}
+
+	/**
+	 * @return circuit breakers of the providers in use
+	 */
+	public static List<VATCircuitBreaker> getCircuitBreakers() {
+		List<VATCircuitBreaker> breakers = new ArrayList<>();
+		for (String service : new String[] {SERVICE_VIES, SERVICE_EVATR}) {
+			for (ProviderSlot slot : getProviders(service))
+				breakers.add(slot.breaker);
+		}
+		for (ProviderSlot slot : s_providers) {
+			if (!breakers.contains(slot.breaker))
+				breakers.add(slot.breaker);
+		}
+		return breakers;
+	}
+
+	/**
+	 * Exponential backoff with up to 50% jitter, so the retries of many
+	 * requests failing together do not hit the service at the same time
+	 * @param attempt number of the failed attempt, starting with 1
+	 * @return milliseconds to wait before the next attempt
+	 */
+	static long getRetryBackoff(int attempt) {
+		long backoff = MSysConfig.getIntValue(RETRY_BACKOFF_SYSCONFIG, 1000) * (1L << (attempt - 1));
+		return backoff + ThreadLocalRandom.current().nextLong(backoff / 2 + 1);
+	}
+
+	static boolean isRetryable(AdempiereException e) {
+		if (e instanceof VATServiceException)
+			return ((VATServiceException) e).isRetryable();
+		// timeouts and connection problems
+		return e.getCause() instanceof IOException;
+	}
+
+	/**
+	 * @return number of remote validations currently running
+	 */
+	public static int getInFlightCount() {
+		return s_inFlight.size();
+	}
+
+	/**
+	 * @return executor for the blocking work following a remote call, i.e. storing
+	 * the result in the database, created on first use
+	 */
+	public static synchronized ExecutorService getCompletionExecutor() {
+		if (s_completionExecutor == null)
+			s_completionExecutor = newExecutor(MSysConfig.getIntValue(COMPLETION_THREADS_SYSCONFIG, 4), false, "VATValidationCompletion");
+		return s_completionExecutor;
+	}
+
+	/**
+	 * Stops the completion threads once the pending work is done.
+	 * Called when the bundle is deactivated, a later validation creates new threads
+	 */
+	public static synchronized void shutdown() {
+		if (s_completionExecutor != null) {
+			s_completionExecutor.shutdown();
+			s_completionExecutor = null;
+		}
+	}
+
+	/**
+	 * Creates an executor with at most parallelism concurrent validations
+	 * @param parallelism max number of threads
+	 * @param virtualThreads use virtual threads when the running JVM supports them
+	 * @param name thread name prefix
+	 * @return executor, must be shut down by the caller
+	 */
+	public static ExecutorService newExecutor(int parallelism, boolean virtualThreads, String name) {
+		ThreadFactory factory = null;
+		if (virtualThreads)
+			factory = getVirtualThreadFactory(name);
+		if (factory == null) {
+			AtomicInteger count = new AtomicInteger();
+			factory = r -> {
+				Thread thread = new Thread(r, name + "-" + count.incrementAndGet());
+				thread.setDaemon(true);
+				return thread;
+			};
+		}
+		return Executors.newFixedThreadPool(Math.max(1, parallelism), factory);
+	}
+
+	/**
+	 * Virtual threads are only available from Java 21,
+	 * the bundle still runs on Java 17 so they are looked up by reflection
+	 * @return virtual thread factory or null if not supported
+	 */
+	private static ThreadFactory getVirtualThreadFactory(String name) {
+		try {
+			Object builder = Thread.class.getMethod("ofVirtual").invoke(null);
+			Class<?> builderClass = Class.forName("java.lang.Thread$Builder");
+			builder = builderClass.getMethod("name", String.class, long.class).invoke(builder, name + "-", 1L);
+			return (ThreadFactory) builderClass.getMethod("factory").invoke(builder);
+		} catch (ReflectiveOperationException e) {
+			log.log(Level.INFO, "Virtual threads not supported, using platform threads");
+			return null;
+		}
+	}
+
+	/**
+	 * Remote call shared by the callers of the same coalescing key
+	 */
+	private static class InFlight {
+		private final String key;
+		private final CompletableFuture<VATValidationResult> shared = new CompletableFuture<>();
+		/** Callers not cancelled yet, the remote call is cancelled when it drops to 0 */
+		private final AtomicInteger waiters = new AtomicInteger(1);
+		/** Provider call of the current attempt */
+		private volatile CompletableFuture<VATValidationResult> attempt;
+
+		private InFlight(String key) {
+			this.key = key;
+		}
+
+		/**
+		 * @return false if every caller has already cancelled
+		 */
+		private boolean tryJoin() {
+			while (true) {
+				int current = waiters.get();
+				if (current == 0)
+					return false;
+				if (waiters.compareAndSet(current, current + 1))
+					return true;
+			}
+		}
+
+		private CompletableFuture<VATValidationResult> newWaiter(VATValidationRequest request) {
+			CompletableFuture<VATValidationResult> waiter = shared.thenApply(result -> result.copyFor(request));
+			waiter.whenComplete((result, e) -> {
+				if (waiter.isCancelled())
+					release();
+			});
+			return waiter;
+		}
+
+		private void release() {
+			if (waiters.decrementAndGet() > 0 || shared.isDone())
+				return;
+			s_inFlight.remove(key, this);
+			shared.cancel(true);
+			CompletableFuture<VATValidationResult> current = attempt;
+			if (current != null)
+				current.cancel(true);
+		}
+
+		private CompletableFuture<VATValidationResult> submit(ProviderSlot slot, VATValidationRequest request) {
+			// all callers cancelled while the rate limiter delayed the attempt
+			if (shared.isCancelled()) {
+				slot.breaker.onIgnored();
+				return CompletableFuture.failedFuture(new CancellationException());
+			}
+			CompletableFuture<VATValidationResult> call = slot.submit(request);
+			attempt = call;
+			// all callers cancelled while the attempt was being submitted
+			if (shared.isCancelled())
+				call.cancel(true);
+			return call;
+		}
+	}
+
+	/**
+	 * Limits the concurrent calls to a provider, the calls above
+	 * the limit wait in a queue without blocking a thread.
+	 * Package private for the tests
+	 */
+	static class ProviderSlot {
+		private final IVATValidationProvider provider;
+		private final AtomicInteger running = new AtomicInteger();
+		private final ConcurrentLinkedQueue<Runnable> waiting = new ConcurrentLinkedQueue<>();
+		final VATCircuitBreaker breaker;
+
+		private ProviderSlot(IVATValidationProvider provider) {
+			this(provider, new VATCircuitBreaker(provider.getService() + " " + provider.getClass().getSimpleName()));
+		}
+
+		ProviderSlot(IVATValidationProvider provider, VATCircuitBreaker breaker) {
+			this.provider = provider;
+			this.breaker = breaker;
+		}
+
+		private boolean hasCapacity() {
+			return running.get() < provider.getMaxConcurrency() && waiting.isEmpty();
+		}
+
+		CompletableFuture<VATValidationResult> submit(VATValidationRequest request) {
+			CompletableFuture<VATValidationResult> result = new CompletableFuture<>();
+			waiting.add(() -> start(request, result));
+			drain();
+			return result;
+		}
+
+		private void drain() {
+			while (!waiting.isEmpty()) {
+				int current = running.get();
+				if (current >= Math.max(1, provider.getMaxConcurrency()))
+					return;
+				if (!running.compareAndSet(current, current + 1))
+					continue;
+				Runnable next = waiting.poll();
+				if (next == null) {
+					running.decrementAndGet();
+					continue;
+				}
+				next.run();
+			}
+		}
+
+		private void start(VATValidationRequest request, CompletableFuture<VATValidationResult> result) {
+			// cancelled while waiting for a free slot, a half open trial that never ran must not block the next one
+			if (result.isDone()) {
+				breaker.onIgnored();
+				running.decrementAndGet();
+				return;
+			}
+			long start = System.nanoTime();
+			CompletableFuture<VATValidationResult> call;
+			try {
+				call = provider.validateAsync(request);
+			} catch (RuntimeException e) {
+				call = CompletableFuture.failedFuture(e);
+			}
+			CompletableFuture<VATValidationResult> providerCall = call;
+			result.whenComplete((r, e) -> {
+				if (result.isCancelled())
+					providerCall.cancel(true);
+			});
+			call.whenComplete((r, e) -> {
+				VATValidationMetrics.recordCall(request, r, e, System.nanoTime() - start);
+				recordBreaker(e);
+				running.decrementAndGet();
+				if (e != null)
+					result.completeExceptionally(e);
+				else
+					result.complete(r);
+				drain();
+			});
+		}
+
+		/**
+		 * Any answer of the service shows the endpoint is up, only overload,
+		 * timeouts and connection problems count as failures. Member state
+		 * errors of VIES say nothing about the endpoint
+		 */
+		private void recordBreaker(Throwable e) {
+			if (e == null) {
+				breaker.onSuccess();
+				return;
+			}
+			AdempiereException exception = VATHttpTransport.toAdempiereException(e);
+			if (exception instanceof VATServiceException) {
+				VATServiceException serviceException = (VATServiceException) exception;
+				String errorCode = serviceException.getErrorCode();
+				if ("MS_UNAVAILABLE".equals(errorCode) || "MS_MAX_CONCURRENT_REQ".equals(errorCode))
+					breaker.onIgnored();
+				else if (serviceException.isRetryable())
+					breaker.onFailure(errorCode);
+				else
+					breaker.onSuccess();
+			} else if (exception.getCause() instanceof IOException) {
+				breaker.onFailure(exception.getLocalizedMessage());
+			} else {
+				breaker.onIgnored();
+			}
+		}
+	}
+}
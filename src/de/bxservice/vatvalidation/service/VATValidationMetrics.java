@@ -0,0 +1,300 @@
+/**********************************************************************
+ * Copyright (C) Contributors                                          *
+ *                                                                     *
+ * This program is free software; you can redistribute it and/or       *
+ * modify it under the terms of the GNU General Public License         *
+ * as published by the Free Software Foundation; either version 2      *
+ * of the License, or (at your option) any later version.              *
+ *                                                                     *
+ * This program is distributed in the hope that it will be useful,     *
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of      *
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the        *
+ * GNU General Public License for more details.                        *
+ *                                                                     *
+ * You should have received a copy of the GNU General Public License   *
+ * along with this program; if not, write to the Free Software         *
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston,          *
+ * MA 02110-1301, USA.                                                 *
+ *                                                                     *
+ * Contributors:                                                       *
+ * - Diego Ruiz - Bx Service GmbH                                      *
+ **********************************************************************/
+package de.bxservice.vatvalidation.service;
+
+import java.lang.management.ManagementFactory;
+import java.net.http.HttpTimeoutException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.logging.Level;
+
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import org.compiere.util.CLogger;
+
+/**
+ * Counters and latency histograms of the validations of this server
+ * per service, country code and outcome. Remote calls are measured per
+ * attempt, without the time waiting for the rate limiter.
+ * Recording is lock free so it can be called from the HTTP threads.
+ */
+public class VATValidationMetrics implements VATValidationMetricsMXBean {
+
+	public static final String OBJECT_NAME = "de.bxservice.vatvalidation:type=VATValidationMetrics";
+
+	public enum Outcome {
+		VALID, INVALID, REJECTED, ERROR, TIMEOUT
+	}
+
+	/** Upper bounds of the latency buckets in milliseconds, the last bucket is unbounded */
+	private static final long[] BUCKETS = {50, 100, 250, 500, 1000, 2500, 5000, 10000, 30000};
+
+	/** Logger */
+	private static CLogger log = CLogger.getCLogger(VATValidationMetrics.class);
+
+	private static final VATValidationMetrics INSTANCE = new VATValidationMetrics();
+
+	private final ConcurrentHashMap<String, Histogram> histograms = new ConcurrentHashMap<>();
+	private final LongAdder cacheHits = new LongAdder();
+	private final LongAdder cacheMisses = new LongAdder();
+	private final LongAdder coalesced = new LongAdder();
+
+	private VATValidationMetrics() {
+	}
+
+	public static VATValidationMetrics get() {
+		return INSTANCE;
+	}
+
+	public static void recordCacheHit() {
+		INSTANCE.cacheHits.increment();
+	}
+
+	public static void recordCacheMiss() {
+		INSTANCE.cacheMisses.increment();
+	}
+
+	public static void recordCoalesced() {
+		INSTANCE.coalesced.increment();
+	}
+
+	/**
+	 * Counts a number rejected by the local check
+	 */
+	public static void recordRejected(VATValidationRequest request) {
+		record(request, Outcome.REJECTED, 0);
+	}
+
+	/**
+	 * Records one remote call
+	 * @param request validation request
+	 * @param result result or null when the call failed
+	 * @param e error or null
+	 * @param nanos duration of the call
+	 */
+	public static void recordCall(VATValidationRequest request, VATValidationResult result, Throwable e, long nanos) {
+		Outcome outcome;
+		if (e != null)
+			outcome = isTimeout(e) ? Outcome.TIMEOUT : Outcome.ERROR;
+		else
+			outcome = result.isValid() ? Outcome.VALID : Outcome.INVALID;
+		record(request, outcome, nanos / 1_000_000);
+	}
+
+	private static void record(VATValidationRequest request, Outcome outcome, long millis) {
+		String taxID = request.getTaxID();
+		String countryCode = taxID != null && taxID.length() >= 2 ? taxID.substring(0, 2).toUpperCase() : "";
+		String key = request.getService() + '|' + countryCode + '|' + outcome.name();
+		INSTANCE.histograms.computeIfAbsent(key, k -> new Histogram(request.getService(), countryCode, outcome))
+			.record(millis);
+	}
+
+	private static boolean isTimeout(Throwable e) {
+		for (Throwable cause = e; cause != null; cause = cause.getCause()) {
+			if (cause instanceof HttpTimeoutException)
+				return true;
+		}
+		return false;
+	}
+
+	/**
+	 * @return statistics sorted by service, country code and outcome
+	 */
+	public List<Statistic> getSnapshot() {
+		List<Statistic> statistics = new ArrayList<>(histograms.size());
+		for (Histogram histogram : histograms.values())
+			statistics.add(histogram.snapshot());
+		statistics.sort((a, b) -> {
+			int compare = a.service().compareTo(b.service());
+			if (compare == 0)
+				compare = a.countryCode().compareTo(b.countryCode());
+			if (compare == 0)
+				compare = a.outcome().compareTo(b.outcome());
+			return compare;
+		});
+		return statistics;
+	}
+
+	@Override
+	public long getCacheHits() {
+		return cacheHits.sum();
+	}
+
+	@Override
+	public long getCacheMisses() {
+		return cacheMisses.sum();
+	}
+
+	@Override
+	public double getCacheHitRatio() {
+		long hits = cacheHits.sum();
+		long total = hits + cacheMisses.sum();
+		return total == 0 ? 0 : (double) hits / total;
+	}
+
+	@Override
+	public long getCoalescedCalls() {
+		return coalesced.sum();
+	}
+
+	@Override
+	public long getRemoteCalls() {
+		long calls = 0;
+		for (Histogram histogram : histograms.values()) {
+			if (histogram.outcome != Outcome.REJECTED)
+				calls += histogram.count.sum();
+		}
+		return calls;
+	}
+
+	@Override
+	public int getInFlight() {
+		return VATValidationEngine.getInFlightCount();
+	}
+
+	@Override
+	public String[] getStatistics() {
+		List<Statistic> statistics = getSnapshot();
+		String[] lines = new String[statistics.size()];
+		for (int i = 0; i < lines.length; i++)
+			lines[i] = statistics.get(i).toString();
+		return lines;
+	}
+
+	@Override
+	public String[] getCircuitBreakers() {
+		List<VATCircuitBreaker> breakers = VATValidationEngine.getCircuitBreakers();
+		String[] lines = new String[breakers.size()];
+		for (int i = 0; i < lines.length; i++)
+			lines[i] = breakers.get(i).toString();
+		return lines;
+	}
+
+	@Override
+	public void reset() {
+		histograms.clear();
+		cacheHits.reset();
+		cacheMisses.reset();
+		coalesced.reset();
+	}
+
+	/**
+	 * Registers the metrics in the platform MBean server
+	 */
+	public static void register() {
+		try {
+			MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+			ObjectName name = new ObjectName(OBJECT_NAME);
+			if (!server.isRegistered(name))
+				server.registerMBean(INSTANCE, name);
+		} catch (Exception e) {
+			log.log(Level.WARNING, "Could not register " + OBJECT_NAME, e);
+		}
+	}
+
+	public static void unregister() {
+		try {
+			MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+			ObjectName name = new ObjectName(OBJECT_NAME);
+			if (server.isRegistered(name))
+				server.unregisterMBean(name);
+		} catch (Exception e) {
+			log.log(Level.WARNING, "Could not unregister " + OBJECT_NAME, e);
+		}
+	}
+
+	/**
+	 * Latency distribution of one service, country code and outcome
+	 */
+	private static class Histogram {
+		private final String service;
+		private final String countryCode;
+		private final Outcome outcome;
+		private final LongAdder count = new LongAdder();
+		private final LongAdder totalMillis = new LongAdder();
+		private final LongAccumulator maxMillis = new LongAccumulator(Long::max, 0);
+		private final LongAdder[] buckets = new LongAdder[BUCKETS.length + 1];
+
+		private Histogram(String service, String countryCode, Outcome outcome) {
+			this.service = service;
+			this.countryCode = countryCode;
+			this.outcome = outcome;
+			for (int i = 0; i < buckets.length; i++)
+				buckets[i] = new LongAdder();
+		}
+
+		private void record(long millis) {
+			count.increment();
+			totalMillis.add(millis);
+			maxMillis.accumulate(millis);
+			int bucket = 0;
+			while (bucket < BUCKETS.length && millis > BUCKETS[bucket])
+				bucket++;
+			buckets[bucket].increment();
+		}
+
+		private Statistic snapshot() {
+			long[] counts = new long[buckets.length];
+			long total = 0;
+			for (int i = 0; i < buckets.length; i++) {
+				counts[i] = buckets[i].sum();
+				total += counts[i];
+			}
+			long max = maxMillis.get();
+			return new Statistic(service, countryCode, outcome, total, 
+					total == 0 ? 0 : totalMillis.sum() / total, 
+					percentile(counts, total, 0.5, max), percentile(counts, total, 0.95, max), percentile(counts, total, 0.99, max), max);
+		}
+
+		/**
+		 * @return upper bound of the bucket holding the percentile
+		 */
+		private static long percentile(long[] counts, long total, double percentile, long max) {
+			long rank = (long) Math.ceil(total * percentile);
+			long seen = 0;
+			for (int i = 0; i < counts.length; i++) {
+				seen += counts[i];
+				if (seen >= rank && seen > 0)
+					return i < BUCKETS.length ? Math.min(BUCKETS[i], max) : max;
+			}
+			return max;
+		}
+	}
+
+	/**
+	 * Snapshot of one histogram, latencies in milliseconds
+	 * and percentiles rounded up to the bucket bounds
+	 */
+	public record Statistic(String service, String countryCode, Outcome outcome, long count, 
+			long avgMillis, long p50Millis, long p95Millis, long p99Millis, long maxMillis) {
+
+		@Override
+		public String toString() {
+			return service + " " + countryCode + " " + outcome + ": count=" + count + " avg=" + avgMillis 
+					+ "ms p50<=" + p50Millis + "ms p95<=" + p95Millis + "ms p99<=" + p99Millis + "ms max=" + maxMillis + "ms";
+		}
+	}
+}
@@ -0,0 +1,53 @@
+/**********************************************************************
+ * Copyright (C) Contributors                                          *
+ *                                                                     *
+ * This program is free software; you can redistribute it and/or       *
+ * modify it under the terms of the GNU General Public License         *
+ * as published by the Free Software Foundation; either version 2      *
+ * of the License, or (at your option) any later version.              *
+ *                                                                     *
+ * This program is distributed in the hope that it will be useful,     *
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of      *
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the        *
+ * GNU General Public License for more details.                        *
+ *                                                                     *
+ * You should have received a copy of the GNU General Public License   *
+ * along with this program; if not, write to the Free Software         *
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston,          *
+ * MA 02110-1301, USA.                                                 *
+ *                                                                     *
+ * Contributors:                                                       *
+ * - Diego Ruiz - Bx Service GmbH                                      *
+ **********************************************************************/
+package de.bxservice.vatvalidation.service;
+
+/**
+ * JMX view of the validation metrics of this server,
+ * registered as de.bxservice.vatvalidation:type=VATValidationMetrics
+ */
+public interface VATValidationMetricsMXBean {
+
+	long getCacheHits();
+
+	long getCacheMisses();
+
+	double getCacheHitRatio();
+
+	long getCoalescedCalls();
+
+	long getRemoteCalls();
+
+	int getInFlight();
+
+	/**
+	 * @return one line per service, country code and outcome
+	 */
+	String[] getStatistics();
+
+	/**
+	 * @return state of the circuit breaker of each provider
+	 */
+	String[] getCircuitBreakers();
+
+	void reset();
+}
@@ -0,0 +1,292 @@
+/**********************************************************************
+ * Copyright (C) Contributors                                          *
+ *                                                                     *
+ * This program is free software; you can redistribute it and/or       *
+ * modify it under the terms of the GNU General Public License         *
+ * as published by the Free Software Foundation; either version 2      *
+ * of the License, or (at your option) any later version.              *
+ *                                                                     *
+ * This program is distributed in the hope that it will be useful,     *
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of      *
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the        *
+ * GNU General Public License for more details.                        *
+ *                                                                     *
+ * You should have received a copy of the GNU General Public License   *
+ * along with this program; if not, write to the Free Software         *
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston,          *
+ * MA 02110-1301, USA.                                                 *
+ *                                                                     *
+ * Contributors:                                                       *
+ * - Diego Ruiz - Bx Service GmbH                                      *
+ **********************************************************************/
+package de.bxservice.vatvalidation.service;
+
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.logging.Level;
+
+import org.compiere.model.MBPartner;
+import org.compiere.model.MSysConfig;
+import org.compiere.util.CLogger;
+import org.compiere.util.CacheMgt;
+import org.compiere.util.DB;
+import org.compiere.util.Trx;
+import org.compiere.util.Util;
+
+import de.bxservice.vatvalidation.model.BusinessPartnerUtils;
+import de.bxservice.vatvalidation.model.VATValidationHistory;
+
+/**
+ * Durable queue of background validations in the table BXS_VATValidationQueue.
+ * Jobs are inserted in the transaction that changes the partner, so they
+ * only become visible after its commit. A poller on each server claims
+ * pending jobs, validates them without blocking and writes the result back.
+ * Failed jobs are retried with an exponential backoff until BXS_VAT_QUEUE_MAX_ATTEMPTS.
+ */
+public class VATValidationQueue {
+
+	public static final String Table_Name = "BXS_VATValidationQueue";
+
+	public static final String STATUS_PENDING = "P";
+	public static final String STATUS_RUNNING = "R";
+	public static final String STATUS_DONE = "D";
+	public static final String STATUS_ERROR = "E";
+
+	/** Client switch to validate partners in the background when the tax ID changes */
+	public static final String VALIDATE_ON_CHANGE_SYSCONFIG = "BXS_VAT_VALIDATE_ON_CHANGE";
+	private static final String SERVICE_SYSCONFIG = "BXS_VAT_VALIDATION_SERVICE";
+	/** Server switch to drain the queue on this node */
+	private static final String WORKER_SYSCONFIG = "BXS_VAT_QUEUE_WORKER";
+	private static final String POLL_SECONDS_SYSCONFIG = "BXS_VAT_QUEUE_POLL_SECONDS";
+	private static final String BATCH_SIZE_SYSCONFIG = "BXS_VAT_QUEUE_BATCH_SIZE";
+	private static final String MAX_ATTEMPTS_SYSCONFIG = "BXS_VAT_QUEUE_MAX_ATTEMPTS";
+	private static final String BACKOFF_SECONDS_SYSCONFIG = "BXS_VAT_QUEUE_BACKOFF_SECONDS";
+
+	/** Longest wait before a failed job is retried */
+	private static final long MAX_BACKOFF_MILLIS = 24 * 60 * 60 * 1000L;
+
+	private static final String UPDATE_PARTNER_SQL = "UPDATE C_BPartner SET "
+			+ BusinessPartnerUtils.IS_VALID_VAT_COLUMNNAME + "=COALESCE(?," + BusinessPartnerUtils.IS_VALID_VAT_COLUMNNAME + "), "
+			+ BusinessPartnerUtils.DATE_VAT_VALIDATED_COLUMNNAME + "=COALESCE(?," + BusinessPartnerUtils.DATE_VAT_VALIDATED_COLUMNNAME + "), "
+			+ BusinessPartnerUtils.VAT_VALIDATION_ERROR_COLUMNNAME + "=?, "
+			+ BusinessPartnerUtils.DATE_VAT_LAST_ATTEMPT_COLUMNNAME + "=getDate(), Updated=getDate()"
+			+ " WHERE C_BPartner_ID=? AND TaxID=?";
+
+	/** Jobs running longer than this belong to a stopped server and are pending again */
+	private static final long STALE_RUNNING_MILLIS = 10 * 60 * 1000L;
+
+	/** Logger */
+	private static CLogger log = CLogger.getCLogger(VATValidationQueue.class);
+
+	private static ScheduledExecutorService s_poller = null;
+
+	private VATValidationQueue() {
+	}
+
+	/**
+	 * @param AD_Client_ID client
+	 * @return true if the client validates partners in the background
+	 */
+	public static boolean isEnabled(int AD_Client_ID) {
+		return MSysConfig.getBooleanValue(VALIDATE_ON_CHANGE_SYSCONFIG, false, AD_Client_ID);
+	}
+
+	/**
+	 * Queues the validation of the partner tax ID in the transaction of the partner
+	 * @param bPartner partner with the new tax ID
+	 */
+	public static void enqueue(MBPartner bPartner) {
+		enqueue(bPartner.getAD_Client_ID(), bPartner.getAD_Org_ID(), bPartner.getC_BPartner_ID(), bPartner.getTaxID(), bPartner.get_TrxName());
+	}
+
+	/**
+	 * Queues the validation of a tax ID
+	 * @param AD_Client_ID client of the partner
+	 * @param AD_Org_ID organization of the partner
+	 * @param C_BPartner_ID partner
+	 * @param taxID tax ID to validate
+	 * @param trxName transaction or null to queue it at once
+	 */
+	public static void enqueue(int AD_Client_ID, int AD_Org_ID, int C_BPartner_ID, String taxID, String trxName) {
+		String service = MSysConfig.getValue(SERVICE_SYSCONFIG, VATValidationEngine.SERVICE_VIES, AD_Client_ID);
+		int id = DB.getNextID(AD_Client_ID, Table_Name, trxName);
+		DB.executeUpdateEx("INSERT INTO " + Table_Name 
+				+ " (" + Table_Name + "_ID, " + Table_Name + "_UU, AD_Client_ID, AD_Org_ID, IsActive, Created, CreatedBy, Updated, UpdatedBy,"
+				+ " C_BPartner_ID, TaxID, BXS_VATValidationService, BXS_QueueStatus, BXS_Attempts)"
+				+ " VALUES (?, ?, ?, ?, 'Y', getDate(), 0, getDate(), 0, ?, ?, ?, ?, 0)",
+				new Object[] {id, UUID.randomUUID().toString(), AD_Client_ID, AD_Org_ID, C_BPartner_ID, taxID, service, STATUS_PENDING}, 
+				trxName);
+	}
+
+	/**
+	 * Starts the poller of this server, the switch is checked on every poll
+	 */
+	public static synchronized void start() {
+		if (s_poller != null)
+			return;
+		s_poller = Executors.newSingleThreadScheduledExecutor(r -> {
+			Thread thread = new Thread(r, "VATValidationQueue");
+			thread.setDaemon(true);
+			return thread;
+		});
+		// the first poll waits for the server to finish its start up
+		s_poller.schedule(VATValidationQueue::pollAndReschedule, 60, TimeUnit.SECONDS);
+	}
+
+	public static synchronized void stop() {
+		if (s_poller != null) {
+			s_poller.shutdownNow();
+			s_poller = null;
+		}
+	}
+
+	private static void pollAndReschedule() {
+		try {
+			if (MSysConfig.getBooleanValue(WORKER_SYSCONFIG, false))
+				poll();
+		} catch (Exception e) {
+			log.log(Level.SEVERE, "VAT validation queue", e);
+		} finally {
+			synchronized (VATValidationQueue.class) {
+				if (s_poller != null && !s_poller.isShutdown())
+					s_poller.schedule(VATValidationQueue::pollAndReschedule, 
+							Math.max(1, MSysConfig.getIntValue(POLL_SECONDS_SYSCONFIG, 10)), TimeUnit.SECONDS);
+			}
+		}
+	}
+
+	/**
+	 * Claims a batch of pending jobs and validates them in parallel.
+	 * Returns when all the claimed jobs are finished
+	 */
+	public static void poll() {
+		DB.executeUpdateEx("UPDATE " + Table_Name + " SET BXS_QueueStatus=?, Updated=getDate() WHERE BXS_QueueStatus=? AND Updated<?",
+				new Object[] {STATUS_PENDING, STATUS_RUNNING, new Timestamp(System.currentTimeMillis() - STALE_RUNNING_MILLIS)}, null);
+
+		List<Job> jobs = claim(MSysConfig.getIntValue(BATCH_SIZE_SYSCONFIG, 50));
+		if (jobs.isEmpty())
+			return;
+
+		List<CompletableFuture<Void>> running = new ArrayList<>(jobs.size());
+		for (Job job : jobs) {
+			VATValidationRequest request = new VATValidationRequest(job.taxID(), job.service());
+			request.setOwnTaxID(DB.getSQLValueStringEx(null, "SELECT TaxID FROM AD_OrgInfo WHERE AD_Org_ID=?", job.orgID()));
+			CompletableFuture<VATValidationResult> validation;
+			try {
+				validation = VATValidationEngine.validateAsync(request);
+			} catch (RuntimeException e) {
+				validation = CompletableFuture.failedFuture(e);
+			}
+			// the database work must not block the HTTP client threads
+			running.add(validation
+					.exceptionally(e -> VATValidationResult.error(request, VATHttpTransport.toAdempiereException(e)))
+					.thenAcceptAsync(result -> finish(job, result), VATValidationEngine.getCompletionExecutor()));
+		}
+
+		try {
+			CompletableFuture.allOf(running.toArray(new CompletableFuture[0])).get(STALE_RUNNING_MILLIS, TimeUnit.MILLISECONDS);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		} catch (TimeoutException e) {
+			log.warning("VAT validation queue batch did not finish in time, unfinished jobs will be retried");
+		} catch (Exception e) {
+			log.log(Level.WARNING, "VAT validation queue", e);
+		}
+	}
+
+	private static List<Job> claim(int batchSize) {
+		final String sql = "SELECT " + Table_Name + "_ID, C_BPartner_ID, TaxID, BXS_VATValidationService, AD_Client_ID, AD_Org_ID, BXS_Attempts"
+				+ " FROM " + Table_Name + " WHERE BXS_QueueStatus=? AND IsActive='Y'"
+				+ " AND (BXS_DateNextRun IS NULL OR BXS_DateNextRun<=getDate()) ORDER BY Created";
+		List<Job> jobs = new ArrayList<>();
+		PreparedStatement pstmt = null;
+		ResultSet rs = null;
+		try {
+			pstmt = DB.prepareStatement(sql, null);
+			pstmt.setString(1, STATUS_PENDING);
+			pstmt.setMaxRows(batchSize);
+			rs = pstmt.executeQuery();
+			while (rs.next()) {
+				Job job = new Job(rs.getInt(1), rs.getInt(2), rs.getString(3), rs.getString(4), rs.getInt(5), rs.getInt(6), rs.getInt(7));
+				// another server may have claimed it in the meantime
+				int claimed = DB.executeUpdateEx("UPDATE " + Table_Name + " SET BXS_QueueStatus=?, Updated=getDate() WHERE " 
+						+ Table_Name + "_ID=? AND BXS_QueueStatus=?", new Object[] {STATUS_RUNNING, job.id(), STATUS_PENDING}, null);
+				if (claimed == 1)
+					jobs.add(job);
+			}
+		} catch (SQLException e) {
+			log.log(Level.SEVERE, sql, e);
+		} finally {
+			DB.close(rs, pstmt);
+		}
+		return jobs;
+	}
+
+	/**
+	 * Writes the result to the partner, its history and the job in one transaction
+	 */
+	private static void finish(Job job, VATValidationResult result) {
+		int attempts = job.attempts() + 1;
+		String status = STATUS_DONE;
+		boolean retry = false;
+		if (result.isError()) {
+			retry = attempts < MSysConfig.getIntValue(MAX_ATTEMPTS_SYSCONFIG, 5);
+			status = retry ? STATUS_PENDING : STATUS_ERROR;
+		}
+		String errorMsg = result.isError() ? result.getErrorMessage() : null;
+		if (!Util.isEmpty(errorMsg) && errorMsg.length() > 2000)
+			errorMsg = errorMsg.substring(0, 2000);
+
+		Trx trx = Trx.get(Trx.createTrxName("VATValidationQueue"), true);
+		int updated = 0;
+		try {
+			String trxName = trx.getTrxName();
+			// the tax ID may have changed again after the job was queued, a failed attempt keeps the last answer
+			updated = DB.executeUpdateEx(UPDATE_PARTNER_SQL, new Object[] {
+					result.isError() ? null : (result.isValid() ? "Y" : "N"), 
+					result.isError() ? null : result.getDateValidated(), 
+					result.getValidationError(), job.partnerID(), job.taxID()}, trxName);
+			if (!result.isError() && updated > 0) {
+				VATValidationHistory history = new VATValidationHistory(job.clientID(), 0);
+				history.add(job.partnerID(), 0, result);
+				history.write(trxName);
+			}
+			DB.executeUpdateEx("UPDATE " + Table_Name + " SET BXS_QueueStatus=?, BXS_Attempts=?, BXS_ErrorMsg=?, BXS_DateNextRun=?,"
+					+ " Updated=getDate() WHERE " + Table_Name + "_ID=?", 
+					new Object[] {status, attempts, errorMsg, retry ? getNextRun(attempts, trxName) : null, job.id()}, trxName);
+			trx.commit(true);
+		} catch (Exception e) {
+			trx.rollback();
+			updated = 0;
+			log.log(Level.SEVERE, "Could not save the validation of " + job.taxID(), e);
+		} finally {
+			trx.close();
+		}
+		if (updated > 0)
+			CacheMgt.get().reset(MBPartner.Table_Name, job.partnerID());
+	}
+
+	/**
+	 * Exponential backoff from the database time, so all servers agree when the job is due
+	 * @param attempts failed attempts so far
+	 * @return time of the next attempt
+	 */
+	private static Timestamp getNextRun(int attempts, String trxName) {
+		long backoff = MSysConfig.getIntValue(BACKOFF_SECONDS_SYSCONFIG, 60) * 1000L * (1L << Math.min(attempts - 1, 20));
+		Timestamp now = DB.getSQLValueTSEx(trxName, "SELECT getDate() FROM Dual");
+		return new Timestamp(now.getTime() + Math.min(backoff, MAX_BACKOFF_MILLIS));
+	}
+
+	private record Job(int id, int partnerID, String taxID, String service, int clientID, int orgID, int attempts) {
+	}
+}
@@ -0,0 +1,250 @@
+/**********************************************************************
+ * Copyright (C) Contributors                                          *
+ *                                                                     *
+ * This program is free software; you can redistribute it and/or       *
+ * modify it under the terms of the GNU General Public License         *
+ * as published by the Free Software Foundation; either version 2      *
+ * of the License, or (at your option) any later version.              *
+ *                                                                     *
+ * This program is distributed in the hope that it will be useful,     *
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of      *
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the        *
+ * GNU General Public License for more details.                        *
+ *                                                                     *
+ * You should have received a copy of the GNU General Public License   *
+ * along with this program; if not, write to the Free Software         *
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston,          *
+ * MA 02110-1301, USA.                                                 *
+ *                                                                     *
+ * Contributors:                                                       *
+ * - Diego Ruiz - Bx Service GmbH                                      *
+ **********************************************************************/
+package de.bxservice.vatvalidation.service;
+
+import org.compiere.model.MLocation;
+import org.compiere.util.Util;
+
+/**
+ * Input of a single VAT number validation.
+ * The address fields are only used by the qualified eVatR request.
+ */
+public class VATValidationRequest {
+
+	private final String taxID;
+	private final String service;
+
+	/* Own VAT number, mandatory for eVatR */
+	private String ownTaxID;
+	private String name;
+	private String city;
+	private String postal;
+	private String street;
+	/* Skip the cached result */
+	private boolean forceRefresh = false;
+	/* Endpoint of the service, the configured one if null */
+	private String serviceURL = null;
+
+	public VATValidationRequest(String taxID, String service) {
+		this.taxID = taxID;
+		this.service = service;
+	}
+
+	public String getTaxID() {
+		return taxID;
+	}
+
+	public String getService() {
+		return service;
+	}
+
+	public String getOwnTaxID() {
+		return ownTaxID;
+	}
+
+	public void setOwnTaxID(String ownTaxID) {
+		this.ownTaxID = ownTaxID;
+	}
+
+	public String getName() {
+		return name;
+	}
+
+	public void setName(String name) {
+		this.name = name;
+	}
+
+	public String getCity() {
+		return city;
+	}
+
+	public void setCity(String city) {
+		this.city = city;
+	}
+
+	public String getPostal() {
+		return postal;
+	}
+
+	public void setPostal(String postal) {
+		this.postal = postal;
+	}
+
+	public String getStreet() {
+		return street;
+	}
+
+	public void setStreet(String street) {
+		this.street = street;
+	}
+
+	public boolean isForceRefresh() {
+		return forceRefresh;
+	}
+
+	public void setForceRefresh(boolean forceRefresh) {
+		this.forceRefresh = forceRefresh;
+	}
+
+	public String getServiceURL() {
+		return serviceURL;
+	}
+
+	/**
+	 * Sends this request to another endpoint, i.e. a stub server,
+	 * without changing the configured endpoint of the service
+	 * @param serviceURL endpoint or null for the configured one
+	 */
+	public void setServiceURL(String serviceURL) {
+		this.serviceURL = serviceURL;
+	}
+
+	/**
+	 * A qualified request also confirms the address, its result depends
+	 * on more than the tax ID
+	 * @return true if any address field is filled
+	 */
+	public boolean isQualified() {
+		return !Util.isEmpty(city) || !Util.isEmpty(postal) || !Util.isEmpty(street);
+	}
+
+	/**
+	 * Copy of the request to be validated with another service
+	 * @param otherService service
+	 * @return request
+	 */
+	public VATValidationRequest forService(String otherService) {
+		VATValidationRequest copy = new VATValidationRequest(taxID, otherService);
+		copy.ownTaxID = ownTaxID;
+		copy.name = name;
+		copy.city = city;
+		copy.postal = postal;
+		copy.street = street;
+		copy.forceRefresh = forceRefresh;
+		return copy;
+	}
+
+	/**
+	 * Fills city, postal code and street from the location
+	 * @param loc location
+	 */
+	public void setLocation(MLocation loc) {
+		city = loc.getCity();
+		postal = getPostal(loc.getPostal(), loc.getPostal_Add());
+		street = getStreet(loc.getAddress1(), loc.getAddress2(), loc.getAddress3(), loc.getAddress4(), loc.getAddress5());
+	}
+
+	/**
+	 * Fills city, postal code and street already assembled,
+	 * see {@link #getPostal(String, String)} and {@link #getStreet(String, String, String, String, String)}
+	 */
+	public void setAddress(String city, String postal, String street) {
+		this.city = city;
+		this.postal = postal;
+		this.street = street;
+	}
+
+	/**
+	 * @return postal code with the additional code
+	 */
+	public static String getPostal(String postal, String postalAdd) {
+		if (Util.isEmpty(postalAdd))
+			return postal;
+		return postal + "-" + postalAdd;
+	}
+
+	/**
+	 * @return address lines joined by comma
+	 */
+	public static String getStreet(String address1, String address2, String address3, String address4, String address5) {
+		StringBuilder street = new StringBuilder();
+		for (String line : new String[] {address1, address2, address3, address4, address5}) {
+			if (Util.isEmpty(line))
+				continue;
+			if (street.length() > 0)
+				street.append(", ");
+			street.append(line);
+		}
+		return street.toString();
+	}
+
+	/**
+	 * The first two characters of the normalized tax ID are the
+	 * Country code
+	 * @return Country code or null if the tax ID is too short
+	 */
+	public String getCountryCode() {
+		String normalized = getNormalizedTaxID();
+		if (normalized == null || normalized.length() < 2)
+			return null;
+		return normalized.substring(0, 2);
+	}
+
+	/**
+	 * @return normalized tax ID without the country code or null if the tax ID is too short
+	 */
+	public String getVATNumber() {
+		String normalized = getNormalizedTaxID();
+		if (normalized == null || normalized.length() < 2)
+			return null;
+		return normalized.substring(2);
+	}
+
+	/**
+	 * Tax ID without blanks, dots or hyphens and in upper case.
+	 * Other characters are kept, i.e. the + and * of old Irish numbers
+	 * @return normalized tax ID
+	 */
+	public String getNormalizedTaxID() {
+		return normalizeTaxID(taxID);
+	}
+
+	public static String normalizeTaxID(String taxID) {
+		if (taxID == null)
+			return null;
+		StringBuilder normalized = new StringBuilder(taxID.length());
+		for (int i = 0; i < taxID.length(); i++) {
+			char c = taxID.charAt(i);
+			if (!Character.isWhitespace(c) && c != '.' && c != '-')
+				normalized.append(Character.toUpperCase(c));
+		}
+		return normalized.toString();
+	}
+
+	/**
+	 * Requests with the same key get the same answer from the service.
+	 * eVatR also depends on the own tax ID and the confirmed name and address
+	 * @return key
+	 */
+	public String getCoalescingKey() {
+		StringBuilder key = new StringBuilder(service).append('|').append(getNormalizedTaxID());
+		if (isEVatR()) {
+			key.append('|').append(ownTaxID).append('|').append(name)
+				.append('|').append(city).append('|').append(postal).append('|').append(street);
+		}
+		return key.toString();
+	}
+
+	public boolean isEVatR() {
+		return VATValidationEngine.SERVICE_EVATR.equals(service);
+	}
+}
@@ -0,0 +1,298 @@
+/**********************************************************************
+ * Copyright (C) Contributors                                          *
+ *                                                                     *
+ * This program is free software; you can redistribute it and/or       *
+ * modify it under the terms of the GNU General Public License         *
+ * as published by the Free Software Foundation; either version 2      *
+ * of the License, or (at your option) any later version.              *
+ *                                                                     *
+ * This program is distributed in the hope that it will be useful,     *
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of      *
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the        *
+ * GNU General Public License for more details.                        *
+ *                                                                     *
+ * You should have received a copy of the GNU General Public License   *
+ * along with this program; if not, write to the Free Software         *
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston,          *
+ * MA 02110-1301, USA.                                                 *
+ *                                                                     *
+ * Contributors:                                                       *
+ * - Diego Ruiz - Bx Service GmbH                                      *
+ **********************************************************************/
+package de.bxservice.vatvalidation.service;
+
+import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Properties;
+
+import org.compiere.util.Msg;
+import org.compiere.util.Util;
+
+/**
+ * Outcome of a single VAT number validation.
+ * It holds the raw values returned by the service so the
+ * caller can translate and log them in its own context.
+ */
+public class VATValidationResult {
+
+	private static final String PREFIX_EVATR_ERROR = "BXS_eVatR_Error_";
+	private static final String PREFIX_EVATR_RESULT = "BXS_eVatR_Erg_";
+	private static final String PREFIX_TAXID_CHECK = "BXS_TaxIDCheck_";
+
+	public enum Status {
+		VALID,
+		INVALID,
+		/** Rejected by the local check, the service was not called */
+		REJECTED,
+		ERROR
+	}
+
+	private final VATValidationRequest request;
+	/* Service that answered, differs from the requested one after a failover */
+	private String service;
+	private Status status;
+	private String errorCode;
+	private String errorMessage;
+	/* VIES fields */
+	private String name;
+	private String address;
+	/* eVatR fields */
+	private String validFrom;
+	private String validTo;
+	private String ergName;
+	private String ergCity;
+	private String ergPostal;
+	private String ergStreet;
+	/* When the service confirmed the result */
+	private Timestamp dateValidated;
+	private boolean fromCache = false;
+
+	public VATValidationResult(VATValidationRequest request, Status status) {
+		this.request = request;
+		this.service = request.getService();
+		this.status = status;
+		this.dateValidated = new Timestamp(System.currentTimeMillis());
+	}
+
+	public static VATValidationResult rejected(VATValidationRequest request, TaxIDPreValidator.Reason reason) {
+		VATValidationResult result = new VATValidationResult(request, Status.REJECTED);
+		result.setErrorCode(reason.name());
+		return result;
+	}
+
+	public static VATValidationResult error(VATValidationRequest request, Throwable e) {
+		VATValidationResult result = new VATValidationResult(request, Status.ERROR);
+		result.setErrorMessage(e.getLocalizedMessage() != null ? e.getLocalizedMessage() : e.getClass().getName());
+		if (e instanceof VATServiceException)
+			result.setErrorCode(((VATServiceException) e).getErrorCode());
+		return result;
+	}
+
+	/**
+	 * Copy of the result for another request with the same answer,
+	 * used when several callers share one remote call
+	 * @param other request
+	 * @return result bound to the other request
+	 */
+	public VATValidationResult copyFor(VATValidationRequest other) {
+		if (other == request)
+			return this;
+		VATValidationResult copy = new VATValidationResult(other, status);
+		copy.service = service;
+		copy.errorCode = errorCode;
+		copy.errorMessage = errorMessage;
+		copy.name = name;
+		copy.address = address;
+		copy.validFrom = validFrom;
+		copy.validTo = validTo;
+		copy.ergName = ergName;
+		copy.ergCity = ergCity;
+		copy.ergPostal = ergPostal;
+		copy.ergStreet = ergStreet;
+		copy.dateValidated = dateValidated;
+		copy.fromCache = fromCache;
+		return copy;
+	}
+
+	public VATValidationRequest getRequest() {
+		return request;
+	}
+
+	public String getTaxID() {
+		return request.getTaxID();
+	}
+
+	public String getService() {
+		return service;
+	}
+
+	private boolean isEVatR() {
+		return VATValidationEngine.SERVICE_EVATR.equals(service);
+	}
+
+	public Status getStatus() {
+		return status;
+	}
+
+	public void setStatus(Status status) {
+		this.status = status;
+	}
+
+	public boolean isValid() {
+		return status == Status.VALID;
+	}
+
+	public boolean isError() {
+		return status == Status.ERROR;
+	}
+
+	public boolean isRejected() {
+		return status == Status.REJECTED;
+	}
+
+	/**
+	 * Code stored with the partner explaining why the number is not valid
+	 * or why the service could not answer
+	 * @return error code, prefixed with the service
+	 */
+	public String getValidationError() {
+		if (isError())
+			return getService() + ":" + (Util.isEmpty(errorCode) ? "ERROR" : errorCode);
+		if (isValid() || Util.isEmpty(errorCode))
+			return null;
+		return (isRejected() ? "LOCAL" : getService()) + ":" + errorCode;
+	}
+
+	public String getErrorCode() {
+		return errorCode;
+	}
+
+	public void setErrorCode(String errorCode) {
+		this.errorCode = errorCode;
+	}
+
+	public String getErrorMessage() {
+		return errorMessage;
+	}
+
+	public void setErrorMessage(String errorMessage) {
+		this.errorMessage = errorMessage;
+	}
+
+	public String getName() {
+		return name;
+	}
+
+	public void setName(String name) {
+		this.name = name;
+	}
+
+	public String getAddress() {
+		return address;
+	}
+
+	public void setAddress(String address) {
+		this.address = address;
+	}
+
+	public String getValidFrom() {
+		return validFrom;
+	}
+
+	public void setValidFrom(String validFrom) {
+		this.validFrom = validFrom;
+	}
+
+	public String getValidTo() {
+		return validTo;
+	}
+
+	public void setValidTo(String validTo) {
+		this.validTo = validTo;
+	}
+
+	public String getErgName() {
+		return ergName;
+	}
+
+	public void setErgName(String ergName) {
+		this.ergName = ergName;
+	}
+
+	public String getErgCity() {
+		return ergCity;
+	}
+
+	public void setErgCity(String ergCity) {
+		this.ergCity = ergCity;
+	}
+
+	public String getErgPostal() {
+		return ergPostal;
+	}
+
+	public void setErgPostal(String ergPostal) {
+		this.ergPostal = ergPostal;
+	}
+
+	public String getErgStreet() {
+		return ergStreet;
+	}
+
+	public void setErgStreet(String ergStreet) {
+		this.ergStreet = ergStreet;
+	}
+
+	public Timestamp getDateValidated() {
+		return dateValidated;
+	}
+
+	public void setDateValidated(Timestamp dateValidated) {
+		this.dateValidated = dateValidated;
+	}
+
+	public boolean isFromCache() {
+		return fromCache;
+	}
+
+	public void setFromCache(boolean fromCache) {
+		this.fromCache = fromCache;
+	}
+
+	/**
+	 * Translated messages describing the result, to be added to the process log
+	 * @param ctx context used for the translation
+	 * @return list of messages
+	 */
+	public List<String> getMessages(Properties ctx) {
+		List<String> messages = new ArrayList<>();
+		if (isError()) {
+			if (isEVatR() && !Util.isEmpty(errorCode))
+				messages.add(getTaxID() + " -> @Error@ " + errorCode + " = " + Msg.getMsg(ctx, PREFIX_EVATR_ERROR + errorCode));
+			else
+				messages.add(getTaxID() + " -> @Error@ " + errorMessage);
+		} else if (isRejected()) {
+			messages.add(getTaxID() + " -> @BXS_InvalidTaxID@ " + Msg.getMsg(ctx, PREFIX_TAXID_CHECK + errorCode));
+		} else if (isEVatR()) {
+			String errorMsg = Msg.getMsg(ctx, PREFIX_EVATR_ERROR + errorCode);
+			messages.add(getTaxID() + " -> " + errorCode + " = " + errorMsg);
+			if (!Util.isEmpty(validFrom) || !Util.isEmpty(validTo))
+				messages.add("Gueltig_ab = " + validFrom + ", Gueltig_bis = " + validTo);
+			if (!Util.isEmpty(ergName))
+				messages.add("Erg_Name -> " + request.getName() + " -> " + Msg.getMsg(ctx, PREFIX_EVATR_RESULT + ergName));
+			if (!Util.isEmpty(ergStreet))
+				messages.add("Erg_Str -> " + request.getStreet() + " -> " + Msg.getMsg(ctx, PREFIX_EVATR_RESULT + ergStreet));
+			if (!Util.isEmpty(ergPostal))
+				messages.add("Erg_PLZ -> " + request.getPostal() + " -> " + Msg.getMsg(ctx, PREFIX_EVATR_RESULT + ergPostal));
+			if (!Util.isEmpty(ergCity))
+				messages.add("Erg_Ort -> " + request.getCity() + " -> " + Msg.getMsg(ctx, PREFIX_EVATR_RESULT + ergCity));
+		} else if (isValid()) {
+			if (!Util.isEmpty(name))
+				messages.add("@Name@ = " + name);
+			if (!Util.isEmpty(address))
+				messages.add("@Address@ = " + address);
+		}
+		return messages;
+	}
+}
@@ -0,0 +1,221 @@
+/**********************************************************************
+ * Copyright (C) Contributors                                          *
+ *                                                                     *
+ * This program is free software; you can redistribute it and/or       *
+ * modify it under the terms of the GNU General Public License         *
+ * as published by the Free Software Foundation; either version 2      *
+ * of the License, or (at your option) any later version.              *
+ *                                                                     *
+ * This program is distributed in the hope that it will be useful,     *
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of      *
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the        *
+ * GNU General Public License for more details.                        *
+ *                                                                     *
+ * You should have received a copy of the GNU General Public License   *
+ * along with this program; if not, write to the Free Software         *
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston,          *
+ * MA 02110-1301, USA.                                                 *
+ *                                                                     *
+ * Contributors:                                                       *
+ * - Diego Ruiz - Bx Service GmbH                                      *
+ **********************************************************************/
+package de.bxservice.vatvalidation.service;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.io.StringReader;
+import java.net.URI;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.CompletableFuture;
+
+import org.adempiere.exceptions.AdempiereException;
+import org.compiere.model.MSysConfig;
+import org.compiere.util.Util;
+import org.osgi.service.component.annotations.Component;
+
+/**
+ * Validates VAT numbers using the VIES REST API of the European Commission
+ */
+@Component(service = IVATValidationProvider.class)
+public class VIESClient implements IVATValidationProvider {
+
+	public final static String CHECK_VATNUMBER_VIES_URL = "https://ec.europa.eu/taxation_customs/vies/rest-api//check-vat-number"; 
+
+	private final static int STATUS_OK = 200;
+
+	private final static String CONCURRENCY_SYSCONFIG = "BXS_VAT_CONCURRENCY_VIES";
+	/** Endpoint of the check, i.e. to test against a stub server */
+	private final static String URL_SYSCONFIG = "BXS_VAT_VIES_URL";
+
+	@Override
+	public String getService() {
+		return VATValidationEngine.SERVICE_VIES;
+	}
+
+	/**
+	 * VIES answers for the EU member states and Northern Ireland
+	 */
+	@Override
+	public boolean isSupported(VATValidationRequest request) {
+		String countryCode = request.getCountryCode();
+		return countryCode != null && !request.getVATNumber().isEmpty() 
+				&& Character.isLetter(countryCode.charAt(0)) && Character.isLetter(countryCode.charAt(1));
+	}
+
+	@Override
+	public int getMaxConcurrency() {
+		return MSysConfig.getIntValue(CONCURRENCY_SYSCONFIG, 10);
+	}
+
+	@Override
+	public int getCost() {
+		return 10;
+	}
+
+	/**
+	 * Validates the VAT number against VIES blocking the calling thread
+	 * @param request validation request
+	 * @return result
+	 * @throws AdempiereException when the service answers with an error
+	 */
+	public VATValidationResult validate(VATValidationRequest request) {
+		return VATHttpTransport.join(validateAsync(request));
+	}
+
+	/**
+	 * Validates the VAT number against VIES without blocking the calling thread.
+	 * Cancelling the returned future aborts the HTTP exchange
+	 * @param request validation request
+	 * @return future result
+	 */
+	@Override
+	public CompletableFuture<VATValidationResult> validateAsync(VATValidationRequest request) {
+		CompletableFuture<HttpResponse<byte[]>> exchange = getRequestResponseVIES(request);
+		CompletableFuture<VATValidationResult> result = exchange.thenApply(response -> parseResponseVIES(request, response.statusCode(), response.body()));
+		result.whenComplete((r, e) -> {
+			if (result.isCancelled())
+				exchange.cancel(true);
+		});
+		return result;
+	}
+
+	/**
+	 * Parses the JSON answer of VIES
+	 * @param request validation request
+	 * @param responseStatus HTTP status
+	 * @param responseBody JSON body
+	 * @return result
+	 * @throws AdempiereException when the service answers with an error
+	 */
+	public static VATValidationResult parseResponseVIES(VATValidationRequest request, int responseStatus, String responseBody) {
+		if (Util.isEmpty(responseBody))
+			return parseResponseVIES(request, responseStatus, (Reader) null);
+		return parseResponseVIES(request, responseStatus, new StringReader(responseBody));
+	}
+
+	/**
+	 * Parses the JSON answer of VIES straight from the received bytes
+	 * @param request validation request
+	 * @param responseStatus HTTP status
+	 * @param responseBody UTF-8 JSON body
+	 * @return result
+	 * @throws AdempiereException when the service answers with an error
+	 */
+	public static VATValidationResult parseResponseVIES(VATValidationRequest request, int responseStatus, byte[] responseBody) {
+		if (responseBody == null || responseBody.length == 0)
+			return parseResponseVIES(request, responseStatus, (Reader) null);
+		return parseResponseVIES(request, responseStatus, 
+				new InputStreamReader(new ByteArrayInputStream(responseBody), StandardCharsets.UTF_8));
+	}
+
+	private static VATValidationResult parseResponseVIES(VATValidationRequest request, int responseStatus, Reader responseBody) {
+		VIESResponse response;
+		try {
+			if (responseBody == null)
+				throw new AdempiereException("Unexpected empty response body");
+			response = VIESResponseParser.parse(responseBody);
+		} catch (IOException | RuntimeException e) {
+			// i.e. an HTML error page from a proxy
+			if (responseStatus != STATUS_OK)
+				throw new VATServiceException("@Error@ " + request.getTaxID() + " " + responseStatus, 
+						VATValidationEngine.SERVICE_VIES, "HTTP_" + responseStatus, isRetryableStatus(responseStatus));
+			if (e instanceof AdempiereException)
+				throw (AdempiereException) e;
+			throw new AdempiereException("Unexpected response: " + e.getLocalizedMessage(), e);
+		}
+
+		String errorCode = response.errorCode();
+		if (responseStatus != STATUS_OK) {
+			String msg = "@Error@ " + request.getTaxID() + " " + responseStatus + " / " + response.errorMessage();
+			throw new VATServiceException(msg, VATValidationEngine.SERVICE_VIES, errorCode, 
+					isRetryableStatus(responseStatus) || isRetryableError(errorCode));
+		}
+
+		if (response.valid() == null)
+			throw unexpectedResponse(response);
+		boolean isValidVATNumber = response.valid();
+		VATValidationResult result = new VATValidationResult(request, 
+				isValidVATNumber ? VATValidationResult.Status.VALID : VATValidationResult.Status.INVALID);
+		if (isValidVATNumber) {
+			if (response.name() == null || response.address() == null)
+				throw unexpectedResponse(response);
+			result.setName(response.name());
+			result.setAddress(response.address());
+		}
+		return result;
+	}
+
+	private static VATServiceException unexpectedResponse(VIESResponse response) {
+		return new VATServiceException("Unexpected response. Error: " + response.errorMessage(), 
+				VATValidationEngine.SERVICE_VIES, response.errorCode(), isRetryableError(response.errorCode()));
+	}
+
+	private CompletableFuture<HttpResponse<byte[]>> getRequestResponseVIES(VATValidationRequest request) {
+		VATHttpTransport transport = VATHttpTransport.get();
+		String url = request.getServiceURL() != null ? request.getServiceURL() : getServiceURL();
+		HttpRequest httpRequest = transport.newRequest(URI.create(url))
+				.header("Accept", "application/json")
+				.header("Content-Type", "application/json")
+				.POST(HttpRequest.BodyPublishers.ofString(
+						VIESResponseParser.getRequestBody(request.getCountryCode(), request.getVATNumber()), StandardCharsets.UTF_8))
+				.build();
+
+		// the body is parsed once fully received, reading a stream would block the HTTP client threads
+		return transport.sendAsync(httpRequest, HttpResponse.BodyHandlers.ofByteArray());
+	}
+
+	/**
+	 * @return configured VIES endpoint, the public one by default
+	 */
+	public static String getServiceURL() {
+		return MSysConfig.getValue(URL_SYSCONFIG, CHECK_VATNUMBER_VIES_URL);
+	}
+
+	/**
+	 * Overload and availability errors of VIES are temporary
+	 * @param errorCode VIES error code
+	 * @return true if the request can be retried later
+	 */
+	public static boolean isRetryableError(String errorCode) {
+		if (errorCode == null)
+			return false;
+		switch (errorCode) {
+		case "MS_MAX_CONCURRENT_REQ":
+		case "GLOBAL_MAX_CONCURRENT_REQ":
+		case "MS_UNAVAILABLE":
+		case "SERVICE_UNAVAILABLE":
+		case "TIMEOUT":
+			return true;
+		default:
+			return false;
+		}
+	}
+
+	private static boolean isRetryableStatus(int responseStatus) {
+		return responseStatus == 429 || responseStatus == 502 || responseStatus == 503 || responseStatus == 504;
+	}
+}
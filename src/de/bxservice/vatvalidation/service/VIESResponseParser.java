@@ -0,0 +1,148 @@
+/**********************************************************************
+ * Copyright (C) Contributors                                          *
+ *                                                                     *
+ * This program is free software; you can redistribute it and/or       *
+ * modify it under the terms of the GNU General Public License         *
+ * as published by the Free Software Foundation; either version 2      *
+ * of the License, or (at your option) any later version.              *
+ *                                                                     *
+ * This program is distributed in the hope that it will be useful,     *
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of      *
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the        *
+ * GNU General Public License for more details.                        *
+ *                                                                     *
+ * You should have received a copy of the GNU General Public License   *
+ * along with this program; if not, write to the Free Software         *
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston,          *
+ * MA 02110-1301, USA.                                                 *
+ *                                                                     *
+ * Contributors:                                                       *
+ * - Diego Ruiz - Bx Service GmbH                                      *
+ **********************************************************************/
+package de.bxservice.vatvalidation.service;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.io.StringWriter;
+import java.io.UncheckedIOException;
+
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonToken;
+import com.google.gson.stream.JsonWriter;
+
+/**
+ * Streaming binding of the VIES REST API, no JSON tree is built.
+ * Unknown fields are skipped, the response looks like:
+ * <pre>
+ * {"countryCode":"AT","vatNumber":"U12345678","valid":true,"name":"...","address":"...", ...}
+ * {"actionSucceed":false,"errorWrappers":[{"error":"MS_UNAVAILABLE","message":"..."}]}
+ * </pre>
+ */
+public class VIESResponseParser {
+
+	private VIESResponseParser() {
+	}
+
+	/**
+	 * Parses the response reading each field once
+	 * @param reader JSON response
+	 * @return response
+	 * @throws IOException when the response cannot be read
+	 * @throws IllegalStateException when the response is not a JSON object
+	 */
+	public static VIESResponse parse(Reader reader) throws IOException {
+		Boolean valid = null;
+		String name = null;
+		String address = null;
+		String errorCode = null;
+		StringBuilder errorMessage = null;
+
+		JsonReader json = new JsonReader(reader);
+		json.beginObject();
+		while (json.hasNext()) {
+			switch (json.nextName()) {
+			case "valid":
+				if (json.peek() == JsonToken.BOOLEAN)
+					valid = json.nextBoolean();
+				else
+					json.skipValue();
+				break;
+			case "name":
+				name = nextString(json);
+				break;
+			case "address":
+				address = nextString(json);
+				break;
+			case "errorWrappers":
+				if (json.peek() != JsonToken.BEGIN_ARRAY) {
+					json.skipValue();
+					break;
+				}
+				json.beginArray();
+				while (json.hasNext()) {
+					if (json.peek() != JsonToken.BEGIN_OBJECT) {
+						json.skipValue();
+						continue;
+					}
+					String error = null;
+					String message = null;
+					json.beginObject();
+					while (json.hasNext()) {
+						switch (json.nextName()) {
+						case "error":
+							error = nextString(json);
+							break;
+						case "message":
+							message = nextString(json);
+							break;
+						default:
+							json.skipValue();
+						}
+					}
+					json.endObject();
+					if (errorCode == null)
+						errorCode = error;
+					if (message == null)
+						message = error;
+					if (message != null) {
+						if (errorMessage == null)
+							errorMessage = new StringBuilder();
+						errorMessage.append(message);
+					}
+				}
+				json.endArray();
+				break;
+			default:
+				json.skipValue();
+			}
+		}
+		json.endObject();
+		return new VIESResponse(valid, name, address, errorCode, errorMessage != null ? errorMessage.toString() : "");
+	}
+
+	private static String nextString(JsonReader json) throws IOException {
+		if (json.peek() == JsonToken.NULL) {
+			json.nextNull();
+			return null;
+		}
+		return json.nextString();
+	}
+
+	/**
+	 * @param countryCode country code
+	 * @param vatNumber VAT number without country code
+	 * @return JSON body of a check-vat-number request
+	 */
+	public static String getRequestBody(String countryCode, String vatNumber) {
+		StringWriter body = new StringWriter(64);
+		try (JsonWriter json = new JsonWriter(body)) {
+			json.beginObject();
+			json.name("countryCode").value(countryCode);
+			json.name("vatNumber").value(vatNumber);
+			json.endObject();
+		} catch (IOException e) {
+			throw new UncheckedIOException(e);
+		}
+		return body.toString();
+	}
+}
@@ -0,0 +1,106 @@
+/**********************************************************************
+ * Copyright (C) Contributors                                          *
+ *                                                                     *
+ * This program is free software; you can redistribute it and/or       *
+ * modify it under the terms of the GNU General Public License         *
+ * as published by the Free Software Foundation; either version 2      *
+ * of the License, or (at your option) any later version.              *
+ *                                                                     *
+ * This program is distributed in the hope that it will be useful,     *
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of      *
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the        *
+ * GNU General Public License for more details.                        *
+ *                                                                     *
+ * You should have received a copy of the GNU General Public License   *
+ * along with this program; if not, write to the Free Software         *
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston,          *
+ * MA 02110-1301, USA.                                                 *
+ *                                                                     *
+ * Contributors:                                                       *
+ * - Diego Ruiz - Bx Service GmbH                                      *
+ **********************************************************************/
+package de.bxservice.vatvalidation.stub;
+
+import java.util.List;
+
+/**
+ * Responses recorded from VIES and eVatR, with personal data replaced.
+ * Used to measure and load test the validation without the real services.
+ */
+public class RecordedResponses {
+
+	public static final String VIES_VALID = "{\"countryCode\":\"AT\",\"vatNumber\":\"U12345678\","
+			+ "\"requestDate\":\"2024-09-30T10:15:21.512Z\",\"valid\":true,\"requestIdentifier\":\"\","
+			+ "\"name\":\"Beispiel Handels GmbH\",\"address\":\"Musterstrasse 1\\n1010 Wien\","
+			+ "\"traderName\":\"\",\"traderStreet\":\"\",\"traderPostalCode\":\"\",\"traderCity\":\"\",\"traderCompanyType\":\"\","
+			+ "\"traderNameMatch\":\"NOT_PROCESSED\",\"traderStreetMatch\":\"NOT_PROCESSED\",\"traderPostalCodeMatch\":\"NOT_PROCESSED\","
+			+ "\"traderCityMatch\":\"NOT_PROCESSED\",\"traderCompanyTypeMatch\":\"NOT_PROCESSED\"}";
+
+	public static final String VIES_INVALID = "{\"countryCode\":\"AT\",\"vatNumber\":\"U00000000\","
+			+ "\"requestDate\":\"2024-09-30T10:16:02.004Z\",\"valid\":false,\"requestIdentifier\":\"\","
+			+ "\"name\":\"---\",\"address\":\"---\",\"traderName\":\"\",\"traderStreet\":\"\",\"traderPostalCode\":\"\",\"traderCity\":\"\","
+			+ "\"traderCompanyType\":\"\",\"traderNameMatch\":\"NOT_PROCESSED\",\"traderStreetMatch\":\"NOT_PROCESSED\","
+			+ "\"traderPostalCodeMatch\":\"NOT_PROCESSED\",\"traderCityMatch\":\"NOT_PROCESSED\",\"traderCompanyTypeMatch\":\"NOT_PROCESSED\"}";
+
+	public static final String VIES_MS_MAX_CONCURRENT_REQ = "{\"actionSucceed\":false,\"errorWrappers\":[{\"error\":\"MS_MAX_CONCURRENT_REQ\","
+			+ "\"message\":\"The maximum number of concurrent requests for this member state has been reached\"}]}";
+
+	public static final String VIES_MS_UNAVAILABLE = "{\"actionSucceed\":false,\"errorWrappers\":[{\"error\":\"MS_UNAVAILABLE\","
+			+ "\"message\":\"The member state service is unavailable\"}]}";
+
+	public static final String EVATR_VALID = eVatR("DE123456789", "ATU12345678", "200", "Beispiel Handels GmbH", "Wien", "1010", "Musterstrasse 1", 
+			"A", "A", "A", "A", "", "");
+
+	public static final String EVATR_INVALID = eVatR("DE123456789", "ATU00000000", "201", "Beispiel Handels GmbH", "", "", "", 
+			"", "", "", "", "", "");
+
+	public static final String EVATR_MS_UNAVAILABLE = eVatR("DE123456789", "ATU12345678", "205", "Beispiel Handels GmbH", "", "", "", 
+			"", "", "", "", "", "");
+
+	public static final String EVATR_SPECIAL_CHARACTERS = eVatR("DE123456789", "ATU12345678", "200", "M\u00fcller & S\u00f6hne <Wien>", 
+			"Wien", "1010", "Hauptstra\u00dfe 1", "A", "B", "C", "D", "01.01.2020", "");
+
+	/** eVatR responses every parser must read like the DOM/XPath parsing, see VATBenchmark */
+	public static final List<String> EVATR_FIXTURES = List.of(EVATR_VALID, EVATR_INVALID, EVATR_MS_UNAVAILABLE, 
+			EVATR_SPECIAL_CHARACTERS);
+
+	private RecordedResponses() {
+	}
+
+	/**
+	 * Builds an eVatR XML-RPC response with the same layout the BZSt sends
+	 */
+	public static String eVatR(String ustId1, String ustId2, String errorCode, String firmenname, String ort, String plz, String strasse,
+			String ergName, String ergOrt, String ergPLZ, String ergStr, String gueltigAb, String gueltigBis) {
+		StringBuilder xml = new StringBuilder("<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n<params>\n");
+		appendParam(xml, "UstId_1", ustId1);
+		appendParam(xml, "ErrorCode", errorCode);
+		appendParam(xml, "UstId_2", ustId2);
+		appendParam(xml, "Druck", "nein");
+		appendParam(xml, "Erg_PLZ", ergPLZ);
+		appendParam(xml, "Ort", ort);
+		appendParam(xml, "Datum", "30.09.2024");
+		appendParam(xml, "PLZ", plz);
+		appendParam(xml, "Erg_Ort", ergOrt);
+		appendParam(xml, "Uhrzeit", "10:15:21");
+		appendParam(xml, "Erg_Name", ergName);
+		appendParam(xml, "Gueltig_ab", gueltigAb);
+		appendParam(xml, "Gueltig_bis", gueltigBis);
+		appendParam(xml, "Strasse", strasse);
+		appendParam(xml, "Firmenname", firmenname);
+		appendParam(xml, "Erg_Str", ergStr);
+		return xml.append("</params>\n").toString();
+	}
+
+	private static void appendParam(StringBuilder xml, String key, String value) {
+		xml.append("<param>\n<value><array><data>\n<value><string>").append(key)
+			.append("</string></value>\n<value><string>").append(escape(value))
+			.append("</string></value>\n</data></array></value>\n</param>\n");
+	}
+
+	private static String escape(String value) {
+		if (value == null)
+			return "";
+		return value.replace("&", "&amp;").replace("<", "&lt;").replace(">", "&gt;");
+	}
+}
@@ -0,0 +1,278 @@
+/**********************************************************************
+ * Copyright (C) Contributors                                          *
+ *                                                                     *
+ * This program is free software; you can redistribute it and/or       *
+ * modify it under the terms of the GNU General Public License         *
+ * as published by the Free Software Foundation; either version 2      *
+ * of the License, or (at your option) any later version.              *
+ *                                                                     *
+ * This program is distributed in the hope that it will be useful,     *
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of      *
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the        *
+ * GNU General Public License for more details.                        *
+ *                                                                     *
+ * You should have received a copy of the GNU General Public License   *
+ * along with this program; if not, write to the Free Software         *
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston,          *
+ * MA 02110-1301, USA.                                                 *
+ *                                                                     *
+ * Contributors:                                                       *
+ * - Diego Ruiz - Bx Service GmbH                                      *
+ **********************************************************************/
+package de.bxservice.vatvalidation.stub;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+import org.compiere.util.CLogger;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * HTTP server answering VIES and eVatR requests with the recorded responses.
+ * The latency, the share of errors and the throttling can be configured,
+ * to test the validation under load without calling the real services.
+ * The server only listens on the loopback address.
+ * <p>
+ * The clients are pointed to the server with the SysConfig keys
+ * BXS_VAT_VIES_URL and BXS_VAT_EVATR_URL, see {@link #getVIESURL()} and {@link #getEVatRURL()}.
+ */
+public class VATStubServer {
+
+	public static final String VIES_PATH = "/vies/check-vat-number";
+	public static final String EVATR_PATH = "/evatrRPC";
+
+	private static final int STATUS_OK = 200;
+
+	/** Logger */
+	private static CLogger log = CLogger.getCLogger(VATStubServer.class);
+
+	private final HttpServer server;
+	private final ExecutorService executor;
+
+	/* Fixed latency of every answer */
+	private volatile long latencyMillis = 0;
+	/* Random latency added to the fixed one, up to this value */
+	private volatile long latencyJitterMillis = 0;
+	/* Share of answers with a temporary error, 0..1 */
+	private volatile double errorRate = 0;
+	/* Share of answers saying the service is overloaded, 0..1 */
+	private volatile double throttleRate = 0;
+	/* Share of answers with an invalid number, 0..1 */
+	private volatile double invalidRate = 0;
+	/* Requests answered at the same time, the others are throttled. 0 = no limit */
+	private volatile int maxConcurrent = 0;
+
+	private final AtomicInteger running = new AtomicInteger();
+	private final LongAdder requests = new LongAdder();
+	private final LongAdder throttled = new LongAdder();
+	private final LongAdder errors = new LongAdder();
+
+	/**
+	 * @param port port to listen on, 0 for any free port
+	 * @throws IOException if the port cannot be bound
+	 */
+	public VATStubServer(int port) throws IOException {
+		server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), port), 0);
+		// answers are delayed by sleeping, one thread per request keeps the latency independent of the load
+		executor = Executors.newCachedThreadPool(r -> {
+			Thread thread = new Thread(r, "VATStubServer");
+			thread.setDaemon(true);
+			return thread;
+		});
+		server.setExecutor(executor);
+		server.createContext(VIES_PATH, this::handleVIES);
+		server.createContext(EVATR_PATH, this::handleEVatR);
+	}
+
+	public void start() {
+		server.start();
+	}
+
+	public void stop() {
+		server.stop(0);
+		executor.shutdownNow();
+	}
+
+	public int getPort() {
+		return server.getAddress().getPort();
+	}
+
+	/**
+	 * @return value for the SysConfig key BXS_VAT_VIES_URL
+	 */
+	public String getVIESURL() {
+		return "http://" + server.getAddress().getHostString() + ":" + getPort() + VIES_PATH;
+	}
+
+	/**
+	 * @return value for the SysConfig key BXS_VAT_EVATR_URL
+	 */
+	public String getEVatRURL() {
+		return "http://" + server.getAddress().getHostString() + ":" + getPort() + EVATR_PATH;
+	}
+
+	public void setLatency(long latencyMillis, long latencyJitterMillis) {
+		this.latencyMillis = Math.max(0, latencyMillis);
+		this.latencyJitterMillis = Math.max(0, latencyJitterMillis);
+	}
+
+	public void setErrorRate(double errorRate) {
+		this.errorRate = errorRate;
+	}
+
+	public void setThrottleRate(double throttleRate) {
+		this.throttleRate = throttleRate;
+	}
+
+	public void setInvalidRate(double invalidRate) {
+		this.invalidRate = invalidRate;
+	}
+
+	public void setMaxConcurrent(int maxConcurrent) {
+		this.maxConcurrent = maxConcurrent;
+	}
+
+	public long getRequestCount() {
+		return requests.sum();
+	}
+
+	public long getThrottledCount() {
+		return throttled.sum();
+	}
+
+	public long getErrorCount() {
+		return errors.sum();
+	}
+
+	private void handleVIES(HttpExchange exchange) throws IOException {
+		try (InputStream body = exchange.getRequestBody()) {
+			body.readAllBytes();
+		}
+		String response;
+		switch (answer()) {
+		case THROTTLE:
+			response = RecordedResponses.VIES_MS_MAX_CONCURRENT_REQ;
+			break;
+		case ERROR:
+			response = RecordedResponses.VIES_MS_UNAVAILABLE;
+			break;
+		case INVALID:
+			response = RecordedResponses.VIES_INVALID;
+			break;
+		default:
+			response = RecordedResponses.VIES_VALID;
+		}
+		send(exchange, "application/json", response);
+	}
+
+	private void handleEVatR(HttpExchange exchange) throws IOException {
+		Map<String, String> params = getQueryParams(exchange.getRequestURI().getRawQuery());
+		String ustId1 = params.get("UstId_1");
+		String ustId2 = params.get("UstId_2");
+		String response;
+		switch (answer()) {
+		case THROTTLE:
+			// 208: the same number is being checked by another user
+			response = RecordedResponses.eVatR(ustId1, ustId2, "208", params.get("Firmenname"), "", "", "", "", "", "", "", "", "");
+			break;
+		case ERROR:
+			// 205: the member state cannot be reached
+			response = RecordedResponses.eVatR(ustId1, ustId2, "205", params.get("Firmenname"), "", "", "", "", "", "", "", "", "");
+			break;
+		case INVALID:
+			response = RecordedResponses.eVatR(ustId1, ustId2, "201", params.get("Firmenname"), "", "", "", "", "", "", "", "", "");
+			break;
+		default:
+			response = RecordedResponses.eVatR(ustId1, ustId2, "200", params.get("Firmenname"), params.get("Ort"), params.get("PLZ"), 
+					params.get("Strasse"), isEmpty(params.get("Firmenname")) ? "" : "A", isEmpty(params.get("Ort")) ? "" : "A", 
+					isEmpty(params.get("PLZ")) ? "" : "A", isEmpty(params.get("Strasse")) ? "" : "A", "", "");
+		}
+		send(exchange, "text/xml", response);
+	}
+
+	/**
+	 * Counts the request, waits for the latency and decides the kind of answer
+	 */
+	private Answer answer() {
+		requests.increment();
+		int concurrent = running.incrementAndGet();
+		try {
+			long latency = latencyMillis;
+			if (latencyJitterMillis > 0)
+				latency += ThreadLocalRandom.current().nextLong(latencyJitterMillis + 1);
+			if (latency > 0)
+				Thread.sleep(latency);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		} finally {
+			running.decrementAndGet();
+		}
+
+		double random = ThreadLocalRandom.current().nextDouble();
+		if ((maxConcurrent > 0 && concurrent > maxConcurrent) || random < throttleRate) {
+			throttled.increment();
+			return Answer.THROTTLE;
+		}
+		if (random < throttleRate + errorRate) {
+			errors.increment();
+			return Answer.ERROR;
+		}
+		if (random < throttleRate + errorRate + invalidRate)
+			return Answer.INVALID;
+		return Answer.VALID;
+	}
+
+	private void send(HttpExchange exchange, String contentType, String response) throws IOException {
+		byte[] bytes = response.getBytes(StandardCharsets.UTF_8);
+		exchange.getResponseHeaders().set("Content-Type", contentType + "; charset=UTF-8");
+		exchange.sendResponseHeaders(STATUS_OK, bytes.length);
+		try (OutputStream body = exchange.getResponseBody()) {
+			body.write(bytes);
+		}
+	}
+
+	private static Map<String, String> getQueryParams(String query) {
+		Map<String, String> params = new HashMap<>();
+		if (query == null)
+			return params;
+		for (String param : query.split("&")) {
+			int index = param.indexOf('=');
+			if (index > 0)
+				params.put(param.substring(0, index), URLDecoder.decode(param.substring(index + 1), StandardCharsets.UTF_8));
+		}
+		return params;
+	}
+
+	private static boolean isEmpty(String value) {
+		return value == null || value.isEmpty();
+	}
+
+	private enum Answer {
+		VALID, INVALID, ERROR, THROTTLE
+	}
+
+	/**
+	 * Runs the server outside of iDempiere
+	 * @param args port [latencyMillis [latencyJitterMillis]]
+	 */
+	public static void main(String[] args) throws Exception {
+		VATStubServer stub = new VATStubServer(args.length > 0 ? Integer.parseInt(args[0]) : 0);
+		stub.setLatency(args.length > 1 ? Long.parseLong(args[1]) : 0, args.length > 2 ? Long.parseLong(args[2]) : 0);
+		stub.start();
+		log.info("VIES: " + stub.getVIESURL() + ", eVatR: " + stub.getEVatRURL());
+	}
+}
@@ -0,0 +1,104 @@
+/**********************************************************************
+ * Copyright (C) Contributors                                          *
+ *                                                                     *
+ * This program is free software; you can redistribute it and/or       *
+ * modify it under the terms of the GNU General Public License         *
+ * as published by the Free Software Foundation; either version 2      *
+ * of the License, or (at your option) any later version.              *
+ *                                                                     *
+ * This program is distributed in the hope that it will be useful,     *
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of      *
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the        *
+ * GNU General Public License for more details.                        *
+ *                                                                     *
+ * You should have received a copy of the GNU General Public License   *
+ * along with this program; if not, write to the Free Software         *
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston,          *
+ * MA 02110-1301, USA.                                                 *
+ *                                                                     *
+ * Contributors:                                                       *
+ * - Diego Ruiz - Bx Service GmbH                                      *
+ **********************************************************************/
+package de.bxservice.vatvalidation.service;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import org.junit.jupiter.api.Test;
+
+import de.bxservice.vatvalidation.stub.RecordedResponses;
+
+/**
+ * Classification of the eVatR answers into results and retryable or final errors
+ */
+public class EVatRClientTest {
+
+	private static VATValidationRequest newRequest() {
+		VATValidationRequest request = new VATValidationRequest("ATU12345678", VATValidationEngine.SERVICE_EVATR);
+		request.setOwnTaxID("DE123456789");
+		return request;
+	}
+
+	private static String answer(String errorCode) {
+		return RecordedResponses.eVatR("DE123456789", "ATU12345678", errorCode, "", "", "", "", "", "", "", "", "", "");
+	}
+
+	@Test
+	public void testValidCodes() {
+		for (String code : new String[] {"200", "216", "218", "219", "223"}) {
+			VATValidationResult result = EVatRClient.parseResponseEVATR(newRequest(), answer(code));
+			assertTrue(result.isValid(), code);
+			assertEquals(code, result.getErrorCode());
+		}
+	}
+
+	@Test
+	public void testInvalidCodes() {
+		for (String code : new String[] {"201", "202", "203", "204", "209", "210", "211", "212", "221"}) {
+			VATValidationResult result = EVatRClient.parseResponseEVATR(newRequest(), answer(code));
+			assertFalse(result.isValid(), code);
+			assertFalse(result.isError(), code);
+			assertEquals(code, result.getErrorCode());
+		}
+	}
+
+	@Test
+	public void testRetryableCodes() {
+		for (String code : new String[] {"205", "208", "217", "999"}) {
+			VATServiceException e = assertThrows(VATServiceException.class, 
+					() -> EVatRClient.parseResponseEVATR(newRequest(), answer(code)), code);
+			assertTrue(e.isRetryable(), code);
+			assertEquals(code, e.getErrorCode());
+		}
+	}
+
+	@Test
+	public void testRequestErrorsAreNotRetried() {
+		for (String code : new String[] {"206", "213", "214", "215"}) {
+			VATServiceException e = assertThrows(VATServiceException.class, 
+					() -> EVatRClient.parseResponseEVATR(newRequest(), answer(code)), code);
+			assertFalse(e.isRetryable(), code);
+		}
+	}
+
+	@Test
+	public void testUnknownCodeIsRetried() {
+		VATServiceException e = assertThrows(VATServiceException.class, 
+				() -> EVatRClient.parseResponseEVATR(newRequest(), answer("299")));
+		assertTrue(e.isRetryable());
+		assertTrue(EVatRClient.isRetryableErrorCode("299"));
+	}
+
+	@Test
+	public void testMissingCodeIsRetried() {
+		String noErrorCode = "<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n<params>\n<param>\n<value><array><data>\n"
+				+ "<value><string>UstId_2</string></value>\n<value><string>ATU12345678</string></value>\n"
+				+ "</data></array></value>\n</param>\n</params>\n";
+		VATServiceException e = assertThrows(VATServiceException.class, 
+				() -> EVatRClient.parseResponseEVATR(newRequest(), noErrorCode));
+		assertTrue(e.isRetryable());
+		assertTrue(EVatRClient.isRetryableErrorCode(null));
+	}
+}
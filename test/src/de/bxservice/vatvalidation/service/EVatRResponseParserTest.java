@@ -0,0 +1,138 @@
+/**********************************************************************
+ * Copyright (C) Contributors                                          *
+ *                                                                     *
+ * This program is free software; you can redistribute it and/or       *
+ * modify it under the terms of the GNU General Public License         *
+ * as published by the Free Software Foundation; either version 2      *
+ * of the License, or (at your option) any later version.              *
+ *                                                                     *
+ * This program is distributed in the hope that it will be useful,     *
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of      *
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the        *
+ * GNU General Public License for more details.                        *
+ *                                                                     *
+ * You should have received a copy of the GNU General Public License   *
+ * along with this program; if not, write to the Free Software         *
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston,          *
+ * MA 02110-1301, USA.                                                 *
+ *                                                                     *
+ * Contributors:                                                       *
+ * - Diego Ruiz - Bx Service GmbH                                      *
+ **********************************************************************/
+package de.bxservice.vatvalidation.service;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+
+import org.junit.jupiter.api.Test;
+
+/**
+ * Parses eVatR XML-RPC responses in the layout sent by the BZSt,
+ * with personal data replaced, from test/resources/evatr
+ */
+public class EVatRResponseParserTest {
+
+	private static EVatRResponse parse(String fixture) throws IOException {
+		try (InputStream in = EVatRResponseParserTest.class.getResourceAsStream("/evatr/" + fixture)) {
+			assertNotNull(in, fixture);
+			return EVatRResponseParser.parse(in);
+		}
+	}
+
+	@Test
+	public void testValidQualified() throws IOException {
+		EVatRResponse response = parse("valid_qualified_200.xml");
+		assertEquals("200", response.getErrorCode());
+		assertEquals("DE123456789", response.getUstId1());
+		assertEquals("ATU12345678", response.getUstId2());
+		assertEquals("Beispiel Handels GmbH", response.getFirmenname());
+		assertEquals("Wien", response.getOrt());
+		assertEquals("1010", response.getPLZ());
+		assertEquals("Musterstrasse 1", response.getStrasse());
+		assertEquals("A", response.getErgName());
+		assertEquals("A", response.getErgOrt());
+		assertEquals("A", response.getErgPLZ());
+		assertEquals("A", response.getErgStr());
+		assertEquals("nein", response.getDruck());
+		assertEquals("30.09.2024", response.getDatum());
+		assertEquals("10:15:21", response.getUhrzeit());
+	}
+
+	@Test
+	public void testValidSimple() throws IOException {
+		EVatRResponse response = parse("valid_simple_200.xml");
+		assertEquals("200", response.getErrorCode());
+		assertEquals("", response.getFirmenname());
+		assertEquals("", response.getErgName());
+		assertEquals("", response.getGueltigAb());
+	}
+
+	@Test
+	public void testInvalid() throws IOException {
+		EVatRResponse response = parse("invalid_201.xml");
+		assertEquals("201", response.getErrorCode());
+		assertEquals("ATU00000000", response.getUstId2());
+	}
+
+	@Test
+	public void testMemberStateUnavailable() throws IOException {
+		EVatRResponse response = parse("ms_unavailable_205.xml");
+		assertEquals("205", response.getErrorCode());
+		assertEquals("FR12345678901", response.getUstId2());
+	}
+
+	@Test
+	public void testNotYetValid() throws IOException {
+		EVatRResponse response = parse("not_yet_valid_203.xml");
+		assertEquals("203", response.getErrorCode());
+		assertEquals("01.01.2025", response.getGueltigAb());
+		assertEquals("", response.getGueltigBis());
+	}
+
+	@Test
+	public void testMismatchWithEscapedCharacters() throws IOException {
+		EVatRResponse response = parse("mismatch_216.xml");
+		assertEquals("216", response.getErrorCode());
+		assertEquals("M\u00fcller & S\u00f6hne <Wien>", response.getFirmenname());
+		assertEquals("Hauptstra\u00dfe 1", response.getStrasse());
+		assertEquals("B", response.getErgName());
+		assertEquals("A", response.getErgOrt());
+		assertEquals("B", response.getErgPLZ());
+		assertEquals("C", response.getErgStr());
+	}
+
+	@Test
+	public void testDeclaredEncoding() throws IOException {
+		EVatRResponse response = parse("latin1_encoding_200.xml");
+		assertEquals("K\u00e4se M\u00fcller GmbH", response.getFirmenname());
+		assertEquals("Stra\u00dfe 3", response.getStrasse());
+	}
+
+	@Test
+	public void testReceivedBytes() throws IOException {
+		byte[] body;
+		try (InputStream in = EVatRResponseParserTest.class.getResourceAsStream("/evatr/latin1_encoding_200.xml")) {
+			body = in.readAllBytes();
+		}
+		EVatRResponse response = EVatRResponseParser.parse(body);
+		assertEquals("200", response.getErrorCode());
+		assertEquals("K\u00e4se M\u00fcller GmbH", response.getFirmenname());
+	}
+
+	@Test
+	public void testStringAndStreamAgree() throws IOException {
+		String xml;
+		try (InputStream in = EVatRResponseParserTest.class.getResourceAsStream("/evatr/mismatch_216.xml")) {
+			xml = new String(in.readAllBytes(), StandardCharsets.UTF_8);
+		}
+		EVatRResponse fromString = EVatRResponseParser.parse(xml);
+		EVatRResponse fromStream = parse("mismatch_216.xml");
+		for (String key : new String[] {"UstId_1", "UstId_2", "ErrorCode", "Firmenname", "Ort", "PLZ", "Strasse", 
+				"Erg_Name", "Erg_Ort", "Erg_PLZ", "Erg_Str", "Gueltig_ab", "Gueltig_bis", "Datum", "Uhrzeit", "Druck"})
+			assertEquals(fromStream.get(key), fromString.get(key), key);
+	}
+}
@@ -0,0 +1,92 @@
+/**********************************************************************
+ * Copyright (C) Contributors                                          *
+ *                                                                     *
+ * This program is free software; you can redistribute it and/or       *
+ * modify it under the terms of the GNU General Public License         *
+ * as published by the Free Software Foundation; either version 2      *
+ * of the License, or (at your option) any later version.              *
+ *                                                                     *
+ * This program is distributed in the hope that it will be useful,     *
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of      *
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the        *
+ * GNU General Public License for more details.                        *
+ *                                                                     *
+ * You should have received a copy of the GNU General Public License   *
+ * along with this program; if not, write to the Free Software         *
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston,          *
+ * MA 02110-1301, USA.                                                 *
+ *                                                                     *
+ * Contributors:                                                       *
+ * - Diego Ruiz - Bx Service GmbH                                      *
+ **********************************************************************/
+package de.bxservice.vatvalidation.service;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+import org.junit.jupiter.api.Test;
+
+import de.bxservice.vatvalidation.service.TaxIDPreValidator.Reason;
+
+/**
+ * Local format and check digit validation with published example numbers
+ */
+public class TaxIDPreValidatorTest {
+
+	private static final String[] VALID = {
+			"ATU13585627", "BE0403019261", "BG175074752", "CY10259033P", "CZ25123891", "DE136695976", "DK13585628", 
+			"EE100931558", "EL094259216", "ESA13585625", "FI20774740", "FR40303265045", "HR33392005961", "HU12892312", 
+			"IE6433435F", "IE8D79739I", "IT00743110157", "LT119511515", "LU15027442", "LV40003521600", "MT11679112", 
+			"NL004495445B01", "PL8567346215", "PT501964843", "RO18547290", "SE123456789701", "SI50223054", "SK2022749619"};
+
+	@Test
+	public void testValidNumbers() {
+		for (String taxID : VALID)
+			assertEquals(Reason.OK, TaxIDPreValidator.check(taxID), taxID);
+	}
+
+	@Test
+	public void testWrongCheckDigit() {
+		for (String taxID : VALID) {
+			// the check digit is the last digit, except for the trailing letters of CY and IE and the suffixes of NL and SE
+			String wrong = switch (taxID.substring(0, 2)) {
+			case "CY" -> taxID.substring(0, taxID.length() - 1) + "Q";
+			case "IE" -> taxID.substring(0, taxID.length() - 1) + (taxID.endsWith("F") ? "G" : "J");
+			case "NL" -> "NL004495446B01";
+			case "SE" -> "SE123456789801";
+			default -> changeLastDigit(taxID);
+			};
+			assertEquals(Reason.INVALID_CHECK_DIGIT, TaxIDPreValidator.check(wrong), wrong);
+		}
+	}
+
+	private static String changeLastDigit(String taxID) {
+		int last = taxID.length() - 1;
+		char digit = taxID.charAt(last);
+		return taxID.substring(0, last) + (char) (digit == '9' ? '0' : digit + 1);
+	}
+
+	@Test
+	public void testNormalized() {
+		assertEquals(Reason.OK, TaxIDPreValidator.check("de 136.695.976"));
+		assertEquals(Reason.OK, TaxIDPreValidator.check("NL 0044.95445.B01"));
+		assertEquals(Reason.OK, TaxIDPreValidator.check("atu-13585627"));
+	}
+
+	@Test
+	public void testFormat() {
+		assertEquals(Reason.TOO_SHORT, TaxIDPreValidator.check("DE12"));
+		assertEquals(Reason.TOO_SHORT, TaxIDPreValidator.check(null));
+		assertEquals(Reason.INVALID_CHARACTERS, TaxIDPreValidator.check("DE1366959_6"));
+		assertEquals(Reason.INVALID_COUNTRY_CODE, TaxIDPreValidator.check("1E136695976"));
+		// VIES uses EL for Greece
+		assertEquals(Reason.INVALID_COUNTRY_CODE, TaxIDPreValidator.check("GR094259216"));
+		assertEquals(Reason.INVALID_FORMAT, TaxIDPreValidator.check("DE13669597"));
+		assertEquals(Reason.INVALID_FORMAT, TaxIDPreValidator.check("AT13585627"));
+	}
+
+	@Test
+	public void testOtherCountriesNotChecked() {
+		assertEquals(Reason.NOT_CHECKED, TaxIDPreValidator.check("CHE123456789"));
+		assertEquals(Reason.NOT_CHECKED, TaxIDPreValidator.check("GB123456789"));
+	}
+}
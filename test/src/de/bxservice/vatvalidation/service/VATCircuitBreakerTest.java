@@ -0,0 +1,198 @@
+/**********************************************************************
+ * Copyright (C) Contributors                                          *
+ *                                                                     *
+ * This program is free software; you can redistribute it and/or       *
+ * modify it under the terms of the GNU General Public License         *
+ * as published by the Free Software Foundation; either version 2      *
+ * of the License, or (at your option) any later version.              *
+ *                                                                     *
+ * This program is distributed in the hope that it will be useful,     *
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of      *
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the        *
+ * GNU General Public License for more details.                        *
+ *                                                                     *
+ * You should have received a copy of the GNU General Public License   *
+ * along with this program; if not, write to the Free Software         *
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston,          *
+ * MA 02110-1301, USA.                                                 *
+ *                                                                     *
+ * Contributors:                                                       *
+ * - Diego Ruiz - Bx Service GmbH                                      *
+ **********************************************************************/
+package de.bxservice.vatvalidation.service;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import de.bxservice.vatvalidation.service.VATCircuitBreaker.State;
+
+/**
+ * State transitions of {@link VATCircuitBreaker} with the default
+ * threshold of 5 failures and 60 seconds open time
+ */
+public class VATCircuitBreakerTest {
+
+	private static final long OPEN_MILLIS = 60_000;
+
+	private final AtomicLong now = new AtomicLong(1_000_000);
+	private VATCircuitBreaker breaker;
+
+	@BeforeEach
+	public void setUp() {
+		breaker = new VATCircuitBreaker("VIES test", now::get);
+	}
+
+	private void open() {
+		for (int i = 0; i < 5; i++)
+			breaker.onFailure("HTTP 503");
+		assertEquals(State.OPEN, breaker.getState());
+	}
+
+	@Test
+	public void testOpensAfterConsecutiveFailures() {
+		for (int i = 0; i < 4; i++)
+			breaker.onFailure("HTTP 503");
+		assertEquals(State.CLOSED, breaker.getState());
+		assertTrue(breaker.tryAcquire());
+
+		breaker.onFailure("HTTP 503");
+		assertEquals(State.OPEN, breaker.getState());
+		assertNotNull(breaker.getOpenUntil());
+		assertFalse(breaker.isCallPermitted());
+		assertFalse(breaker.tryAcquire());
+	}
+
+	@Test
+	public void testSuccessResetsFailureCount() {
+		for (int i = 0; i < 4; i++)
+			breaker.onFailure("HTTP 503");
+		breaker.onSuccess();
+		for (int i = 0; i < 4; i++)
+			breaker.onFailure("HTTP 503");
+		assertEquals(State.CLOSED, breaker.getState());
+	}
+
+	@Test
+	public void testHalfOpenLetsOneTrialThrough() {
+		open();
+		now.addAndGet(OPEN_MILLIS - 1);
+		assertFalse(breaker.tryAcquire());
+
+		now.addAndGet(1);
+		assertTrue(breaker.isCallPermitted());
+		assertTrue(breaker.tryAcquire());
+		assertEquals(State.HALF_OPEN, breaker.getState());
+		assertNull(breaker.getOpenUntil());
+		// only one trial at a time
+		assertFalse(breaker.isCallPermitted());
+		assertFalse(breaker.tryAcquire());
+	}
+
+	@Test
+	public void testTrialSuccessCloses() {
+		open();
+		now.addAndGet(OPEN_MILLIS);
+		assertTrue(breaker.tryAcquire());
+		breaker.onSuccess();
+		assertEquals(State.CLOSED, breaker.getState());
+		assertTrue(breaker.tryAcquire());
+		assertTrue(breaker.tryAcquire());
+	}
+
+	@Test
+	public void testTrialFailureReopens() {
+		open();
+		now.addAndGet(OPEN_MILLIS);
+		assertTrue(breaker.tryAcquire());
+		// a single failure is enough in half open
+		breaker.onFailure("timeout");
+		assertEquals(State.OPEN, breaker.getState());
+		assertFalse(breaker.tryAcquire());
+
+		now.addAndGet(OPEN_MILLIS);
+		assertTrue(breaker.tryAcquire());
+	}
+
+	@Test
+	public void testIgnoredTrialReleasesIt() {
+		open();
+		now.addAndGet(OPEN_MILLIS);
+		assertTrue(breaker.tryAcquire());
+		breaker.onIgnored();
+		assertEquals(State.HALF_OPEN, breaker.getState());
+		assertTrue(breaker.tryAcquire());
+	}
+
+	/**
+	 * A half open trial cancelled while it waits for a free provider slot
+	 * never reaches the service, it must not keep the breaker blocked
+	 */
+	@Test
+	public void testCancelledTrialInSlotQueue() {
+		TestProvider provider = new TestProvider();
+		VATValidationEngine.ProviderSlot slot = new VATValidationEngine.ProviderSlot(provider, breaker);
+
+		// a call started before the breaker opened keeps the only slot busy
+		CompletableFuture<VATValidationResult> running = slot.submit(new VATValidationRequest("DE136695976", VATValidationEngine.SERVICE_VIES));
+		assertEquals(1, provider.calls.get());
+
+		open();
+		now.addAndGet(OPEN_MILLIS);
+		assertTrue(breaker.tryAcquire());
+		CompletableFuture<VATValidationResult> trial = slot.submit(new VATValidationRequest("ATU13585627", VATValidationEngine.SERVICE_VIES));
+		trial.cancel(true);
+
+		// a second slot frees the queue without completing the running call
+		provider.maxConcurrency = 2;
+		slot.submit(new VATValidationRequest("NL004495445B01", VATValidationEngine.SERVICE_VIES));
+		assertEquals(2, provider.calls.get());
+		assertFalse(running.isDone());
+
+		assertEquals(State.HALF_OPEN, breaker.getState());
+		assertTrue(breaker.tryAcquire());
+	}
+
+	/**
+	 * Provider whose calls never complete
+	 */
+	private static class TestProvider implements IVATValidationProvider {
+		private final AtomicInteger calls = new AtomicInteger();
+		private volatile int maxConcurrency = 1;
+
+		@Override
+		public String getService() {
+			return VATValidationEngine.SERVICE_VIES;
+		}
+
+		@Override
+		public boolean isSupported(VATValidationRequest request) {
+			return true;
+		}
+
+		@Override
+		public CompletableFuture<VATValidationResult> validateAsync(VATValidationRequest request) {
+			calls.incrementAndGet();
+			return new CompletableFuture<>();
+		}
+
+		@Override
+		public int getMaxConcurrency() {
+			return maxConcurrency;
+		}
+
+		@Override
+		public int getCost() {
+			return 0;
+		}
+	}
+}
@@ -0,0 +1,198 @@
+/**********************************************************************
+ * Copyright (C) Contributors                                          *
+ *                                                                     *
+ * This program is free software; you can redistribute it and/or       *
+ * modify it under the terms of the GNU General Public License         *
+ * as published by the Free Software Foundation; either version 2      *
+ * of the License, or (at your option) any later version.              *
+ *                                                                     *
+ * This program is distributed in the hope that it will be useful,     *
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of      *
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the        *
+ * GNU General Public License for more details.                        *
+ *                                                                     *
+ * You should have received a copy of the GNU General Public License   *
+ * along with this program; if not, write to the Free Software         *
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston,          *
+ * MA 02110-1301, USA.                                                 *
+ *                                                                     *
+ * Contributors:                                                       *
+ * - Diego Ruiz - Bx Service GmbH                                      *
+ **********************************************************************/
+package de.bxservice.vatvalidation.service;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.IOException;
+import java.net.http.HttpTimeoutException;
+import java.util.List;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+
+import org.adempiere.exceptions.AdempiereException;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+/**
+ * Coalescing, cancellation, retry classification and backoff of {@link VATValidationEngine}
+ * with the default base backoff of one second
+ */
+public class VATValidationEngineTest {
+
+	private TestProvider provider;
+
+	@BeforeEach
+	public void setUp() {
+		provider = new TestProvider();
+		VATValidationEngine.addProvider(provider);
+	}
+
+	@AfterEach
+	public void tearDown() {
+		VATValidationEngine.removeProvider(provider);
+	}
+
+	private static VATValidationRequest newRequest(String taxID) {
+		VATValidationRequest request = new VATValidationRequest(taxID, VATValidationEngine.SERVICE_VIES);
+		request.setForceRefresh(true);
+		return request;
+	}
+
+	@Test
+	public void testConcurrentCallersShareOneCall() throws Exception {
+		VATValidationRequest first = newRequest("DE136695976");
+		// the same number formatted differently
+		VATValidationRequest second = newRequest("DE 136.695.976");
+		CompletableFuture<VATValidationResult> firstResult = VATValidationEngine.validateAsync(first);
+		CompletableFuture<VATValidationResult> secondResult = VATValidationEngine.validateAsync(second);
+		provider.awaitCalls(1);
+
+		provider.calls.get(0).complete(new VATValidationResult(provider.requests.get(0), VATValidationResult.Status.VALID));
+		assertTrue(firstResult.get(5, TimeUnit.SECONDS).isValid());
+		assertTrue(secondResult.get(5, TimeUnit.SECONDS).isValid());
+		// each caller gets the result bound to its own request
+		assertSame(first, firstResult.get().getRequest());
+		assertSame(second, secondResult.get().getRequest());
+		assertEquals(1, provider.calls.size());
+	}
+
+	@Test
+	public void testCancelledCallerDoesNotAbortTheOthers() throws Exception {
+		CompletableFuture<VATValidationResult> cancelled = VATValidationEngine.validateAsync(newRequest("ATU13585627"));
+		CompletableFuture<VATValidationResult> waiting = VATValidationEngine.validateAsync(newRequest("ATU13585627"));
+		provider.awaitCalls(1);
+
+		cancelled.cancel(true);
+		assertFalse(provider.calls.get(0).isCancelled());
+
+		provider.calls.get(0).complete(new VATValidationResult(provider.requests.get(0), VATValidationResult.Status.INVALID));
+		assertFalse(waiting.get(5, TimeUnit.SECONDS).isValid());
+		assertEquals(1, provider.calls.size());
+	}
+
+	@Test
+	public void testLastCancelledCallerAbortsTheCall() throws Exception {
+		CompletableFuture<VATValidationResult> first = VATValidationEngine.validateAsync(newRequest("NL004495445B01"));
+		CompletableFuture<VATValidationResult> second = VATValidationEngine.validateAsync(newRequest("NL004495445B01"));
+		provider.awaitCalls(1);
+
+		first.cancel(true);
+		second.cancel(true);
+		assertTrue(provider.calls.get(0).isCancelled());
+		assertThrows(CancellationException.class, () -> second.get(5, TimeUnit.SECONDS));
+
+		// a new caller does not join the aborted call
+		CompletableFuture<VATValidationResult> next = VATValidationEngine.validateAsync(newRequest("NL004495445B01"));
+		provider.awaitCalls(2);
+		provider.calls.get(1).complete(new VATValidationResult(provider.requests.get(1), VATValidationResult.Status.VALID));
+		assertTrue(next.get(5, TimeUnit.SECONDS).isValid());
+	}
+
+	@Test
+	public void testBackoffDoublesWithJitter() {
+		for (int attempt = 1; attempt <= 5; attempt++) {
+			long base = 1000L << (attempt - 1);
+			for (int i = 0; i < 100; i++) {
+				long backoff = VATValidationEngine.getRetryBackoff(attempt);
+				assertTrue(backoff >= base && backoff <= base + base / 2, attempt + ": " + backoff);
+			}
+		}
+	}
+
+	@Test
+	public void testServiceErrorsFollowTheService() {
+		assertTrue(VATValidationEngine.isRetryable(new VATServiceException("busy", VATValidationEngine.SERVICE_VIES, "MS_MAX_CONCURRENT_REQ", 
+				VIESClient.isRetryableError("MS_MAX_CONCURRENT_REQ"))));
+		assertFalse(VATValidationEngine.isRetryable(new VATServiceException("bad input", VATValidationEngine.SERVICE_VIES, "INVALID_INPUT", 
+				VIESClient.isRetryableError("INVALID_INPUT"))));
+	}
+
+	@Test
+	public void testConnectionProblemsAreRetried() {
+		assertTrue(VATValidationEngine.isRetryable(VATHttpTransport.toAdempiereException(new IOException("Connection reset"))));
+		assertTrue(VATValidationEngine.isRetryable(VATHttpTransport.toAdempiereException(new HttpTimeoutException("request timed out"))));
+		assertFalse(VATValidationEngine.isRetryable(new AdempiereException("eVatR HTTP status 400")));
+	}
+
+	@Test
+	public void testVIESRetryableErrors() {
+		for (String code : new String[] {"MS_MAX_CONCURRENT_REQ", "GLOBAL_MAX_CONCURRENT_REQ", "MS_UNAVAILABLE", "SERVICE_UNAVAILABLE", "TIMEOUT"})
+			assertTrue(VIESClient.isRetryableError(code), code);
+		for (String code : new String[] {"INVALID_INPUT", "INVALID_REQUESTER_INFO", "VAT_BLOCKED", "IP_BLOCKED"})
+			assertFalse(VIESClient.isRetryableError(code), code);
+		assertFalse(VIESClient.isRetryableError(null));
+	}
+
+	/**
+	 * VIES provider answering when the test completes its calls
+	 */
+	private static class TestProvider implements IVATValidationProvider {
+		private final List<VATValidationRequest> requests = new CopyOnWriteArrayList<>();
+		private final List<CompletableFuture<VATValidationResult>> calls = new CopyOnWriteArrayList<>();
+
+		/**
+		 * The rate limiter may delay a call, so wait until it reaches the provider
+		 */
+		private void awaitCalls(int count) throws InterruptedException {
+			long end = System.currentTimeMillis() + 5000;
+			while (calls.size() < count && System.currentTimeMillis() < end)
+				Thread.sleep(10);
+			assertEquals(count, calls.size());
+		}
+
+		@Override
+		public String getService() {
+			return VATValidationEngine.SERVICE_VIES;
+		}
+
+		@Override
+		public boolean isSupported(VATValidationRequest request) {
+			return true;
+		}
+
+		@Override
+		public CompletableFuture<VATValidationResult> validateAsync(VATValidationRequest request) {
+			CompletableFuture<VATValidationResult> call = new CompletableFuture<>();
+			requests.add(request);
+			calls.add(call);
+			return call;
+		}
+
+		@Override
+		public int getMaxConcurrency() {
+			return 10;
+		}
+
+		@Override
+		public int getCost() {
+			return 0;
+		}
+	}
+}